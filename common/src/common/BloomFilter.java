@@ -0,0 +1,110 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over card ids. It never forgets an id that was added, but may
+ * report an id that was not; a positive answer has to be confirmed elsewhere.
+ * Every lookup costs a fixed number of bit tests, independent of the number of
+ * ids in the filter.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public final class BloomFilter {
+	/** Bits per expected id; with 7 hashes this gives about 1% false positives. */
+	static final int BITS_PER_ID = 10;
+	static final int HASHES = 7;
+
+	private final long[] bits;
+	private final int hashes;
+	private final int capacity;
+
+	/**
+	 * Create an empty filter sized for <code>capacity</code> ids.
+	 */
+	public BloomFilter(int capacity) {
+		this(new long[Math.max(16, (capacity * BITS_PER_ID + 63) / 64)],
+				HASHES, capacity);
+	}
+
+	private BloomFilter(long[] bits, int hashes, int capacity) {
+		this.bits = bits;
+		this.hashes = hashes;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the number of ids the filter was sized for.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	public void add(int id) {
+		long hash = mix(id);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long size = bits.length * 64L;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if <code>id</code> was certainly never added.
+	 */
+	public boolean mightContain(int id) {
+		long hash = mix(id);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long size = bits.length * 64L;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Spread the bits of an id over a long (the finalizer of MurmurHash3), so
+	 * consecutive card ids do not end up on neighbouring bits.
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/**
+	 * @return the number of bytes {@link #writeTo(ByteBuffer)} writes.
+	 */
+	public int size() {
+		return 12 + 8 * bits.length;
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(capacity);
+		buffer.putInt(hashes);
+		buffer.putInt(bits.length);
+		for (long word : bits) {
+			buffer.putLong(word);
+		}
+	}
+
+	public static BloomFilter readFrom(ByteBuffer buffer) {
+		int capacity = buffer.getInt();
+		int hashes = buffer.getInt();
+		long[] bits = new long[buffer.getInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = buffer.getLong();
+		}
+		return new BloomFilter(bits, hashes, capacity);
+	}
+}
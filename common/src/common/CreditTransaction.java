@@ -0,0 +1,86 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A completed balance operation on a card, as reported by a cash register.
+ * Every register numbers its transactions with a strictly increasing sequence
+ * number, so (register id, sequence number) identifies a transaction.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public final class CreditTransaction {
+	/** Size of a transaction in its binary form. */
+	public static final int SIZE = 20;
+
+	private final int cardId;
+	private final short amount;
+	private final int registerId;
+	private final long sequence;
+	private final short newBalance;
+
+	/**
+	 * @param cardId
+	 *            the card the credits were added to or removed from
+	 * @param amount
+	 *            credits added (positive) or removed (negative)
+	 * @param registerId
+	 *            the cash register that performed the operation
+	 * @param sequence
+	 *            sequence number of the operation at that register
+	 * @param newBalance
+	 *            balance reported by the card after the operation
+	 */
+	public CreditTransaction(int cardId, short amount, int registerId,
+			long sequence, short newBalance) {
+		this.cardId = cardId;
+		this.amount = amount;
+		this.registerId = registerId;
+		this.sequence = sequence;
+		this.newBalance = newBalance;
+	}
+
+	public int getCardId() {
+		return cardId;
+	}
+
+	public short getAmount() {
+		return amount;
+	}
+
+	public int getRegisterId() {
+		return registerId;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public short getNewBalance() {
+		return newBalance;
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(cardId);
+		buffer.putShort(amount);
+		buffer.putInt(registerId);
+		buffer.putLong(sequence);
+		buffer.putShort(newBalance);
+	}
+
+	public static CreditTransaction readFrom(ByteBuffer buffer) {
+		int cardId = buffer.getInt();
+		short amount = buffer.getShort();
+		int registerId = buffer.getInt();
+		long sequence = buffer.getLong();
+		short newBalance = buffer.getShort();
+		return new CreditTransaction(cardId, amount, registerId, sequence,
+				newBalance);
+	}
+
+	public String toString() {
+		return "register " + registerId + " #" + sequence + ": card " + cardId
+				+ (amount < 0 ? " " : " +") + amount + " = " + newBalance;
+	}
+}
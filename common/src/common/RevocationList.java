@@ -0,0 +1,295 @@
+package common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The set of revoked card ids, as published by the back office. Every change
+ * to the set gets the next version number. The back office publishes a
+ * snapshot of the whole set now and then, and a small delta file for every
+ * version in between, so a register that is up to date only has to read the
+ * deltas.
+ * 
+ * A lookup first asks a Bloom filter, which answers almost every card that is
+ * not revoked with a fixed number of bit tests; only the rare positive answers
+ * are confirmed in the exact, sorted list of ids. Cards are never taken off the
+ * list, which is why the filter never has to forget anything.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public final class RevocationList {
+	public static final String DEFAULT_DIRECTORY = "/home/javacard/workspace/Loyalty-Card/officeterminal/revocations/";
+	static final String SNAPSHOT = "revocations.snapshot";
+	static final String DELTA_PREFIX = "revocations-";
+	static final String DELTA_EXTENSION = ".delta";
+	private static final int MAGIC = 0x4c435256; // "LCRV"
+
+	private long version;
+	private int[] cards;
+	private BloomFilter filter;
+
+	/**
+	 * Create an empty list at version 0.
+	 */
+	public RevocationList() {
+		this(0, new int[0]);
+	}
+
+	private RevocationList(long version, int[] cards) {
+		this(version, cards, build(cards));
+	}
+
+	private RevocationList(long version, int[] cards, BloomFilter filter) {
+		this.version = version;
+		this.cards = cards;
+		this.filter = filter;
+	}
+
+	private static BloomFilter build(int[] cards) {
+		BloomFilter filter = new BloomFilter(Math.max(1024, 2 * cards.length));
+		for (int card : cards) {
+			filter.add(card);
+		}
+		return filter;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of revoked cards.
+	 */
+	public synchronized int size() {
+		return cards.length;
+	}
+
+	/**
+	 * @return a copy of the revoked card ids, in ascending order.
+	 */
+	public synchronized int[] getCards() {
+		return cards.clone();
+	}
+
+	public synchronized boolean isRevoked(int cardId) {
+		return filter.mightContain(cardId)
+				&& Arrays.binarySearch(cards, cardId) >= 0;
+	}
+
+	/**
+	 * Add the cards of the delta with version <code>version</code>, which has
+	 * to be the version right after the current one.
+	 */
+	public synchronized void applyDelta(long version, int[] revoked) {
+		if (version != this.version + 1) {
+			throw new IllegalArgumentException("Expected version "
+					+ (this.version + 1) + ", got " + version);
+		}
+		int[] sorted = revoked.clone();
+		Arrays.sort(sorted);
+		int[] merged = new int[cards.length + sorted.length];
+		int i = 0, j = 0, n = 0;
+		while (i < cards.length || j < sorted.length) {
+			int next;
+			if (j == sorted.length
+					|| (i < cards.length && cards[i] <= sorted[j])) {
+				next = cards[i++];
+			} else {
+				next = sorted[j++];
+			}
+			if (n == 0 || merged[n - 1] != next) {
+				merged[n++] = next;
+			}
+		}
+		cards = n == merged.length ? merged : Arrays.copyOf(merged, n);
+		if (cards.length > filter.capacity()) {
+			filter = build(cards);
+		} else {
+			for (int card : sorted) {
+				filter.add(card);
+			}
+		}
+		this.version = version;
+	}
+
+	/**
+	 * Bring the list up to date with what has been published in
+	 * <code>directory</code>. Deltas are applied one by one; when one is
+	 * missing because the back office has compacted them into a newer
+	 * snapshot, the snapshot is loaded instead.
+	 * 
+	 * @return <code>true</code> if the list changed.
+	 */
+	public synchronized boolean refresh(String directory) throws IOException {
+		long start = version;
+		while (true) {
+			File delta = deltaFile(directory, version + 1);
+			if (delta.isFile()) {
+				ByteBuffer buffer = readFile(delta);
+				long deltaVersion = buffer.getLong();
+				int[] revoked = new int[buffer.getInt()];
+				for (int i = 0; i < revoked.length; i++) {
+					revoked[i] = buffer.getInt();
+				}
+				applyDelta(deltaVersion, revoked);
+				continue;
+			}
+			File snapshot = new File(directory, SNAPSHOT);
+			if (snapshot.isFile()) {
+				RevocationList published = readSnapshot(snapshot);
+				if (published.version > version) {
+					version = published.version;
+					cards = published.cards;
+					filter = published.filter;
+					continue;
+				}
+			}
+			return version != start;
+		}
+	}
+
+	/**
+	 * Load everything that has been published in <code>directory</code>.
+	 */
+	public static RevocationList load(String directory) throws IOException {
+		RevocationList list = new RevocationList();
+		list.refresh(directory);
+		return list;
+	}
+
+	private static RevocationList readSnapshot(File snapshot)
+			throws IOException {
+		ByteBuffer buffer = readFile(snapshot);
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException(snapshot + " is not a revocation list");
+		}
+		long version = buffer.getLong();
+		int[] cards = new int[buffer.getInt()];
+		for (int i = 0; i < cards.length; i++) {
+			cards[i] = buffer.getInt();
+		}
+		return new RevocationList(version, cards,
+				BloomFilter.readFrom(buffer));
+	}
+
+	/**
+	 * Publish the current list as the snapshot in <code>directory</code>.
+	 */
+	public synchronized void writeSnapshot(String directory) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 4 * cards.length
+				+ filter.size());
+		buffer.putInt(MAGIC);
+		buffer.putLong(version);
+		buffer.putInt(cards.length);
+		for (int card : cards) {
+			buffer.putInt(card);
+		}
+		filter.writeTo(buffer);
+		buffer.flip();
+		writeFile(new File(directory, SNAPSHOT), buffer);
+	}
+
+	/**
+	 * Revoke <code>revoked</code> in a new version of the list and publish
+	 * that version as a delta in <code>directory</code>.
+	 * 
+	 * @return the new version.
+	 */
+	public synchronized long publishDelta(String directory, int... revoked)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(12 + 4 * revoked.length);
+		buffer.putLong(version + 1);
+		buffer.putInt(revoked.length);
+		for (int card : revoked) {
+			buffer.putInt(card);
+		}
+		buffer.flip();
+		writeFile(deltaFile(directory, version + 1), buffer);
+		applyDelta(version + 1, revoked);
+		return version;
+	}
+
+	/**
+	 * Remove the deltas in <code>directory</code> that the snapshot already
+	 * contains.
+	 */
+	public static void pruneDeltas(String directory) throws IOException {
+		File snapshot = new File(directory, SNAPSHOT);
+		if (!snapshot.isFile()) {
+			return;
+		}
+		long published = readSnapshot(snapshot).version;
+		File[] deltas = new File(directory).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(DELTA_PREFIX)
+						&& name.endsWith(DELTA_EXTENSION);
+			}
+		});
+		if (deltas == null) {
+			return;
+		}
+		for (File delta : deltas) {
+			String name = delta.getName();
+			long version = Long.parseLong(name.substring(
+					DELTA_PREFIX.length(), name.length()
+							- DELTA_EXTENSION.length()));
+			if (version <= published) {
+				delta.delete();
+			}
+		}
+	}
+
+	private static File deltaFile(String directory, long version) {
+		return new File(directory, DELTA_PREFIX + version + DELTA_EXTENSION);
+	}
+
+	private static ByteBuffer readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException(file + " is truncated");
+				}
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write a file under a temporary name and move it into place, so readers
+	 * never see half of it.
+	 */
+	private static void writeFile(File file, ByteBuffer buffer)
+			throws IOException {
+		File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory " + directory);
+		}
+		File tmp = new File(directory, file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			throw new IOException("Cannot move " + file + " into place");
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hands batches of transactions to the back office through a shared spool
+ * directory. Each batch becomes one file, which is renamed into place only
+ * once it has been written completely.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class SpoolTransactionSink implements TransactionSink {
+	public static final String DEFAULT_DIRECTORY = "/home/javacard/workspace/Loyalty-Card/officeterminal/ledger/";
+	private static final String EXTENSION = ".batch";
+
+	private File directory;
+
+	public SpoolTransactionSink() {
+		this(DEFAULT_DIRECTORY);
+	}
+
+	public SpoolTransactionSink(String directory) {
+		this.directory = new File(directory);
+	}
+
+	public void upload(List<CreditTransaction> batch) throws IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spool directory " + directory);
+		}
+		CreditTransaction first = batch.get(0);
+		String name = "register-" + first.getRegisterId() + "-"
+				+ first.getSequence();
+		File tmp = new File(directory, name + ".tmp");
+		ByteBuffer buffer = ByteBuffer.allocate(batch.size()
+				* CreditTransaction.SIZE);
+		for (CreditTransaction t : batch) {
+			t.writeTo(buffer);
+		}
+		buffer.flip();
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(directory, name + EXTENSION))) {
+			throw new IOException("Cannot move batch " + name + " into place");
+		}
+	}
+
+	/**
+	 * @return the complete batch files waiting in a spool directory, oldest
+	 *         name first.
+	 */
+	public static File[] pending(String directory) {
+		File[] files = new File(directory).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(EXTENSION);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Read all transactions in one batch file.
+	 */
+	public static List<CreditTransaction> read(File batch) throws IOException {
+		FileInputStream in = new FileInputStream(batch);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					break;
+				}
+			}
+			buffer.flip();
+			List<CreditTransaction> list = new ArrayList<CreditTransaction>();
+			while (buffer.remaining() >= CreditTransaction.SIZE) {
+				list.add(CreditTransaction.readFrom(buffer));
+			}
+			return list;
+		} finally {
+			in.close();
+		}
+	}
+}
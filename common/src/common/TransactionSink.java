@@ -0,0 +1,16 @@
+package common;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination for batches of completed transactions on their way from a cash
+ * register to the back office. An upload either succeeds as a whole or throws;
+ * a failed batch may be uploaded again.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public interface TransactionSink {
+	void upload(List<CreditTransaction> batch) throws IOException;
+}
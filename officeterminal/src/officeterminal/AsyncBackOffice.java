@@ -0,0 +1,53 @@
+package officeterminal;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import common.CreditTransaction;
+
+/**
+ * Asynchronous interface for communicating with BackOffice. Every call returns
+ * at once; its result, or the {@link BackOfficeException} it failed with
+ * wrapped in an {@link java.util.concurrent.ExecutionException}, is available
+ * from the returned future. Calls that do not depend on each other may run at
+ * the same time.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+interface AsyncBackOffice {
+	Future<Customer> registerCustomer(String cusName);
+
+	Future<List<Customer>> registerCustomers(Collection<String> names);
+
+	Future<Void> issueCard(Customer client);
+
+	Future<Void> deleteCard(int cardID);
+
+	Future<Void> deleteCustomer(int customerID);
+
+	Future<Integer> getCardID(Customer client);
+
+	Future<Short> getCredits(Customer client);
+
+	Future<Integer> recordTransactions(List<CreditTransaction> batch);
+
+	Future<Customer> getCustomerByID(int custID);
+
+	Future<Customer> getCustomerByName(String name);
+
+	Future<List<Customer>> getCustomersByName(String prefix, int offset,
+			int limit);
+
+	Future<Customer> getCustomerByCard(int cardID);
+
+	Future<List<Customer>> getCustomers();
+
+	Future<Void> save();
+
+	/**
+	 * Finish the calls that were already made and accept no new ones.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,180 @@
+package officeterminal;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.CreditTransaction;
+
+/**
+ * Runs the calls of a synchronous back office on a dedicated pool of threads.
+ * The back office has to be safe for use by several threads at once.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class AsyncBackOfficeAdapter implements AsyncBackOffice {
+	private BackOffice office;
+	private ExecutorService executor;
+
+	/**
+	 * @param office
+	 *            the back office to call
+	 * @param threads
+	 *            the number of calls that may run at the same time
+	 */
+	AsyncBackOfficeAdapter(BackOffice office, int threads) {
+		this.office = office;
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "backoffice-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public Future<Customer> registerCustomer(final String cusName) {
+		return executor.submit(new Callable<Customer>() {
+			public Customer call() throws BackOfficeException {
+				return office.registerCustomer(cusName);
+			}
+		});
+	}
+
+	@Override
+	public Future<List<Customer>> registerCustomers(
+			final Collection<String> names) {
+		return executor.submit(new Callable<List<Customer>>() {
+			public List<Customer> call() throws BackOfficeException {
+				return office.registerCustomers(names);
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> issueCard(final Customer client) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() throws BackOfficeException {
+				office.issueCard(client);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> deleteCard(final int cardID) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() {
+				office.deleteCard(cardID);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> deleteCustomer(final int customerID) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() {
+				office.deleteCustomer(customerID);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Integer> getCardID(final Customer client) {
+		return executor.submit(new Callable<Integer>() {
+			public Integer call() throws BackOfficeException {
+				return office.getCardID(client);
+			}
+		});
+	}
+
+	@Override
+	public Future<Short> getCredits(final Customer client) {
+		return executor.submit(new Callable<Short>() {
+			public Short call() throws BackOfficeException {
+				return office.getCredits(client);
+			}
+		});
+	}
+
+	@Override
+	public Future<Integer> recordTransactions(
+			final List<CreditTransaction> batch) {
+		return executor.submit(new Callable<Integer>() {
+			public Integer call() throws BackOfficeException {
+				return office.recordTransactions(batch);
+			}
+		});
+	}
+
+	@Override
+	public Future<Customer> getCustomerByID(final int custID) {
+		return executor.submit(new Callable<Customer>() {
+			public Customer call() throws BackOfficeException {
+				return office.getCustomerByID(custID);
+			}
+		});
+	}
+
+	@Override
+	public Future<Customer> getCustomerByName(final String name) {
+		return executor.submit(new Callable<Customer>() {
+			public Customer call() throws BackOfficeException {
+				return office.getCustomerByName(name);
+			}
+		});
+	}
+
+	@Override
+	public Future<List<Customer>> getCustomersByName(final String prefix,
+			final int offset, final int limit) {
+		return executor.submit(new Callable<List<Customer>>() {
+			public List<Customer> call() throws BackOfficeException {
+				return office.getCustomersByName(prefix, offset, limit);
+			}
+		});
+	}
+
+	@Override
+	public Future<Customer> getCustomerByCard(final int cardID) {
+		return executor.submit(new Callable<Customer>() {
+			public Customer call() throws BackOfficeException {
+				return office.getCustomerByCard(cardID);
+			}
+		});
+	}
+
+	@Override
+	public Future<List<Customer>> getCustomers() {
+		return executor.submit(new Callable<List<Customer>>() {
+			public List<Customer> call() throws BackOfficeException {
+				return office.getCustomers();
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> save() {
+		return executor.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				office.save();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
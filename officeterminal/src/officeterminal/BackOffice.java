@@ -1,8 +1,13 @@
 package officeterminal;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.security.KeyPair;
 
+import common.CreditTransaction;
+
 /**
  * Interface for communicating with BackOffice.
  * 
@@ -12,6 +17,9 @@ import java.security.KeyPair;
 interface BackOffice {
 	Customer registerCustomer(String cusName) throws BackOfficeException;
 
+	List<Customer> registerCustomers(Collection<String> names)
+			throws BackOfficeException;
+
 	KeyPair getSupermarketKeyPair() throws BackOfficeException;
 
 	void issueCard(Customer client) throws BackOfficeException;
@@ -23,12 +31,25 @@ interface BackOffice {
 	int getCardID(Customer client) throws BackOfficeException;
 	
 	short getCredits(Customer client) throws BackOfficeException;
+
+	int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException;
 	
 	Customer getCustomerByID(int custID) throws BackOfficeException;
 
 	Customer getCustomerByName(String name) throws BackOfficeException;
 
+	List<Customer> getCustomersByName(String prefix, int offset, int limit)
+			throws BackOfficeException;
+
 	Customer getCustomerByCard(int cardID) throws BackOfficeException;
 
 	List<Customer> getCustomers() throws BackOfficeException;
+
+	Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException;
+
+	BackOfficeStatistics getStatistics() throws BackOfficeException;
+
+	void save() throws IOException;
 }
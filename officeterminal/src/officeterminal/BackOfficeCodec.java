@@ -0,0 +1,521 @@
+package officeterminal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Versioned binary format for the back-office state.
+ *
+ * <pre>
+ * file     := magic(4) version(1) varint lastCustomerId, varint lastCardId, record* END
+ * record   := type(1) varint length payload
+ * CUSTOMER := varint id, varint cardId (0 = none), varint nameLength, UTF-8 name
+ * CARD     := varint id, varint customerId, credits(2)
+ * REMOVED  := type(1) of the removed record, varint id
+ * index    := table(CUSTOMER) table(DETACHED) table(CARD) indexPosition(8) INDEX_MAGIC(4)
+ * table    := count(4) (id(4) offset(8))*, sorted by id
+ * </pre>
+ *
+ * Customers are written before cards, and a card refers to its customer by id.
+ * A card whose customer has been deleted keeps that customer as a
+ * <code>DETACHED</code> record, which has the layout of a customer record but
+ * is not part of the customer table. <code>REMOVED</code> records only occur
+ * in incremental backups (see {@link StoreBackup}), for a customer or card
+ * that no longer exists. Readers skip record types they do not know, using
+ * the length prefix. Sequential readers stop at <code>END</code>; the
+ * optional index after it lets a reader find any record by id without
+ * scanning the file.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class BackOfficeCodec {
+	static final int MAGIC = 0x4C434442; // "LCDB"
+	static final byte VERSION = 1;
+
+	static final byte END = 0;
+	static final byte CUSTOMER = 1;
+	static final byte CARD = 2;
+	static final byte DETACHED = 3;
+	static final byte REMOVED = 4;
+
+	static final int INDEX_MAGIC = 0x4C434458; // "LCDX"
+	static final int INDEX_ENTRY = 12;
+	static final int FOOTER_SIZE = 12;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * @return true if the buffer starts with the magic number of this format.
+	 */
+	static boolean isCodecFile(ByteBuffer head) {
+		return head.remaining() >= 4 && head.getInt(head.position()) == MAGIC;
+	}
+
+	static void putVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static int getVarint(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in back office file");
+	}
+
+	/**
+	 * Collects the file offset of every record of one type, for the index.
+	 */
+	private static final class IndexTable {
+		private int[] ids = new int[1024];
+		private long[] offsets = new long[1024];
+		private int count;
+
+		void add(int id, long offset) {
+			if (count == ids.length) {
+				ids = Arrays.copyOf(ids, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			ids[count] = id;
+			offsets[count] = offset;
+			count++;
+		}
+
+		/**
+		 * @return the entries in id order, in the on-disk table layout.
+		 */
+		ByteBuffer toBuffer() {
+			long[] order = new long[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = ((long) ids[i] << 32) | i;
+			}
+			Arrays.sort(order);
+			ByteBuffer table = ByteBuffer.allocate(4 + count * INDEX_ENTRY);
+			table.putInt(count);
+			for (long key : order) {
+				int i = (int) key;
+				table.putInt(ids[i]);
+				table.putLong(offsets[i]);
+			}
+			table.flip();
+			return table;
+		}
+	}
+
+	/**
+	 * Streams records to a channel through a fixed-size buffer, and writes the
+	 * index of all records after the end marker.
+	 */
+	static final class Writer {
+		private WritableByteChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private ByteBuffer record = ByteBuffer.allocate(BUFFER_SIZE);
+		private long flushed = 0;
+		private IndexTable customers = new IndexTable();
+		private IndexTable detached = new IndexTable();
+		private IndexTable cards = new IndexTable();
+		private boolean indexed = true;
+
+		private Writer(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		Writer(WritableByteChannel channel, int lastCustomerId, int lastCardId)
+				throws IOException {
+			this(channel);
+			buffer.putInt(MAGIC);
+			buffer.put(VERSION);
+			putVarint(buffer, lastCustomerId);
+			putVarint(buffer, lastCardId);
+		}
+
+		/**
+		 * A writer for a stream that is only read from front to back: the
+		 * records and the end marker, without an index.
+		 */
+		static Writer stream(WritableByteChannel channel, int lastCustomerId,
+				int lastCardId) throws IOException {
+			Writer writer = new Writer(channel, lastCustomerId, lastCardId);
+			writer.indexed = false;
+			return writer;
+		}
+
+		/**
+		 * A writer that adds records to the end of a stream written by
+		 * {@link #stream}, without writing another header.
+		 */
+		static Writer append(WritableByteChannel channel) {
+			Writer writer = new Writer(channel);
+			writer.indexed = false;
+			return writer;
+		}
+
+		void writeCustomer(Customer customer) throws IOException {
+			Card card = customer.getCard();
+			writeCustomer(customer.getID(), card == null ? 0 : card.getID(),
+					customer.getName());
+		}
+
+		void writeDetached(Customer customer) throws IOException {
+			Card card = customer.getCard();
+			writeDetached(customer.getID(), card == null ? 0 : card.getID(),
+					customer.getName());
+		}
+
+		void writeCard(Card card) throws IOException {
+			writeCard(card.getID(), card.getCustomerID(), card.getCredits());
+		}
+
+		void writeCustomer(int id, int cardId, String name) throws IOException {
+			writePerson(CUSTOMER, id, cardId, name);
+		}
+
+		void writeDetached(int id, int cardId, String name) throws IOException {
+			writePerson(DETACHED, id, cardId, name);
+		}
+
+		private void writePerson(byte type, int id, int cardId, String name)
+				throws IOException {
+			byte[] bytes = name.getBytes(UTF8);
+			if (bytes.length + 15 > record.capacity()) {
+				record = ByteBuffer.allocate(bytes.length + 15);
+			}
+			record.clear();
+			putVarint(record, id);
+			putVarint(record, cardId);
+			putVarint(record, bytes.length);
+			record.put(bytes);
+			writeRecord(type, id);
+		}
+
+		void writeCard(int id, int customerId, short credits) throws IOException {
+			record.clear();
+			putVarint(record, id);
+			putVarint(record, customerId);
+			record.putShort(credits);
+			writeRecord(CARD, id);
+		}
+
+		/**
+		 * Record that the customer or card with this id no longer exists.
+		 *
+		 * @param type
+		 *            {@link BackOfficeCodec#CUSTOMER} or
+		 *            {@link BackOfficeCodec#CARD}
+		 */
+		void writeRemoved(byte type, int id) throws IOException {
+			record.clear();
+			record.put(type);
+			putVarint(record, id);
+			writeRecord(REMOVED, id);
+		}
+
+		private void writeRecord(byte type, int id) throws IOException {
+			record.flip();
+			ensure(6 + record.remaining());
+			long offset = flushed + buffer.position();
+			if (indexed && type != REMOVED) {
+				(type == CUSTOMER ? customers : type == CARD ? cards : detached)
+						.add(id, offset);
+			}
+			buffer.put(type);
+			putVarint(buffer, record.remaining());
+			if (record.remaining() > buffer.remaining()) {
+				flush();
+				while (record.hasRemaining()) {
+					flushed += channel.write(record);
+				}
+			} else {
+				buffer.put(record);
+			}
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		/**
+		 * Write the buffered records to the channel.
+		 */
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				flushed += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		private void writeFully(ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				flushed += channel.write(data);
+			}
+		}
+
+		/**
+		 * @return the number of bytes written so far, including those still
+		 *         buffered.
+		 */
+		long size() {
+			return flushed + buffer.position();
+		}
+
+		/**
+		 * Write the end marker and the index, and flush, without closing the
+		 * channel.
+		 */
+		void finish() throws IOException {
+			ensure(1);
+			buffer.put(END);
+			flush();
+			if (!indexed) {
+				return;
+			}
+			long indexPosition = flushed;
+			writeFully(customers.toBuffer());
+			writeFully(detached.toBuffer());
+			writeFully(cards.toBuffer());
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+			footer.putLong(indexPosition);
+			footer.putInt(INDEX_MAGIC);
+			footer.flip();
+			writeFully(footer);
+		}
+	}
+
+	/**
+	 * Map the index of a file written by {@link Writer}.
+	 *
+	 * @return the three index tables (customers, detached customers, cards)
+	 *         as read-only buffers, or <code>null</code> if the file has no
+	 *         index.
+	 */
+	static ByteBuffer[] mapIndex(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < FOOTER_SIZE) {
+			return null;
+		}
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+		channel.read(footer, size - FOOTER_SIZE);
+		footer.flip();
+		long indexPosition = footer.getLong();
+		if (footer.getInt() != INDEX_MAGIC) {
+			return null;
+		}
+		ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+				indexPosition, size - FOOTER_SIZE - indexPosition);
+		ByteBuffer[] tables = new ByteBuffer[3];
+		for (int i = 0; i < tables.length; i++) {
+			int count = index.getInt();
+			index.limit(index.position() + count * INDEX_ENTRY);
+			tables[i] = index.slice();
+			index.position(index.limit());
+			index.limit(index.capacity());
+		}
+		return tables;
+	}
+
+	/**
+	 * Build the index of a file that was written without one by reading it
+	 * from front to back.
+	 *
+	 * @return the same tables as {@link #mapIndex(FileChannel)}, on the heap.
+	 */
+	static ByteBuffer[] buildIndex(FileChannel channel) throws IOException {
+		IndexTable customers = new IndexTable();
+		IndexTable detached = new IndexTable();
+		IndexTable cards = new IndexTable();
+		channel.position(0);
+		Reader in = new Reader(channel);
+		byte type;
+		while ((type = in.next()) != END) {
+			(type == CUSTOMER ? customers : type == CARD ? cards : detached)
+					.add(in.id(), in.offset());
+		}
+		ByteBuffer[] tables = { customers.toBuffer(), detached.toBuffer(),
+				cards.toBuffer() };
+		for (int i = 0; i < tables.length; i++) {
+			tables[i].position(4);
+			tables[i] = tables[i].slice();
+		}
+		return tables;
+	}
+
+	/**
+	 * Reads records one at a time. After {@link #next()} returns a record
+	 * type, the fields of that record are available through the getters.
+	 */
+	static final class Reader {
+		private ReadableByteChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private long consumed = 0;
+		private long offset;
+		private int lastCustomerId;
+		private int lastCardId;
+
+		private int id;
+		private int link;
+		private short credits;
+		private String name;
+
+		private Reader(ReadableByteChannel channel, int bufferSize) {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(bufferSize);
+			buffer.flip();
+		}
+
+		/**
+		 * Read single records starting at the current position of a channel,
+		 * without a file header in front of them.
+		 */
+		static Reader records(ReadableByteChannel channel) {
+			return new Reader(channel, 256);
+		}
+
+		Reader(ReadableByteChannel channel) throws IOException {
+			this.channel = channel;
+			buffer.flip();
+			require(5);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Not a back office file");
+			}
+			byte version = buffer.get();
+			if (version != VERSION) {
+				throw new IOException("Unsupported back office file version "
+						+ version);
+			}
+			require(10);
+			lastCustomerId = getVarint(buffer);
+			lastCardId = getVarint(buffer);
+		}
+
+		/**
+		 * Make sure at least <code>bytes</code> bytes are buffered, or as many
+		 * as are left before the end of the channel.
+		 */
+		private void require(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes) {
+				return;
+			}
+			if (bytes > buffer.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(bytes);
+				larger.put(buffer);
+				buffer = larger;
+			} else {
+				buffer.compact();
+			}
+			while (buffer.position() < bytes) {
+				int n = channel.read(buffer);
+				if (n < 0) {
+					break;
+				}
+				consumed += n;
+			}
+			buffer.flip();
+		}
+
+		int lastCustomerId() {
+			return lastCustomerId;
+		}
+
+		int lastCardId() {
+			return lastCardId;
+		}
+
+		/**
+		 * Advance to the next record.
+		 *
+		 * @return the type of the record, or {@link BackOfficeCodec#END}.
+		 */
+		byte next() throws IOException {
+			while (true) {
+				offset = consumed - buffer.remaining();
+				require(6);
+				if (!buffer.hasRemaining()) {
+					throw new EOFException("Back office file is truncated");
+				}
+				byte type = buffer.get();
+				if (type == END) {
+					return END;
+				}
+				int length = getVarint(buffer);
+				require(length);
+				if (buffer.remaining() < length) {
+					throw new EOFException("Back office file is truncated");
+				}
+				int end = buffer.position() + length;
+				switch (type) {
+				case CUSTOMER:
+				case DETACHED:
+					id = getVarint(buffer);
+					link = getVarint(buffer);
+					byte[] bytes = new byte[getVarint(buffer)];
+					buffer.get(bytes);
+					name = new String(bytes, UTF8);
+					break;
+				case CARD:
+					id = getVarint(buffer);
+					link = getVarint(buffer);
+					credits = buffer.getShort();
+					break;
+				case REMOVED:
+					link = buffer.get();
+					id = getVarint(buffer);
+					break;
+				default:
+					break;
+				}
+				buffer.position(end);
+				if (type == CUSTOMER || type == DETACHED || type == CARD
+						|| type == REMOVED) {
+					return type;
+				}
+			}
+		}
+
+		/**
+		 * @return the position of the current record, relative to where the
+		 *         reader started.
+		 */
+		long offset() {
+			return offset;
+		}
+
+		int id() {
+			return id;
+		}
+
+		/**
+		 * @return the card id of a customer record (0 for none), the customer
+		 *         id of a card record, or the type of a removed record.
+		 */
+		int link() {
+			return link;
+		}
+
+		String name() {
+			return name;
+		}
+
+		short credits() {
+			return credits;
+		}
+	}
+}
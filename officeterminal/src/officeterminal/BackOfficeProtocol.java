@@ -0,0 +1,241 @@
+package officeterminal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.CreditTransaction;
+
+/**
+ * The binary protocol between {@link BackOfficeServer} and
+ * {@link RemoteBackOffice}. Every request and every response is a frame: its
+ * length (4 bytes, not counting itself), the request id chosen by the client
+ * (4 bytes), a request code or response status (1 byte) and the arguments or
+ * result. Responses carry the id of their request, so a client can send many
+ * requests before reading the first response, and the server may answer them
+ * in any order.
+ * 
+ * Strings are a length (4 bytes, -1 for <code>null</code>) followed by UTF-8.
+ * A customer is its id, name, card id (-1 for none) and credits. A page of a
+ * cursor is a flag telling whether more pages follow, and its customers.
+ * 
+ * The server closes a cursor once its last page is sent, when the client
+ * closes it with {@link #CLOSE_CURSOR}, when it has not been read for
+ * {@link #CURSOR_TIMEOUT} milliseconds, and when the connection opens more
+ * than {@link #MAX_CURSORS}, the least recently read one first. Pages hold
+ * at most {@link #MAX_PAGE} customers, so that they fit in a frame; the whole
+ * table is read through a cursor, a page at a time.
+ * 
+ * The supermarket key pair is only handed out to clients that send the token
+ * the server wrote to its token file, which only the user running the server
+ * can read, and only if the server was started to share its keys at all.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class BackOfficeProtocol {
+	static final int DEFAULT_PORT = 7070;
+	static final int MAX_FRAME = 1 << 24;
+	static final int MAX_CURSORS = 16;
+	static final int MAX_PAGE = 10000;
+	/** Page size used to read every customer */
+	static final int PAGE_SIZE = 1000;
+	static final long CURSOR_TIMEOUT = 5 * 60 * 1000;
+	static final String DEFAULT_TOKEN_FILE = "backoffice.token";
+
+	static final byte REGISTER_CUSTOMER = 1;
+	static final byte REGISTER_CUSTOMERS = 2;
+	static final byte GET_KEY_PAIR = 3;
+	static final byte ISSUE_CARD = 4;
+	static final byte DELETE_CARD = 5;
+	static final byte DELETE_CUSTOMER = 6;
+	static final byte GET_CARD_ID = 7;
+	static final byte GET_CREDITS = 8;
+	static final byte RECORD_TRANSACTIONS = 9;
+	static final byte GET_CUSTOMER_BY_ID = 10;
+	static final byte GET_CUSTOMER_BY_NAME = 11;
+	static final byte GET_CUSTOMERS_BY_NAME = 12;
+	static final byte GET_CUSTOMER_BY_CARD = 13;
+	/** No longer served: it sent the whole table in one frame */
+	static final byte GET_CUSTOMERS = 14;
+	static final byte OPEN_CURSOR = 15;
+	static final byte NEXT_PAGE = 16;
+	static final byte SAVE = 17;
+	static final byte GET_STATISTICS = 18;
+	static final byte CLOSE_CURSOR = 19;
+
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BackOfficeProtocol() {
+	}
+
+	/**
+	 * A frame being written. The buffer grows as needed.
+	 */
+	static final class Frame {
+		private ByteBuffer buffer = ByteBuffer.allocate(64);
+
+		/**
+		 * @param requestId
+		 *            the id of the request, or of the request answered
+		 * @param code
+		 *            the request code or the response status
+		 */
+		Frame(int requestId, byte code) {
+			buffer.putInt(0);
+			buffer.putInt(requestId);
+			buffer.put(code);
+		}
+
+		private void ensure(int bytes) {
+			if (buffer.remaining() < bytes) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer
+						.capacity(), buffer.position() + bytes));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+
+		Frame putByte(byte value) {
+			ensure(1);
+			buffer.put(value);
+			return this;
+		}
+
+		Frame putShort(short value) {
+			ensure(2);
+			buffer.putShort(value);
+			return this;
+		}
+
+		Frame putInt(int value) {
+			ensure(4);
+			buffer.putInt(value);
+			return this;
+		}
+
+		Frame putBytes(byte[] value) {
+			ensure(4 + value.length);
+			buffer.putInt(value.length);
+			buffer.put(value);
+			return this;
+		}
+
+		Frame putString(String value) {
+			if (value == null) {
+				return putInt(-1);
+			}
+			return putBytes(value.getBytes(UTF8));
+		}
+
+		Frame putTransaction(CreditTransaction t) {
+			ensure(CreditTransaction.SIZE);
+			t.writeTo(buffer);
+			return this;
+		}
+
+		Frame putCustomer(Customer c) {
+			putInt(c.getID());
+			putString(c.getName());
+			if (c.getCard() == null) {
+				putInt(-1);
+				putShort((short) 0);
+			} else {
+				putInt(c.getCardID());
+				putShort(c.getCredits());
+			}
+			return this;
+		}
+
+		Frame putCustomers(List<Customer> customers) {
+			putInt(customers.size());
+			for (Customer c : customers) {
+				putCustomer(c);
+			}
+			return this;
+		}
+
+		Frame putLong(long value) {
+			ensure(8);
+			buffer.putLong(value);
+			return this;
+		}
+
+		Frame putStatistics(BackOfficeStatistics statistics) {
+			putLong(statistics.getCustomers());
+			putLong(statistics.getActiveCards());
+			putLong(statistics.getOutstandingCredits());
+			putInt(statistics.getTopBalances().size());
+			for (BackOfficeStatistics.Balance b : statistics.getTopBalances()) {
+				putInt(b.cardId);
+				putInt(b.customerId);
+				putShort(b.credits);
+			}
+			return this;
+		}
+
+		/**
+		 * @return the complete frame, ready to be written.
+		 */
+		ByteBuffer finish() {
+			buffer.flip();
+			buffer.putInt(0, buffer.limit() - 4);
+			return buffer;
+		}
+	}
+
+	static byte[] getBytes(ByteBuffer buffer) {
+		byte[] value = new byte[buffer.getInt()];
+		buffer.get(value);
+		return value;
+	}
+
+	static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		buffer.get(value);
+		return new String(value, UTF8);
+	}
+
+	static Customer getCustomer(ByteBuffer buffer) {
+		int id = buffer.getInt();
+		Customer c = new Customer(getString(buffer), id);
+		int cardId = buffer.getInt();
+		short credits = buffer.getShort();
+		if (cardId != -1) {
+			c.setCard(new Card(cardId, credits, c));
+		}
+		return c;
+	}
+
+	static List<Customer> getCustomers(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		List<Customer> customers = new ArrayList<Customer>(count);
+		for (int i = 0; i < count; i++) {
+			customers.add(getCustomer(buffer));
+		}
+		return customers;
+	}
+
+	static BackOfficeStatistics getStatistics(ByteBuffer buffer) {
+		long customers = buffer.getLong();
+		long cards = buffer.getLong();
+		long credits = buffer.getLong();
+		int count = buffer.getInt();
+		List<BackOfficeStatistics.Balance> top = new ArrayList<BackOfficeStatistics.Balance>(
+				count);
+		for (int i = 0; i < count; i++) {
+			top.add(new BackOfficeStatistics.Balance(buffer.getInt(), buffer
+					.getInt(), buffer.getShort()));
+		}
+		return new BackOfficeStatistics(customers, cards, credits, top);
+	}
+}
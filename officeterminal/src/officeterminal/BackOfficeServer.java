@@ -0,0 +1,612 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import common.CreditTransaction;
+
+/**
+ * A back-office server, so that several office terminals share one back office
+ * instead of each keeping its own copy. The server only listens on the
+ * loopback interface.
+ * 
+ * One thread does all the network I/O with non-blocking channels; the requests
+ * themselves run on a pool of workers, so a slow request does not hold up the
+ * other connections, and pipelined requests on one connection run side by
+ * side. See {@link BackOfficeProtocol} for the protocol.
+ * 
+ * A client that sends faster than it reads is held back: once a connection has
+ * {@link #MAX_REQUESTS} requests running or {@link #MAX_QUEUED} bytes of
+ * responses waiting to be sent, the server stops reading from it until it has
+ * caught up, so the requests wait in the socket buffers instead of in memory.
+ * The workers take at most {@link #MAX_WAITING} requests per thread from all
+ * connections together; beyond that a request is answered with an error at
+ * once.
+ * 
+ * Anyone on this machine can connect, so the supermarket private key is not
+ * served unless {@link #shareKeys(File)} was called, and then only to clients
+ * that send the token written to the token file.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class BackOfficeServer {
+	/** Requests of one connection that may run or wait for a worker */
+	static final int MAX_REQUESTS = 64;
+	/** Bytes of responses that may wait to be sent on one connection */
+	static final long MAX_QUEUED = BackOfficeProtocol.MAX_FRAME;
+	/** Requests per worker thread that may wait for a worker */
+	static final int MAX_WAITING = 256;
+
+	/**
+	 * An open cursor, and when it was last read.
+	 */
+	private static final class Cursor {
+		private Iterator<List<Customer>> pages;
+		private long used = System.currentTimeMillis();
+
+		Cursor(Iterator<List<Customer>> pages) {
+			this.pages = pages;
+		}
+
+		synchronized long used() {
+			return used;
+		}
+
+		/**
+		 * @return the next page, or an empty page at the end.
+		 */
+		synchronized List<Customer> next() throws BackOfficeException {
+			if (pages == null) {
+				throw new BackOfficeException("Cursor was closed.");
+			}
+			used = System.currentTimeMillis();
+			return pages.hasNext() ? pages.next() : new ArrayList<Customer>();
+		}
+
+		synchronized boolean hasNext() {
+			return pages != null && pages.hasNext();
+		}
+
+		synchronized void close() {
+			if (pages != null) {
+				CustomerPages.close(pages);
+				pages = null;
+			}
+		}
+	}
+
+	/**
+	 * The state of one client connection.
+	 */
+	private final class Connection {
+		final SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(4096);
+		Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		/** Bytes in {@link #out} */
+		AtomicLong queued = new AtomicLong();
+		/** Requests handed to the workers and not yet answered */
+		AtomicInteger running = new AtomicInteger();
+		Map<Integer, Cursor> cursors = new ConcurrentHashMap<Integer, Cursor>();
+		AtomicInteger nextCursor = new AtomicInteger();
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * @return whether the server should stop reading from this connection
+		 *         until it catches up.
+		 */
+		boolean overloaded() {
+			return running.get() >= MAX_REQUESTS || queued.get() >= MAX_QUEUED;
+		}
+	}
+
+	private BackOffice office;
+	private ServerSocketChannel server;
+	private Selector selector;
+	private ExecutorService workers;
+	private Queue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean running = true;
+	private long expired = System.currentTimeMillis();
+	/** The token a client has to send for the key pair, null to refuse */
+	private volatile byte[] keyToken;
+
+	/**
+	 * @param office
+	 *            the back office to serve, which has to be safe for use by
+	 *            several threads at once
+	 * @param port
+	 *            the port to listen on, 0 for any free port
+	 * @param threads
+	 *            the number of requests that may run at the same time
+	 */
+	BackOfficeServer(BackOffice office, int port, int threads)
+			throws IOException {
+		this.office = office;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(
+				new InetSocketAddress(InetAddress.getByName(null), port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		workers = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads
+						* MAX_WAITING));
+	}
+
+	/**
+	 * @return the port the server listens on.
+	 */
+	int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Serve the supermarket key pair to clients that send the token written to
+	 * <code>tokenFile</code>. The file is made readable by its owner only and
+	 * is deleted when the server exits.
+	 */
+	void shareKeys(File tokenFile) throws IOException {
+		byte[] token = new byte[32];
+		new SecureRandom().nextBytes(token);
+		tokenFile.delete();
+		if (!tokenFile.createNewFile() || !tokenFile.setReadable(false, false)
+				|| !tokenFile.setReadable(true, true)) {
+			throw new IOException("Cannot create a private token file "
+					+ tokenFile);
+		}
+		tokenFile.deleteOnExit();
+		OutputStream out = new FileOutputStream(tokenFile);
+		try {
+			out.write(token);
+		} finally {
+			out.close();
+		}
+		keyToken = token;
+	}
+
+	/**
+	 * Serve clients until {@link #stop()} is called.
+	 */
+	void run() throws IOException {
+		try {
+			while (running) {
+				selector.select(BackOfficeProtocol.CURSOR_TIMEOUT / 4);
+				expireCursors();
+				Connection c;
+				while ((c = writable.poll()) != null) {
+					if (c.key.isValid()) {
+						try {
+							resume(c);
+						} catch (IOException e) {
+							close(c);
+						}
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							if (key.isReadable()) {
+								read((Connection) key.attachment());
+							}
+							if (key.isValid() && key.isWritable()) {
+								write((Connection) key.attachment());
+							}
+						}
+					} catch (IOException e) {
+						close((Connection) key.attachment());
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+			workers.shutdown();
+		}
+	}
+
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection c = new Connection(channel);
+		c.key = channel.register(selector, SelectionKey.OP_READ, c);
+	}
+
+	private void close(Connection c) {
+		if (c == null) {
+			return;
+		}
+		c.key.cancel();
+		for (Integer id : c.cursors.keySet()) {
+			closeCursor(c, id);
+		}
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void closeCursor(Connection c, int id) {
+		Cursor cursor = c.cursors.remove(id);
+		if (cursor != null) {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Close the cursors of every connection that have not been read for
+	 * {@link BackOfficeProtocol#CURSOR_TIMEOUT}, at most a few times per
+	 * timeout.
+	 */
+	private void expireCursors() {
+		long now = System.currentTimeMillis();
+		if (now - expired < BackOfficeProtocol.CURSOR_TIMEOUT / 4) {
+			return;
+		}
+		expired = now;
+		for (SelectionKey key : selector.keys()) {
+			Connection c = (Connection) key.attachment();
+			if (c == null) {
+				continue;
+			}
+			for (Map.Entry<Integer, Cursor> e : c.cursors.entrySet()) {
+				if (now - e.getValue().used() > BackOfficeProtocol.CURSOR_TIMEOUT) {
+					closeCursor(c, e.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a cursor to a connection, closing its least recently read one if
+	 * it already has {@link BackOfficeProtocol#MAX_CURSORS}.
+	 * 
+	 * @return the id of the cursor.
+	 */
+	private int openCursor(Connection c, Iterator<List<Customer>> pages) {
+		synchronized (c) {
+			while (c.cursors.size() >= BackOfficeProtocol.MAX_CURSORS) {
+				Map.Entry<Integer, Cursor> oldest = null;
+				for (Map.Entry<Integer, Cursor> e : c.cursors.entrySet()) {
+					if (oldest == null
+							|| e.getValue().used() < oldest.getValue().used()) {
+						oldest = e;
+					}
+				}
+				closeCursor(c, oldest.getKey());
+			}
+			int id = c.nextCursor.incrementAndGet();
+			c.cursors.put(id, new Cursor(pages));
+			return id;
+		}
+	}
+
+	/**
+	 * Read what has arrived and hand the complete requests to the workers.
+	 */
+	private void read(Connection c) throws IOException {
+		if (c.channel.read(c.in) < 0) {
+			close(c);
+			return;
+		}
+		dispatch(c);
+	}
+
+	/**
+	 * Hand every complete request in the input buffer to a worker, until the
+	 * connection is overloaded; the rest stay in the buffer.
+	 */
+	private void dispatch(final Connection c) throws IOException {
+		c.in.flip();
+		while (c.in.remaining() >= 4 && !c.overloaded()) {
+			int length = c.in.getInt(c.in.position());
+			if (length < 5 || length > BackOfficeProtocol.MAX_FRAME) {
+				throw new IOException("Bad frame length " + length);
+			}
+			if (c.in.remaining() < 4 + length) {
+				if (c.in.capacity() < 4 + length) {
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(c.in);
+					c.in = larger;
+					return;
+				}
+				break;
+			}
+			c.in.getInt();
+			final ByteBuffer request = ByteBuffer.allocate(length);
+			int limit = c.in.limit();
+			c.in.limit(c.in.position() + length);
+			request.put(c.in);
+			c.in.limit(limit);
+			request.flip();
+			c.running.incrementAndGet();
+			try {
+				workers.execute(new Runnable() {
+					public void run() {
+						respond(c, handle(c, request));
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				respond(c, error(request.getInt(0), "The server is busy."));
+			}
+		}
+		c.in.compact();
+		interest(c);
+	}
+
+	/**
+	 * Read again from a connection that caught up, starting with the requests
+	 * it sent before, and write to it if there is something to send.
+	 */
+	private void resume(Connection c) throws IOException {
+		if (!c.overloaded() && c.in.position() > 0) {
+			dispatch(c);
+		} else {
+			interest(c);
+		}
+	}
+
+	/**
+	 * Wait for what a connection can do: read unless it is overloaded, write
+	 * if a response waits.
+	 */
+	private void interest(Connection c) {
+		int ops = 0;
+		if (!c.overloaded()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (!c.out.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		c.key.interestOps(ops);
+	}
+
+	private void respond(Connection c, ByteBuffer response) {
+		c.queued.addAndGet(response.remaining());
+		c.out.add(response);
+		c.running.decrementAndGet();
+		writable.add(c);
+		selector.wakeup();
+	}
+
+	private void write(Connection c) throws IOException {
+		ByteBuffer head;
+		while ((head = c.out.peek()) != null) {
+			c.channel.write(head);
+			if (head.hasRemaining()) {
+				return;
+			}
+			c.out.poll();
+			c.queued.addAndGet(-head.limit());
+		}
+		resume(c);
+	}
+
+	private static ByteBuffer error(int id, String message) {
+		BackOfficeProtocol.Frame response = new BackOfficeProtocol.Frame(id,
+				BackOfficeProtocol.ERROR);
+		response.putString(message);
+		return response.finish();
+	}
+
+	/**
+	 * Run one request.
+	 * 
+	 * @return the response frame.
+	 */
+	private ByteBuffer handle(Connection c, ByteBuffer request) {
+		int id = request.getInt();
+		byte code = request.get();
+		BackOfficeProtocol.Frame response = new BackOfficeProtocol.Frame(id,
+				BackOfficeProtocol.OK);
+		try {
+			switch (code) {
+			case BackOfficeProtocol.REGISTER_CUSTOMER:
+				response.putCustomer(office.registerCustomer(BackOfficeProtocol
+						.getString(request)));
+				break;
+			case BackOfficeProtocol.REGISTER_CUSTOMERS: {
+				int count = request.getInt();
+				List<String> names = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					names.add(BackOfficeProtocol.getString(request));
+				}
+				response.putCustomers(office.registerCustomers(names));
+				break;
+			}
+			case BackOfficeProtocol.GET_KEY_PAIR: {
+				byte[] token = keyToken;
+				if (token == null
+						|| !MessageDigest.isEqual(token, BackOfficeProtocol
+								.getBytes(request))) {
+					throw new BackOfficeException(
+							"Not allowed to read the key pair.");
+				}
+				KeyPair keys = office.getSupermarketKeyPair();
+				response.putBytes(keys.getPublic().getEncoded());
+				response.putBytes(keys.getPrivate().getEncoded());
+				break;
+			}
+			case BackOfficeProtocol.ISSUE_CARD: {
+				Customer customer = office.getCustomerByID(request.getInt());
+				office.issueCard(customer);
+				response.putCustomer(customer);
+				break;
+			}
+			case BackOfficeProtocol.DELETE_CARD:
+				office.deleteCard(request.getInt());
+				break;
+			case BackOfficeProtocol.DELETE_CUSTOMER:
+				office.deleteCustomer(request.getInt());
+				break;
+			case BackOfficeProtocol.GET_CARD_ID:
+				response.putInt(office.getCardID(office.getCustomerByID(request
+						.getInt())));
+				break;
+			case BackOfficeProtocol.GET_CREDITS:
+				response.putShort(office.getCredits(office
+						.getCustomerByID(request.getInt())));
+				break;
+			case BackOfficeProtocol.RECORD_TRANSACTIONS: {
+				int count = request.getInt();
+				List<CreditTransaction> batch = new ArrayList<CreditTransaction>(
+						count);
+				for (int i = 0; i < count; i++) {
+					batch.add(CreditTransaction.readFrom(request));
+				}
+				response.putInt(office.recordTransactions(batch));
+				break;
+			}
+			case BackOfficeProtocol.GET_CUSTOMER_BY_ID:
+				response.putCustomer(office.getCustomerByID(request.getInt()));
+				break;
+			case BackOfficeProtocol.GET_CUSTOMER_BY_NAME: {
+				Customer customer = office.getCustomerByName(BackOfficeProtocol
+						.getString(request));
+				response.putByte((byte) (customer == null ? 0 : 1));
+				if (customer != null) {
+					response.putCustomer(customer);
+				}
+				break;
+			}
+			case BackOfficeProtocol.GET_CUSTOMERS_BY_NAME: {
+				String prefix = BackOfficeProtocol.getString(request);
+				int offset = request.getInt();
+				int limit = request.getInt();
+				response.putCustomers(office.getCustomersByName(prefix, offset,
+						limit));
+				break;
+			}
+			case BackOfficeProtocol.GET_CUSTOMER_BY_CARD:
+				response.putCustomer(office.getCustomerByCard(request.getInt()));
+				break;
+			case BackOfficeProtocol.OPEN_CURSOR:
+				response.putInt(openCursor(c, office.streamCustomers(null, Math
+						.min(request.getInt(), BackOfficeProtocol.MAX_PAGE))));
+				break;
+			case BackOfficeProtocol.NEXT_PAGE: {
+				int cursorID = request.getInt();
+				Cursor cursor = c.cursors.get(cursorID);
+				if (cursor == null) {
+					throw new BackOfficeException("Unknown cursor.");
+				}
+				List<Customer> page = cursor.next();
+				boolean more = cursor.hasNext();
+				if (!more) {
+					closeCursor(c, cursorID);
+				}
+				response.putByte((byte) (more ? 1 : 0));
+				response.putCustomers(page);
+				break;
+			}
+			case BackOfficeProtocol.CLOSE_CURSOR:
+				closeCursor(c, request.getInt());
+				break;
+			case BackOfficeProtocol.SAVE:
+				office.save();
+				break;
+			case BackOfficeProtocol.GET_STATISTICS:
+				response.putStatistics(office.getStatistics());
+				break;
+			default:
+				throw new BackOfficeException("Unknown request " + code);
+			}
+		} catch (Exception e) {
+			return error(id, e.getMessage() == null ? e.toString() : e
+					.getMessage());
+		}
+		return response.finish();
+	}
+
+	/**
+	 * Start the back-office server. The back office is selected with the
+	 * same system properties as the office terminal uses; the port is
+	 * <code>backoffice.port</code>. The supermarket key pair is shared with
+	 * office terminals run by the same user, through the token file named by
+	 * <code>backoffice.token</code> (by default in the working directory),
+	 * unless <code>backoffice.keys</code> is <code>private</code>. A simulator is backed up to the directory
+	 * <code>backoffice.backup</code>, if set, every
+	 * <code>backoffice.backup.interval</code> seconds (default 3600).
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Security.addProvider(new BouncyCastleProvider());
+		try {
+			BackOffice office = OfficeTerminal.createStore();
+			int port = Integer.getInteger("backoffice.port",
+					BackOfficeProtocol.DEFAULT_PORT);
+			BackOfficeServer server = new BackOfficeServer(office, port,
+					Runtime.getRuntime().availableProcessors() * 2);
+			if (!"private".equals(System.getProperty("backoffice.keys"))) {
+				server.shareKeys(new File(System.getProperty(
+						"backoffice.token",
+						BackOfficeProtocol.DEFAULT_TOKEN_FILE)));
+			}
+			String backups = System.getProperty("backoffice.backup");
+			if (backups != null && office instanceof BackOfficeSimulator) {
+				new StoreBackup((BackOfficeSimulator) office, new File(backups))
+						.schedule(Long.getLong("backoffice.backup.interval",
+								3600));
+			}
+			System.out.println("Back office listening on port "
+					+ server.getPort());
+			server.run();
+		} catch (BackOfficeException e) {
+			System.err.println("Failed to create back office: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Back office server failed: " + e.getMessage());
+		}
+	}
+}
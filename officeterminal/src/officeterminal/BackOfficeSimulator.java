@@ -1,58 +1,118 @@
 package officeterminal;
 
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.security.KeyPair;
 import java.security.spec.InvalidKeySpecException;
 
+import common.CreditTransaction;
 import common.KeyManager;
 
 /**
- * Simulates the BackOffice.
+ * Simulates the BackOffice. Safe to share between several terminal threads:
+ * lookups are lock-free, and updates that touch both a customer and its card
+ * hold the lock stripe of that customer. Reports read snapshots of the
+ * customer table (see {@link CustomerVersions}), so they neither block
+ * updates nor see half of them.
+ * Customer names are kept as bytes in a {@link NameArena}. Changed customers
+ * and cards are marked for incremental backups (see {@link StoreBackup}).
+ * 
+ * Every change is appended to a journal next to the file, so a change costs a
+ * few records rather than a rewrite. Once the journal has grown as large as
+ * the file, or on {@link #save()}, the file is written again. Writers carry on
+ * meanwhile: the journal is first moved aside to
+ * <code>.journal.</code><i>n</i> and only deleted once the new file is in
+ * place. On opening, the moved journals and then the journal are applied to
+ * the file, in that order.
  * 
  * @author Geert Smelt
  * @author Robin Oostrum
  */
 class BackOfficeSimulator implements BackOffice {
-	private Hashtable<Integer, Customer> customers;
-	private Hashtable<Integer, Card> cards;
+	private IntHashMap<Customer> customers;
+	private IntHashMap<Card> cards;
+	private NameArena names = new NameArena();
+	private CustomerNameIndex nameIndex = new CustomerNameIndex();
+	private LockStripes locks = new LockStripes(64);
+	private CustomerVersions versions;
+	private LiveStatistics statistics = new LiveStatistics();
+	private ChangedIds changedCustomers = new ChangedIds();
+	private ChangedIds changedCards = new ChangedIds();
+	/** Whether every change since the last backup was marked */
+	private volatile boolean backedUp;
 	private KeyManager keymanager;
 	private KeyPair supermarketKeyPair;
-	private int lastCustomerId = 0;
-	private int lastCardId = 0;
+	private IdAllocator customerIds;
+	private IdAllocator cardIds;
+	private TransactionLedger ledger;
+	private File dbFile;
+	private File journalFile;
+	private FileChannel journalChannel;
+	private BackOfficeCodec.Writer journal;
+	/** Held while appending to the journal or moving it aside */
+	private final Object journalLock = new Object();
+	/** Whether a writer is folding the journal into the file */
+	private AtomicBoolean folding = new AtomicBoolean();
+	/** Told about every change, or <code>null</code> */
+	private volatile MutationListener listener;
 	private static final String keyExtension = "supermarket";
+	/** Size below which the journal is never folded into the file */
+	private static final long FOLD_SIZE = 1 << 20;
 
 	public BackOfficeSimulator(String path) throws BackOfficeException {
+		this(path, "backoffice.db", "ledger.log", true);
+	}
+
+	/**
+	 * Open a back office that keeps its state in <code>dbPath</code> and
+	 * its transactions in <code>ledgerPath</code>, starting out empty when
+	 * there is no state yet.
+	 */
+	BackOfficeSimulator(String path, String dbPath, String ledgerPath)
+			throws BackOfficeException {
+		this(path, dbPath, ledgerPath, false);
+	}
+
+	private BackOfficeSimulator(String path, String dbPath, String ledgerPath,
+			boolean seed) throws BackOfficeException {
 		keymanager = new KeyManager(path);
-		boolean backofficeLoaded = false;
+		dbFile = new File(dbPath);
+		journalFile = new File(dbPath + ".journal");
+		boolean backofficeLoaded = dbFile.exists();
 
-		if (new File("backoffice.db").exists()) {
+		// A file that cannot be read is left alone rather than replaced.
+		if (backofficeLoaded) {
 			try {
 				loadBackOffice();
-				backofficeLoaded = true;
 			} catch (IOException e) {
-				System.err.println("Failed to load backoffice simulator data: "
-						+ e.getMessage());
+				throw new BackOfficeException("Failed to load " + dbFile
+						+ ", it was left as it is", e);
 			} catch (ClassNotFoundException e) {
-				System.err.println("Failed to load backoffice simulator data: "
-						+ e.getMessage());
-			} catch (BackOfficeException e) {
-				throw e;
+				throw new BackOfficeException("Failed to load " + dbFile
+						+ ", it was left as it is", e);
 			}
-		}
-
-		if (!backofficeLoaded) {
+		} else {
 			System.out
-					.println("Loading information failed. Generating new information...");
+					.println("No back office data found. Generating new information...");
 			try {
 				if (new File(path + "privkey_rsa.supermarket").exists()) {
 					System.out
@@ -74,39 +134,438 @@ class BackOfficeSimulator implements BackOffice {
 						"Failed to generate or load supermarket key: "
 								+ e.getMessage());
 			}
-			customers = new Hashtable<Integer, Customer>();
-			cards = new Hashtable<Integer, Card>();
-			customers.put(0, new Customer("Robin Oostrum", 0));
-			lastCustomerId = 0;
-			lastCardId = 0;
-			remoteSave();
+			customers = new IntHashMap<Customer>();
+			cards = new IntHashMap<Card>();
+			if (seed) {
+				customers.put(0, new Customer("Robin Oostrum", 0));
+			}
+			customerIds = new IdAllocator(0);
+			cardIds = new IdAllocator(0);
+			// A new store writes its file straight away, so journals without
+			// a file were left by a store that was removed.
+			journalFile.delete();
+			for (File old : rotatedJournals()) {
+				old.delete();
+			}
 		}
 
-		System.out.println("Loaded information on " + lastCustomerId
-				+ " customers, and " + lastCardId + " cards.");
+		try {
+			openJournal();
+			if (!backofficeLoaded) {
+				save();
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Failed to open the journal of "
+					+ dbFile, e);
+		}
+
+		versions = new CustomerVersions(customers);
+		for (Customer c : customers) {
+			names.add(c);
+			nameIndex.add(c);
+			statistics.customerAdded();
+		}
+		for (Card card : cards) {
+			names.add(card.getCustomer());
+			statistics.cardChanged(card.getID(), card.getCustomerID(), card
+					.getCredits());
+		}
+
+		try {
+			ledger = new TransactionLedger(new File(ledgerPath));
+		} catch (IOException e) {
+			throw new BackOfficeException("Failed to open transaction ledger", e);
+		}
+
+		System.out.println("Loaded information on " + customers.size()
+				+ " customers, and " + cards.size() + " cards.");
 	}
 
+	/**
+	 * Write out the changes logged so far, and fold them into the file once
+	 * the journal has grown as large as the file. Only one writer folds at a
+	 * time; the others carry on.
+	 */
 	private void remoteSave() throws BackOfficeException {
 		try {
-			save();
+			long size;
+			synchronized (journalLock) {
+				journal.flush();
+				size = journalChannel.size();
+			}
+			if (size > Math.max(FOLD_SIZE, dbFile.length())
+					&& folding.compareAndSet(false, true)) {
+				try {
+					save();
+				} finally {
+					folding.set(false);
+				}
+			}
 		} catch (IOException e) {
 			throw new BackOfficeException("Saving backoffice state failed", e);
 		}
 	}
 
-	public void save() throws IOException {
-		FileOutputStream fos = new FileOutputStream("backoffice.db");
-		ObjectOutputStream out = new ObjectOutputStream(fos);
-		System.out.println("Saving information on " + lastCustomerId
-				+ " customers, and " + lastCardId + " cards.");
-		out.writeInt(lastCustomerId);
-		out.writeInt(lastCardId);
-		out.writeObject(customers);
-		out.writeObject(cards);
+	/**
+	 * Write the back-office state in the {@link BackOfficeCodec} format. The
+	 * journal is moved aside first, so changes made while writing end up in
+	 * the new journal. The file is written next to the old one and then moved
+	 * over it, and only then are the moved journals deleted.
+	 */
+	@Override
+	public synchronized void save() throws IOException {
+		System.out.println("Saving information on " + customers.size()
+				+ " customers, and " + cards.size() + " cards.");
+		int rotated = rotateJournal();
+		File tmp = new File(dbFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			BackOfficeCodec.Writer out = new BackOfficeCodec.Writer(
+					fos.getChannel(), customerIds.last(), cardIds.last());
+			BitSet written = new BitSet();
+			for (Customer c : customers) {
+				out.writeCustomer(c);
+				written.set(c.getID());
+			}
+			for (Card card : cards) {
+				writeCard(out, card, written);
+			}
+			out.finish();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(dbFile)) {
+			throw new IOException("Could not replace " + dbFile);
+		}
+		for (File old : rotatedJournals()) {
+			if (journalNumber(old) <= rotated) {
+				old.delete();
+			}
+		}
+	}
+
+	/**
+	 * Write a card, after its owner if that is not one of the customers
+	 * written: a former customer, or one added after the customers were
+	 * written.
+	 * 
+	 * @param written
+	 *            the ids of the customers written, or <code>null</code> if
+	 *            all current customers count as written
+	 */
+	private void writeCard(BackOfficeCodec.Writer out, Card card,
+			BitSet written) throws IOException {
+		Customer owner = card.getCustomer();
+		if (written == null ? customers.get(owner.getID()) != owner
+				: !written.get(owner.getID())) {
+			out.writeDetached(owner);
+		}
+		out.writeCard(card);
+	}
+
+	/**
+	 * @return the journals moved aside by checkpoints that did not finish, in
+	 *         the order they were moved.
+	 */
+	private List<File> rotatedJournals() {
+		List<File> rotated = new ArrayList<File>();
+		File[] siblings = journalFile.getAbsoluteFile().getParentFile()
+				.listFiles();
+		for (File f : siblings == null ? new File[0] : siblings) {
+			if (journalNumber(f) > 0) {
+				rotated.add(f);
+			}
+		}
+		java.util.Collections.sort(rotated, new java.util.Comparator<File>() {
+			public int compare(File a, File b) {
+				return journalNumber(a) - journalNumber(b);
+			}
+		});
+		return rotated;
+	}
+
+	/**
+	 * @return the number <i>n</i> of a journal moved aside to
+	 *         <code>.journal.</code><i>n</i>, or 0 for any other file.
+	 */
+	private int journalNumber(File f) {
+		String prefix = journalFile.getName() + ".";
+		String suffix = f.getName().substring(
+				Math.min(prefix.length(), f.getName().length()));
+		if (!f.getName().startsWith(prefix) || !suffix.matches("[0-9]{1,9}")) {
+			return 0;
+		}
+		return Integer.parseInt(suffix);
+	}
+
+	/**
+	 * Move the journal aside and start a new one.
+	 * 
+	 * @return the number the journal was moved aside under.
+	 */
+	private int rotateJournal() throws IOException {
+		List<File> rotated = rotatedJournals();
+		int number = rotated.isEmpty() ? 1 : journalNumber(rotated
+				.get(rotated.size() - 1)) + 1;
+		synchronized (journalLock) {
+			journal.flush();
+			journalChannel.force(false);
+			journalChannel.close();
+			if (!journalFile.renameTo(new File(journalFile.getPath() + "."
+					+ number))) {
+				throw new IOException("Could not move " + journalFile + " aside");
+			}
+			journalChannel = new RandomAccessFile(journalFile, "rw")
+					.getChannel();
+			startJournal();
+		}
+		return number;
+	}
+
+	/**
+	 * Apply the journals moved aside and the journal to what was loaded from
+	 * the file, and go on appending to the journal.
+	 */
+	private void openJournal() throws IOException {
+		Map<Integer, Customer> former = new HashMap<Integer, Customer>();
+		for (Card card : cards) {
+			Customer owner = card.getCustomer();
+			if (customers.get(owner.getID()) != owner) {
+				former.put(owner.getID(), owner);
+			}
+		}
+		for (File rotated : rotatedJournals()) {
+			replay(rotated, former);
+		}
+		long end = journalFile.exists() ? replay(journalFile, former) : 0;
+		journalChannel = new RandomAccessFile(journalFile, "rw").getChannel();
+		if (end == 0) {
+			startJournal();
+		} else {
+			journalChannel.truncate(end);
+			journalChannel.position(end);
+			journal = BackOfficeCodec.Writer.append(journalChannel);
+		}
+	}
+
+	private void startJournal() throws IOException {
+		journalChannel.truncate(0);
+		journalChannel.position(0);
+		journal = BackOfficeCodec.Writer.stream(journalChannel, customerIds
+				.last(), cardIds.last());
+		journal.flush();
+	}
+
+	/**
+	 * Apply the changes in a journal, up to the first incomplete record a
+	 * crash may have left. A customer record holds the whole customer, and
+	 * the record of a new card follows that of its owner. Applying a journal
+	 * to a file written after it leaves what the later journals change.
+	 * 
+	 * @param former
+	 *            owners of cards that are no longer customers, by id
+	 * @return the length of the complete part of the journal, or 0 if not
+	 *         even its header is complete.
+	 */
+	private long replay(File file, Map<Integer, Customer> former)
+			throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			BackOfficeCodec.Reader in;
+			try {
+				in = new BackOfficeCodec.Reader(fis.getChannel());
+			} catch (BufferUnderflowException e) {
+				return 0;
+			}
+			customerIds.reserve(in.lastCustomerId());
+			cardIds.reserve(in.lastCardId());
+			Map<Integer, Integer> links = new HashMap<Integer, Integer>();
+			while (true) {
+				byte type;
+				try {
+					type = in.next();
+				} catch (EOFException e) {
+					break;
+				} catch (BufferUnderflowException e) {
+					break;
+				}
+				if (type == BackOfficeCodec.END) {
+					break;
+				}
+				int id = in.id();
+				if (type == BackOfficeCodec.CUSTOMER
+						|| type == BackOfficeCodec.DETACHED) {
+					Customer c = customers.get(id);
+					if (c == null) {
+						c = former.get(id);
+					}
+					if (c == null) {
+						c = new Customer(in.name(), id);
+					}
+					if (type == BackOfficeCodec.CUSTOMER) {
+						former.remove(id);
+						customers.put(id, c);
+						customerIds.reserve(id);
+					} else if (customers.get(id) != c) {
+						former.put(id, c);
+					}
+					links.put(id, in.link());
+				} else if (type == BackOfficeCodec.CARD) {
+					Card card = cards.get(id);
+					Customer owner = customers.get(in.link());
+					if (owner == null) {
+						owner = former.get(in.link());
+					}
+					if (card != null) {
+						card.setCredits(in.credits());
+					} else if (owner != null) {
+						cards.put(id, new Card(id, in.credits(), owner));
+					}
+					cardIds.reserve(id);
+				} else if (type == BackOfficeCodec.REMOVED) {
+					if (in.link() == BackOfficeCodec.CUSTOMER) {
+						Customer c = customers.remove(id);
+						if (c != null) {
+							former.put(id, c);
+						}
+					} else {
+						cards.remove(id);
+					}
+				}
+			}
+			for (Map.Entry<Integer, Integer> e : links.entrySet()) {
+				Customer c = customers.get(e.getKey());
+				if (c == null) {
+					c = former.get(e.getKey());
+				}
+				if (c != null) {
+					c.setCard(e.getValue() == 0 ? null : cards.get(e.getValue()));
+				}
+			}
+			return in.offset();
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Append a changed customer and its current card to the journal. Call
+	 * under the lock stripe of the customer, so the journal has the changes
+	 * of a customer in the order they were made.
+	 */
+	private void log(Customer c) throws BackOfficeException {
+		try {
+			synchronized (journalLock) {
+				if (customers.get(c.getID()) == c) {
+					journal.writeCustomer(c);
+				} else {
+					journal.writeDetached(c);
+				}
+				if (c.getCard() != null) {
+					journal.writeCard(c.getCard());
+				}
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+	}
+
+	/**
+	 * Append a card whose owner is already in the journal or the file, or
+	 * that is not the current card of its owner, with its owner if that is
+	 * a former customer.
+	 */
+	private void logCard(Card card) throws BackOfficeException {
+		try {
+			synchronized (journalLock) {
+				writeCard(journal, card, null);
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+	}
+
+	/**
+	 * Append the removal of a customer or card to the journal.
+	 */
+	private void logRemoved(byte type, int id) throws BackOfficeException {
+		try {
+			synchronized (journalLock) {
+				journal.writeRemoved(type, id);
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+	}
+
+	/**
+	 * Write a backup in the {@link BackOfficeCodec} format, without index:
+	 * every customer and card, or only those changed since the last backup
+	 * with a removal record for those that are gone. Changes made while
+	 * writing are in the next backup as well. Only one backup may be written
+	 * at a time.
+	 * 
+	 * @return the number of bytes written.
+	 */
+	long writeBackup(WritableByteChannel channel, boolean full)
+			throws IOException {
+		if (!full && !backedUp) {
+			throw new IllegalStateException("Changes were not tracked.");
+		}
+		backedUp = false;
+		BitSet customerIds = changedCustomers.drain();
+		BitSet cardIds = changedCards.drain();
+		BackOfficeCodec.Writer out = BackOfficeCodec.Writer.stream(channel,
+				this.customerIds.last(), this.cardIds.last());
+		if (full) {
+			BitSet written = new BitSet();
+			for (Customer c : customers) {
+				out.writeCustomer(c);
+				written.set(c.getID());
+			}
+			for (Card card : cards) {
+				writeCard(out, card, written);
+			}
+		} else {
+			for (int id = customerIds.nextSetBit(0); id >= 0; id = customerIds
+					.nextSetBit(id + 1)) {
+				Customer c = customers.get(id);
+				if (c != null) {
+					out.writeCustomer(c);
+				} else {
+					out.writeRemoved(BackOfficeCodec.CUSTOMER, id);
+				}
+			}
+			for (int id = cardIds.nextSetBit(0); id >= 0; id = cardIds
+					.nextSetBit(id + 1)) {
+				Card card = cards.get(id);
+				if (card != null) {
+					writeCard(out, card, null);
+				} else {
+					out.writeRemoved(BackOfficeCodec.CARD, id);
+				}
+			}
+		}
+		out.finish();
+		backedUp = true;
+		return out.size();
+	}
+
+	/**
+	 * @return whether the next backup can hold only the changes, because
+	 *         this store wrote the last one and it succeeded.
+	 */
+	boolean tracksChanges() {
+		return backedUp;
+	}
+
+	/**
+	 * Make the next backup a full one, when the last one was not kept.
+	 */
+	void forgetBackup() {
+		backedUp = false;
 	}
 
-	// If this fails, we need to exit anyway, so we suppress these warnings.
-	@SuppressWarnings("unchecked")
 	private void loadBackOffice() throws IOException, ClassNotFoundException,
 			BackOfficeException {
 		try {
@@ -119,12 +578,90 @@ class BackOfficeSimulator implements BackOffice {
 			throw new BackOfficeException("Failed to load supermarket key", e);
 		}
 
-		FileInputStream fis = new FileInputStream("backoffice.db");
+		FileInputStream fis = new FileInputStream(dbFile);
+		try {
+			FileChannel channel = fis.getChannel();
+			ByteBuffer head = ByteBuffer.allocate(4);
+			channel.read(head);
+			head.flip();
+			channel.position(0);
+			if (BackOfficeCodec.isCodecFile(head)) {
+				loadRecords(channel);
+			} else {
+				loadSerialized(fis);
+			}
+		} finally {
+			fis.close();
+		}
+
+		// Older files were written after ids had been handed back on delete.
+		for (Customer c : customers) {
+			customerIds.reserve(c.getID());
+		}
+		for (Card card : cards) {
+			cardIds.reserve(card.getID());
+		}
+	}
+
+	private void loadRecords(FileChannel channel) throws IOException {
+		BackOfficeCodec.Reader in = new BackOfficeCodec.Reader(channel);
+		customerIds = new IdAllocator(in.lastCustomerId());
+		cardIds = new IdAllocator(in.lastCardId());
+		customers = new IntHashMap<Customer>();
+		cards = new IntHashMap<Card>();
+		Map<Integer, Customer> detached = new HashMap<Integer, Customer>();
+		Map<Integer, Integer> currentCards = new HashMap<Integer, Integer>();
+
+		byte type;
+		while ((type = in.next()) != BackOfficeCodec.END) {
+			if (type == BackOfficeCodec.CARD) {
+				Customer owner = customers.get(in.link());
+				if (owner == null) {
+					owner = detached.get(in.link());
+				}
+				if (owner == null) {
+					throw new IOException("Card " + in.id()
+							+ " refers to unknown customer " + in.link());
+				}
+				Card card = new Card(in.id(), in.credits(), owner);
+				cards.put(card.getID(), card);
+				Integer current = currentCards.get(owner.getID());
+				if (current != null && current == card.getID()) {
+					owner.setCard(card);
+				}
+			} else {
+				Customer c = new Customer(in.name(), in.id());
+				if (type == BackOfficeCodec.CUSTOMER) {
+					customers.put(c.getID(), c);
+				} else {
+					detached.put(c.getID(), c);
+				}
+				if (in.link() != 0) {
+					currentCards.put(c.getID(), in.link());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a file written with Java serialization, as done before the
+	 * {@link BackOfficeCodec} format existed. The next save converts it.
+	 */
+	// If this fails, we need to exit anyway, so we suppress these warnings.
+	@SuppressWarnings("unchecked")
+	private void loadSerialized(FileInputStream fis) throws IOException,
+			ClassNotFoundException {
 		ObjectInputStream in = new ObjectInputStream(fis);
-		lastCustomerId = in.readInt();
-		lastCardId = in.readInt();
-		customers = (Hashtable<Integer, Customer>) in.readObject();
-		cards = (Hashtable<Integer, Card>) in.readObject();
+		customerIds = new IdAllocator(in.readInt());
+		cardIds = new IdAllocator(in.readInt());
+		customers = new IntHashMap<Customer>();
+		for (Customer c : ((Map<Integer, Customer>) in.readObject()).values()) {
+			customers.put(c.getID(), c);
+		}
+		cards = new IntHashMap<Card>();
+		for (Card card : ((Map<Integer, Card>) in.readObject()).values()) {
+			cards.put(card.getID(), card);
+		}
 	}
 
 	@Override
@@ -139,7 +676,11 @@ class BackOfficeSimulator implements BackOffice {
 
 	@Override
 	public Customer getCustomerByCard(int cardID) throws BackOfficeException {
-		return cards.get(cardID).getCustomer();
+		Card card = cards.get(cardID);
+		if (card == null) {
+			throw new BackOfficeException("Unknown card.");
+		}
+		return card.getCustomer();
 	}
 
 	@Override
@@ -153,24 +694,57 @@ class BackOfficeSimulator implements BackOffice {
 
 	@Override
 	public Customer getCustomerByName(String name) throws BackOfficeException {
-		Enumeration<Integer> keys = customers.keys();
-		while (keys.hasMoreElements()) {
-			int key = keys.nextElement();
-			Customer cust = customers.get(key);
-			if (cust.getName().equals(name)) {
-				return cust;
+		int id = nameIndex.first(name);
+		return id < 0 ? null : customers.get(id);
+	}
+
+	@Override
+	public List<Customer> getCustomersByName(String prefix, int offset,
+			int limit) throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>();
+		for (int id : nameIndex.prefix(prefix, offset, limit)) {
+			Customer c = customers.get(id);
+			if (c != null) {
+				list.add(c.clone());
 			}
 		}
-		return null;
+		return list;
 	}
 
 	@Override
 	public void issueCard(Customer client) throws BackOfficeException {
-		int cardId = ++lastCardId;
+		issueCard(client, cardIds.next());
+	}
 
-		Card newCard = new Card(cardId, (short) 0, client);
-		client.setCard(newCard);
-		cards.put(cardId, newCard);
+	/**
+	 * Issue a card with an id handed out elsewhere.
+	 */
+	void issueCard(Customer client, int cardId) throws BackOfficeException {
+		cardIds.reserve(cardId);
+		ReentrantLock lock = locks.get(client.getID());
+		lock.lock();
+		try {
+			Customer stored = customers.get(client.getID());
+			if (stored == null) {
+				throw new BackOfficeException("Unkown Customer.");
+			}
+			Card newCard = new Card(cardId, (short) 0, stored);
+			cards.put(newCard.getID(), newCard);
+			keep(stored);
+			stored.setCard(newCard);
+			versions.after(stored.getID());
+			client.setCard(newCard);
+			statistics.cardChanged(cardId, stored.getID(), (short) 0);
+			log(stored);
+			MutationListener l = listener;
+			if (l != null) {
+				l.mutated(MutationLog.card(cardId, stored.getID()));
+			}
+		} finally {
+			lock.unlock();
+		}
+		changedCards.mark(cardId);
+		changedCustomers.mark(client.getID());
 		remoteSave();
 	}
 
@@ -187,9 +761,31 @@ class BackOfficeSimulator implements BackOffice {
 			return;
 		}
 		Customer cust = card.getCustomer();
-		cust.setCard(null);
-		cards.remove(cardId);
-		--lastCardId;
+		ReentrantLock lock = locks.get(cust.getID());
+		lock.lock();
+		try {
+			if (cards.remove(cardId) == null) {
+				return;
+			}
+			statistics.cardRemoved(cardId);
+			logRemoved(BackOfficeCodec.CARD, cardId);
+			MutationListener l = listener;
+			if (l != null) {
+				l.mutated(MutationLog.deletion(MutationLog.DELETE_CARD, cardId));
+			}
+			if (cust.getCard() == card) {
+				keep(cust);
+				cust.setCard(null);
+				versions.after(cust.getID());
+				log(cust);
+			}
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+		changedCards.mark(cardId);
+		changedCustomers.mark(cust.getID());
 
 		try {
 			remoteSave();
@@ -202,34 +798,440 @@ class BackOfficeSimulator implements BackOffice {
 	 * Register a new customer, based on name and date of birth
 	 */
 	public Customer registerCustomer(String cusName) throws BackOfficeException {
-		int customerId = ++lastCustomerId;
-		Customer newCustomer = new Customer(cusName, customerId);
-		customers.put(customerId, newCustomer);
+		Customer newCustomer = addCustomer(cusName, customerIds.next(),
+				cardIds.next());
 		remoteSave();
+		return newCustomer;
+	}
 
-		issueCard(newCustomer);
-		
+	/**
+	 * Register many customers, each with a new card, and save once at the end.
+	 * Ids are reserved as one block up front.
+	 */
+	@Override
+	public List<Customer> registerCustomers(Collection<String> names)
+			throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>(names.size());
+		if (names.isEmpty()) {
+			return list;
+		}
+		int customerId = customerIds.nextBlock(names.size());
+		int cardId = cardIds.nextBlock(names.size());
+		for (String name : names) {
+			list.add(addCustomer(name, customerId++, cardId++));
+		}
+		remoteSave();
+		return list;
+	}
+
+	/**
+	 * Create a customer together with its first card. The customer is put in
+	 * place before the card, so that whoever finds the card also finds its
+	 * owner.
+	 */
+	private Customer addCustomer(String cusName, int customerId, int cardId)
+			throws BackOfficeException {
+		Customer newCustomer = new Customer(cusName, customerId);
+		names.add(newCustomer);
+		Card newCard = new Card(cardId, (short) 0, newCustomer);
+		newCustomer.setCard(newCard);
+		ReentrantLock lock = locks.get(customerId);
+		lock.lock();
+		try {
+			versions.before(customerId, null);
+			customers.put(customerId, newCustomer);
+			cards.put(cardId, newCard);
+			versions.after(customerId);
+			statistics.customerAdded();
+			statistics.cardChanged(cardId, customerId, (short) 0);
+			log(newCustomer);
+			MutationListener l = listener;
+			if (l != null) {
+				l.mutated(MutationLog.customer(newCustomer));
+			}
+		} finally {
+			lock.unlock();
+		}
+		nameIndex.add(newCustomer);
+		changedCards.mark(cardId);
+		changedCustomers.mark(customerId);
 		return newCustomer;
 	}
 
+	/**
+	 * Keep the state of a customer for open snapshots before it is changed,
+	 * unless it is a former customer. Call under the lock stripe of the
+	 * customer, and {@link CustomerVersions#after(int)} once it is changed.
+	 */
+	private void keep(Customer c) {
+		if (customers.get(c.getID()) == c) {
+			versions.before(c.getID(), c);
+		}
+	}
+
+	/**
+	 * Reclaim the names of removed customers once they take up more room than
+	 * the names in use.
+	 */
+	private void compactNames() {
+		if (names.wasteful()) {
+			names.compact(customers, cards);
+		}
+	}
+
+	/**
+	 * @return the highest customer id handed out so far.
+	 */
+	int lastCustomerId() {
+		return customerIds.last();
+	}
+
+	/**
+	 * @return the highest card id handed out so far.
+	 */
+	int lastCardId() {
+		return cardIds.last();
+	}
+
+	/**
+	 * @return the id of the owner of every card of a current customer, by card
+	 *         id.
+	 */
+	Map<Integer, Integer> cardOwners() {
+		Map<Integer, Integer> owners = new HashMap<Integer, Integer>();
+		for (Card card : cards) {
+			if (customers.get(card.getCustomerID()) != null) {
+				owners.put(card.getID(), card.getCustomerID());
+			}
+		}
+		return owners;
+	}
+
+	/**
+	 * Take over customers and cards whose ids were handed out elsewhere, and
+	 * save. A customer or card with the id of an existing one replaces it.
+	 * Cards of customers that are not in <code>customers</code> keep their
+	 * owner as a former customer.
+	 */
+	void importCustomers(Collection<Customer> customers, Collection<Card> cards)
+			throws BackOfficeException {
+		importCustomers(customers, cards, null);
+	}
+
+	/**
+	 * Import customers and cards together with the balance counters of the
+	 * cards, or <code>null</code>. The balances of the cards already include
+	 * what the counters hold.
+	 */
+	void importCustomers(Collection<Customer> customers,
+			Collection<Card> cards, CreditCounters counters)
+			throws BackOfficeException {
+		if (counters != null) {
+			try {
+				ledger.merge(counters);
+			} catch (IOException e) {
+				throw new BackOfficeException("Merging balances failed", e);
+			}
+		}
+		for (Customer c : customers) {
+			customerIds.reserve(c.getID());
+			names.add(c);
+			Customer old;
+			ReentrantLock lock = locks.get(c.getID());
+			lock.lock();
+			try {
+				versions.before(c.getID(), this.customers.get(c.getID()));
+				old = this.customers.put(c.getID(), c);
+				versions.after(c.getID());
+				if (old == null) {
+					statistics.customerAdded();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (old != null) {
+				nameIndex.remove(old);
+				names.release(old);
+			}
+			nameIndex.add(c);
+			changedCustomers.mark(c.getID());
+		}
+		for (Card card : cards) {
+			cardIds.reserve(card.getID());
+			names.add(card.getCustomer());
+			this.cards.put(card.getID(), card);
+			statistics.cardChanged(card.getID(), card.getCustomerID(), card
+					.getCredits());
+			changedCards.mark(card.getID());
+		}
+		try {
+			synchronized (journalLock) {
+				for (Customer c : customers) {
+					journal.writeCustomer(c);
+				}
+				for (Card card : cards) {
+					writeCard(journal, card, null);
+				}
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+		compactNames();
+		remoteSave();
+	}
+
+	/**
+	 * Collect the customers accepted by <code>filter</code>, and every card
+	 * whose owner, current or former, is accepted by it.
+	 */
+	void collectCustomers(CustomerFilter filter, List<Customer> customers,
+			List<Card> cards) {
+		for (Customer c : this.customers) {
+			if (filter.accept(c)) {
+				customers.add(c);
+			}
+		}
+		for (Card card : this.cards) {
+			if (filter.accept(card.getCustomer())) {
+				cards.add(card);
+			}
+		}
+	}
+
+	/**
+	 * Forget customers and cards that were moved elsewhere, and save.
+	 */
+	void dropCustomers(Collection<Customer> customers, Collection<Card> cards)
+			throws BackOfficeException {
+		for (Customer c : customers) {
+			boolean removed;
+			ReentrantLock lock = locks.get(c.getID());
+			lock.lock();
+			try {
+				removed = this.customers.get(c.getID()) == c;
+				if (removed) {
+					versions.before(c.getID(), c);
+					this.customers.remove(c.getID(), c);
+					versions.after(c.getID());
+					statistics.customerRemoved();
+					logRemoved(BackOfficeCodec.CUSTOMER, c.getID());
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (removed) {
+				nameIndex.remove(c);
+				names.release(c);
+				changedCustomers.mark(c.getID());
+			}
+		}
+		for (Card card : cards) {
+			if (this.cards.remove(card.getID(), card)) {
+				statistics.cardRemoved(card.getID());
+				changedCards.mark(card.getID());
+				logRemoved(BackOfficeCodec.CARD, card.getID());
+			}
+		}
+		compactNames();
+		remoteSave();
+	}
+
 	@Override
 	public short getCredits(Customer client) throws BackOfficeException {
 		return client.getCredits();
 	}
 
+	/**
+	 * Log the new transactions and add them to the balances of their cards.
+	 */
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		return recordTransactions(batch, ledger.getStoreId());
+	}
+
+	/**
+	 * Record transactions that were received by the store with id
+	 * <code>store</code>, such as those replicated from a primary.
+	 */
+	int recordTransactions(List<CreditTransaction> batch, int store)
+			throws BackOfficeException {
+		List<CreditTransaction> fresh;
+		try {
+			fresh = ledger.append(batch, store);
+		} catch (IOException e) {
+			throw new BackOfficeException("Recording transactions failed", e);
+		}
+		for (CreditTransaction t : fresh) {
+			Card card = cards.get(t.getCardId());
+			if (card == null) {
+				System.err.println("Transaction for unknown card: " + t);
+				continue;
+			}
+			ReentrantLock lock = locks.get(card.getCustomerID());
+			lock.lock();
+			try {
+				keep(card.getCustomer());
+				card.setCredits(CreditCounters.credit(card.getCredits(), t
+						.getAmount()));
+				versions.after(card.getCustomerID());
+				statistics.balanceChanged(card.getID(), card.getCredits());
+				logCard(card);
+			} finally {
+				lock.unlock();
+			}
+			changedCards.mark(card.getID());
+		}
+		if (!fresh.isEmpty()) {
+			// Transactions are told after they were applied: whoever applies
+			// them again drops those it has seen, in any order.
+			MutationListener l = listener;
+			if (l != null) {
+				l.mutated(MutationLog.transactions(fresh, store));
+			}
+			remoteSave();
+		}
+		return fresh.size();
+	}
+
+	/**
+	 * Tell <code>listener</code> about every change from now on, under the
+	 * lock stripe of the customer it belongs to.
+	 */
+	void setMutationListener(MutationListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the id the transactions received by this store are counted
+	 *         under.
+	 */
+	int getStoreId() {
+		return ledger.getStoreId();
+	}
+
+	/**
+	 * @return the balance counters of this store, for other stores to merge.
+	 */
+	CreditCounters getCreditCounters() {
+		return ledger.getCounters();
+	}
+
+	/**
+	 * @return a copy of the balance counters of <code>cards</code>.
+	 */
+	CreditCounters getCreditCounters(Collection<Card> cards) {
+		return ledger.getCounters().select(cards);
+	}
+
+	/**
+	 * Merge the balance counters of another store into this one.
+	 * 
+	 * @return the number of cards whose balance changed.
+	 */
+	int mergeCreditCounters(CreditCounters remote) throws BackOfficeException {
+		Map<Integer, Long> changed;
+		try {
+			changed = ledger.merge(remote);
+		} catch (IOException e) {
+			throw new BackOfficeException("Merging balances failed", e);
+		}
+		int updated = 0;
+		for (Map.Entry<Integer, Long> e : changed.entrySet()) {
+			int cardId = e.getKey();
+			Card card = cards.get(cardId);
+			if (card == null || e.getValue() == 0) {
+				continue;
+			}
+			ReentrantLock lock = locks.get(card.getCustomerID());
+			lock.lock();
+			try {
+				keep(card.getCustomer());
+				card.setCredits(CreditCounters.credit(card.getCredits(), e
+						.getValue()));
+				versions.after(card.getCustomerID());
+				statistics.balanceChanged(cardId, card.getCredits());
+				logCard(card);
+			} finally {
+				lock.unlock();
+			}
+			changedCards.mark(cardId);
+			updated++;
+		}
+		if (updated > 0) {
+			remoteSave();
+		}
+		return updated;
+	}
+
 	@Override
 	public List<Customer> getCustomers() throws BackOfficeException {
 		ArrayList<Customer> list = new ArrayList<Customer>();
-		for (Enumeration<Customer> e = customers.elements(); e.hasMoreElements();) {
-			Customer c = e.nextElement();
-			list.add(c.clone());
+		CustomerVersions.Snapshot snapshot = versions.snapshot();
+		try {
+			Iterator<Customer> i = snapshot.customers();
+			while (i.hasNext()) {
+				list.add(i.next());
+			}
+		} finally {
+			snapshot.close();
 		}
 		return list;
 	}
 
+	/**
+	 * Pages over the customer table as it was when streaming started.
+	 * Customers added, changed or removed while streaming do not show up.
+	 * The snapshot is closed with the pages, or once they are read.
+	 */
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException {
+		CustomerVersions.Snapshot snapshot = versions.snapshot();
+		return new CustomerPages(snapshot.customers(), filter, pageSize,
+				snapshot);
+	}
+
+	/**
+	 * Kept up to date by every change, so this does not scan anything.
+	 */
+	@Override
+	public BackOfficeStatistics getStatistics() {
+		return statistics.get();
+	}
+
+	/**
+	 * @return a consistent view of the customer table for reports that read
+	 *         it more than once. Close it when done.
+	 */
+	CustomerVersions.Snapshot snapshot() {
+		return versions.snapshot();
+	}
+
 	@Override
 	public void deleteCustomer(int customerID) {
-		Customer customer = customers.get(customerID);
+		Customer customer = null;
+		ReentrantLock lock = locks.get(customerID);
+		lock.lock();
+		try {
+			customer = customers.get(customerID);
+			if (customer != null) {
+				versions.before(customerID, customer);
+				customers.remove(customerID);
+				versions.after(customerID);
+				statistics.customerRemoved();
+				logRemoved(BackOfficeCodec.CUSTOMER, customerID);
+				MutationListener l = listener;
+				if (l != null) {
+					l.mutated(MutationLog.deletion(
+							MutationLog.DELETE_CUSTOMER, customerID));
+				}
+			}
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
 		if (customer == null) {
 			System.err.println("Cannot remove non-existing customer with id: "
 					+ customerID);
@@ -237,8 +1239,10 @@ class BackOfficeSimulator implements BackOffice {
 		}
 		
 		//deleteCard(customer.getCardID());
-		customers.remove(customerID);
-		--lastCustomerId;
+		nameIndex.remove(customer);
+		names.release(customer);
+		changedCustomers.mark(customerID);
+		compactNames();
 
 		try {
 			remoteSave();
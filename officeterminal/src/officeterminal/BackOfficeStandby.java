@@ -0,0 +1,233 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import common.CreditTransaction;
+
+/**
+ * A hot standby for a {@link ReplicatingBackOffice}. It keeps a complete back
+ * office in its own working directory and applies the mutation log of the
+ * primary as it arrives. If the primary is lost, an office terminal started in
+ * the directory of the standby takes over with the data the standby had
+ * applied.
+ * 
+ * The number of the last applied record is kept in <code>standby.seq</code>;
+ * records are applied before that number is written, and applying a record
+ * twice does no harm.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class BackOfficeStandby {
+	static final int DEFAULT_PORT = 7071;
+
+	private BackOfficeSimulator office;
+	private RandomAccessFile sequenceFile;
+	private volatile long applied;
+	private volatile long appliedTime;
+	/** Customers read but not imported yet, imported in one go */
+	private List<Customer> customers = new ArrayList<Customer>();
+	private List<Card> cards = new ArrayList<Card>();
+
+	BackOfficeStandby(String keyPath) throws BackOfficeException {
+		office = new BackOfficeSimulator(keyPath);
+		try {
+			sequenceFile = new RandomAccessFile(new File("standby.seq"), "rw");
+			applied = sequenceFile.length() >= 8 ? sequenceFile.readLong() : 0;
+		} catch (IOException e) {
+			throw new BackOfficeException("Failed to read standby.seq", e);
+		}
+	}
+
+	/**
+	 * @return the sequence number of the last record applied.
+	 */
+	long getAppliedSequence() {
+		return applied;
+	}
+
+	/**
+	 * @return the milliseconds between logging the last applied record on the
+	 *         primary and applying it here.
+	 */
+	long getApplyDelay() {
+		return appliedTime;
+	}
+
+	/**
+	 * Accept primaries on <code>port</code>, one at a time, forever.
+	 */
+	void serve(int port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(
+				new InetSocketAddress(InetAddress.getByName(null), port));
+		System.out.println("Standby listening on port " + port + " at record "
+				+ applied);
+		while (true) {
+			SocketChannel primary = server.accept();
+			try {
+				follow(primary);
+			} catch (IOException e) {
+				System.err.println("Lost primary: " + e.getMessage());
+			} finally {
+				primary.close();
+			}
+		}
+	}
+
+	/**
+	 * Tell the primary where to resume, then apply its records until it goes
+	 * away, acknowledging whenever there is nothing more to read.
+	 */
+	private void follow(SocketChannel primary) throws IOException {
+		ByteBuffer ack = ByteBuffer.allocate(8);
+		ack.putLong(0, applied);
+		write(primary, ack);
+
+		ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+		while (true) {
+			if (primary.read(in) < 0) {
+				return;
+			}
+			in.flip();
+			boolean progress = false;
+			while (in.remaining() >= MutationLog.HEADER) {
+				int length = in.getInt(in.position() + 17);
+				if (in.remaining() < MutationLog.HEADER + length) {
+					if (in.capacity() < MutationLog.HEADER + length) {
+						ByteBuffer larger = ByteBuffer
+								.allocate(MutationLog.HEADER + length);
+						larger.put(in);
+						in = larger;
+						in.flip();
+					}
+					break;
+				}
+				long sequence = in.getLong();
+				long time = in.getLong();
+				byte type = in.get();
+				in.getInt();
+				ByteBuffer payload = in.slice();
+				payload.limit(length);
+				in.position(in.position() + length);
+				if (sequence > applied) {
+					apply(type, payload);
+					applied = sequence;
+					appliedTime = System.currentTimeMillis() - time;
+					progress = true;
+				}
+			}
+			in.compact();
+			if (progress && in.position() == 0) {
+				importCustomers();
+				sequenceFile.seek(0);
+				sequenceFile.writeLong(applied);
+				ack.putLong(0, applied);
+				write(primary, ack);
+			}
+		}
+	}
+
+	private static void write(SocketChannel channel, ByteBuffer buffer)
+			throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Import the customers read since the last import, saving the back office
+	 * once for all of them.
+	 */
+	private void importCustomers() {
+		if (customers.isEmpty()) {
+			return;
+		}
+		try {
+			office.importCustomers(customers, cards);
+		} catch (BackOfficeException e) {
+			System.err.println("Failed to import customers: " + e.getMessage());
+		}
+		customers.clear();
+		cards.clear();
+	}
+
+	private void apply(byte type, ByteBuffer payload) {
+		if (type == MutationLog.CUSTOMER) {
+			Customer c = MutationLog.readCustomer(payload);
+			customers.add(c);
+			if (c.getCard() != null) {
+				cards.add(c.getCard());
+			}
+			return;
+		}
+		importCustomers();
+		try {
+			switch (type) {
+			case MutationLog.CARD: {
+				int cardId = payload.getInt();
+				office.issueCard(office.getCustomerByID(payload.getInt()),
+						cardId);
+				break;
+			}
+			case MutationLog.DELETE_CARD:
+				office.deleteCard(payload.getInt());
+				break;
+			case MutationLog.DELETE_CUSTOMER:
+				office.deleteCustomer(payload.getInt());
+				break;
+			case MutationLog.TRANSACTIONS: {
+				int count = payload.getInt();
+				List<CreditTransaction> batch = new ArrayList<CreditTransaction>(
+						count);
+				for (int i = 0; i < count; i++) {
+					batch.add(CreditTransaction.readFrom(payload));
+				}
+				int store = payload.remaining() >= 4 ? payload.getInt() : 0;
+				if (store == 0) {
+					office.recordTransactions(batch);
+				} else {
+					office.recordTransactions(batch, store);
+				}
+				break;
+			}
+			default:
+				System.err.println("Skipping unknown mutation type " + type);
+			}
+		} catch (BackOfficeException e) {
+			System.err.println("Failed to apply mutation: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Start a standby in the current directory, listening on
+	 * <code>backoffice.standby.port</code>.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Security.addProvider(new BouncyCastleProvider());
+		try {
+			new BackOfficeStandby("./keys/").serve(Integer.getInteger(
+					"backoffice.standby.port", DEFAULT_PORT));
+		} catch (BackOfficeException e) {
+			System.err.println("Failed to create standby: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Standby failed: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package officeterminal;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Totals over a whole back office, as shown on the office dashboard.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class BackOfficeStatistics {
+	/**
+	 * The balance of one card.
+	 */
+	static final class Balance {
+		final int cardId;
+		final int customerId;
+		final short credits;
+
+		Balance(int cardId, int customerId, short credits) {
+			this.cardId = cardId;
+			this.customerId = customerId;
+			this.credits = credits;
+		}
+	}
+
+	private final long customers;
+	private final long cards;
+	private final long credits;
+	private final List<Balance> topBalances;
+
+	BackOfficeStatistics(long customers, long cards, long credits,
+			List<Balance> topBalances) {
+		this.customers = customers;
+		this.cards = cards;
+		this.credits = credits;
+		this.topBalances = Collections.unmodifiableList(topBalances);
+	}
+
+	/**
+	 * @return the number of customers.
+	 */
+	long getCustomers() {
+		return customers;
+	}
+
+	/**
+	 * @return the number of cards that have not been deleted.
+	 */
+	long getActiveCards() {
+		return cards;
+	}
+
+	/**
+	 * @return the credits on all active cards together.
+	 */
+	long getOutstandingCredits() {
+		return credits;
+	}
+
+	/**
+	 * @return the highest balances, highest first.
+	 */
+	List<Balance> getTopBalances() {
+		return topBalances;
+	}
+
+	@Override
+	public String toString() {
+		return customers + " customers, " + cards + " active cards, " + credits
+				+ " credits outstanding";
+	}
+}
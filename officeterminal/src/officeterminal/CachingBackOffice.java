@@ -0,0 +1,325 @@
+package officeterminal;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.CreditTransaction;
+
+/**
+ * A read-through cache of customer lookups in front of another back office.
+ * At most <code>maxSize</code> customers are cached, the least recently used
+ * ones being evicted first, and each can be found by customer id and by the id
+ * of its current card. Customers are only cached when read by id: a card
+ * outlives the customer it belonged to, so reading by card could cache a
+ * deleted customer again. Entries can also expire after a fixed time, for back
+ * offices that are changed by others as well. Every change that goes through
+ * this back office removes the entries it affects, before and after it is
+ * made, and a customer read while a change was made is not cached.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class CachingBackOffice implements BackOffice {
+	/**
+	 * A cached customer and the time it was loaded.
+	 */
+	private static final class Cached {
+		final Customer customer;
+		final long loaded;
+
+		Cached(Customer customer, long loaded) {
+			this.customer = customer;
+			this.loaded = loaded;
+		}
+	}
+
+	private BackOffice office;
+	private int maxSize;
+	private long ttl;
+
+	private Map<Integer, Cached> byId;
+	/** The card of every cached customer that has one, to the customer id */
+	private Map<Integer, Integer> byCard = new HashMap<Integer, Integer>();
+	/** Counts invalidations, to tell whether one overlapped a read */
+	private long generation;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param office
+	 *            the back office to read through to
+	 * @param maxSize
+	 *            maximum number of customers cached
+	 * @param ttl
+	 *            milliseconds after which a cached customer is read again, or
+	 *            0 to keep it until it is evicted or changed
+	 */
+	CachingBackOffice(BackOffice office, final int maxSize, long ttl) {
+		this.office = office;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		byId = new LinkedHashMap<Integer, Cached>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Cached> eldest) {
+				if (size() > maxSize) {
+					evictions++;
+					forgetCard(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private void forgetCard(Cached entry) {
+		if (entry.customer.getCard() != null) {
+			byCard.remove(entry.customer.getCardID());
+		}
+	}
+
+	/**
+	 * @return the cached customer with this id, or null on a miss.
+	 */
+	private synchronized Customer lookup(int customerID) {
+		Cached entry = byId.get(customerID);
+		if (entry != null && ttl > 0
+				&& System.currentTimeMillis() - entry.loaded > ttl) {
+			byId.remove(customerID);
+			forgetCard(entry);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.customer.clone();
+	}
+
+	/**
+	 * @return the cached customer whose current card this is, or null on a
+	 *         miss.
+	 */
+	private synchronized Customer lookupCard(int cardID) {
+		Integer customerID = byCard.get(cardID);
+		if (customerID == null) {
+			misses++;
+			return null;
+		}
+		return lookup(customerID);
+	}
+
+	/**
+	 * @return the number of invalidations so far, to pass to
+	 *         {@link #remember(Customer, long)} after reading a customer.
+	 */
+	private synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Cache a customer read from the back office, unless something was
+	 * invalidated since <code>seen</code>, as the customer may have been read
+	 * before that change.
+	 */
+	private synchronized void remember(Customer customer, long seen) {
+		if (generation != seen) {
+			return;
+		}
+		Cached old = byId.remove(customer.getID());
+		if (old != null) {
+			forgetCard(old);
+		}
+		byId.put(customer.getID(), new Cached(customer.clone(), System
+				.currentTimeMillis()));
+		if (customer.getCard() != null) {
+			byCard.put(customer.getCardID(), customer.getID());
+		}
+	}
+
+	/**
+	 * Forget a customer, under both keys.
+	 */
+	synchronized void invalidateCustomer(int customerID) {
+		generation++;
+		Cached entry = byId.remove(customerID);
+		if (entry != null) {
+			forgetCard(entry);
+		}
+	}
+
+	/**
+	 * Forget the customer of a card, under both keys.
+	 */
+	synchronized void invalidateCard(int cardID) {
+		generation++;
+		Integer customerID = byCard.remove(cardID);
+		if (customerID != null) {
+			byId.remove(customerID);
+		}
+	}
+
+	/**
+	 * Forget a deleted customer, under its id and under every card that led
+	 * to it.
+	 */
+	synchronized void invalidateDeleted(int customerID) {
+		invalidateCustomer(customerID);
+		byCard.values().removeAll(Collections.singleton(customerID));
+	}
+
+	synchronized void clear() {
+		generation++;
+		byId.clear();
+		byCard.clear();
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the fraction of lookups answered from the cache.
+	 */
+	synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public Customer registerCustomer(String cusName)
+			throws BackOfficeException {
+		return office.registerCustomer(cusName);
+	}
+
+	@Override
+	public List<Customer> registerCustomers(Collection<String> names)
+			throws BackOfficeException {
+		return office.registerCustomers(names);
+	}
+
+	@Override
+	public KeyPair getSupermarketKeyPair() throws BackOfficeException {
+		return office.getSupermarketKeyPair();
+	}
+
+	@Override
+	public void issueCard(Customer client) throws BackOfficeException {
+		invalidateCustomer(client.getID());
+		try {
+			office.issueCard(client);
+		} finally {
+			invalidateCustomer(client.getID());
+		}
+	}
+
+	@Override
+	public void deleteCard(int cardID) {
+		invalidateCard(cardID);
+		office.deleteCard(cardID);
+		invalidateCard(cardID);
+	}
+
+	@Override
+	public void deleteCustomer(int customerID) {
+		invalidateDeleted(customerID);
+		office.deleteCustomer(customerID);
+		invalidateDeleted(customerID);
+	}
+
+	@Override
+	public int getCardID(Customer client) throws BackOfficeException {
+		return office.getCardID(client);
+	}
+
+	@Override
+	public short getCredits(Customer client) throws BackOfficeException {
+		return office.getCredits(client);
+	}
+
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		for (CreditTransaction t : batch) {
+			invalidateCard(t.getCardId());
+		}
+		try {
+			return office.recordTransactions(batch);
+		} finally {
+			for (CreditTransaction t : batch) {
+				invalidateCard(t.getCardId());
+			}
+		}
+	}
+
+	@Override
+	public Customer getCustomerByID(int custID) throws BackOfficeException {
+		long seen = generation();
+		Customer c = lookup(custID);
+		if (c == null) {
+			c = office.getCustomerByID(custID);
+			remember(c, seen);
+		}
+		return c;
+	}
+
+	@Override
+	public Customer getCustomerByName(String name) throws BackOfficeException {
+		return office.getCustomerByName(name);
+	}
+
+	@Override
+	public List<Customer> getCustomersByName(String prefix, int offset,
+			int limit) throws BackOfficeException {
+		return office.getCustomersByName(prefix, offset, limit);
+	}
+
+	@Override
+	public Customer getCustomerByCard(int cardID) throws BackOfficeException {
+		Customer c = lookupCard(cardID);
+		if (c == null) {
+			c = office.getCustomerByCard(cardID);
+		}
+		return c;
+	}
+
+	@Override
+	public List<Customer> getCustomers() throws BackOfficeException {
+		return office.getCustomers();
+	}
+
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException {
+		return office.streamCustomers(filter, pageSize);
+	}
+
+	@Override
+	public BackOfficeStatistics getStatistics() throws BackOfficeException {
+		return office.getStatistics();
+	}
+
+	@Override
+	public void save() throws IOException {
+		office.save();
+	}
+}
@@ -13,7 +13,7 @@ public class Card implements Serializable {
 
 	private static final long serialVersionUID = -7112167796394873889L;
 	private int id;
-	private short credits;
+	private volatile short credits;
 	private Customer customer;
 
 	Card(int cardId, short credits, Customer customer) {
@@ -41,4 +41,8 @@ public class Card implements Serializable {
 	short getCredits () {
 		return credits;
 	}
+
+	void setCredits(short credits) {
+		this.credits = credits;
+	}
 }
\ No newline at end of file
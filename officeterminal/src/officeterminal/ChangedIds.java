@@ -0,0 +1,31 @@
+package officeterminal;
+
+import java.util.BitSet;
+
+/**
+ * The ids of the records changed since they were last collected, one bit
+ * per id. Ids are handed out densely, so this stays small even when every
+ * record changed.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class ChangedIds {
+	private BitSet ids = new BitSet();
+
+	/**
+	 * Call after the change is made, so whoever collects the id sees it.
+	 */
+	synchronized void mark(int id) {
+		ids.set(id);
+	}
+
+	/**
+	 * @return the ids marked so far, which are then forgotten.
+	 */
+	synchronized BitSet drain() {
+		BitSet drained = ids;
+		ids = new BitSet();
+		return drained;
+	}
+}
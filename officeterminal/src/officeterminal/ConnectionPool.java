@@ -0,0 +1,84 @@
+package officeterminal;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A small, fixed-size pool of JDBC connections. Every connection keeps its own
+ * cache of prepared statements, so each statement is parsed once per
+ * connection.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class ConnectionPool {
+	/**
+	 * A pooled connection with its statement cache. Only one thread uses it at
+	 * a time, between {@link ConnectionPool#acquire()} and
+	 * {@link ConnectionPool#release(Pooled)}.
+	 */
+	static final class Pooled {
+		final Connection connection;
+		private Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+		Pooled(Connection connection) {
+			this.connection = connection;
+		}
+
+		PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement statement = statements.get(sql);
+			if (statement == null) {
+				statement = connection.prepareStatement(sql);
+				statements.put(sql, statement);
+			}
+			statement.clearParameters();
+			return statement;
+		}
+
+		void close() throws SQLException {
+			for (PreparedStatement statement : statements.values()) {
+				statement.close();
+			}
+			connection.close();
+		}
+	}
+
+	private BlockingQueue<Pooled> idle;
+	private Pooled[] all;
+
+	ConnectionPool(String url, int size) throws SQLException {
+		idle = new ArrayBlockingQueue<Pooled>(size);
+		all = new Pooled[size];
+		for (int i = 0; i < size; i++) {
+			Connection connection = DriverManager.getConnection(url);
+			connection.setAutoCommit(false);
+			all[i] = new Pooled(connection);
+			idle.add(all[i]);
+		}
+	}
+
+	Pooled acquire() throws SQLException {
+		try {
+			return idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+	}
+
+	void release(Pooled pooled) {
+		idle.add(pooled);
+	}
+
+	void close() throws SQLException {
+		for (Pooled pooled : all) {
+			pooled.close();
+		}
+	}
+}
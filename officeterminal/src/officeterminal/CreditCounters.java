@@ -0,0 +1,184 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.CreditTransaction;
+
+/**
+ * The {@link PNCounter} of every card that has seen a transaction. Stores
+ * exchange their counters with {@link #writeTo(File)} and
+ * {@link #merge(CreditCounters)}, in any order and as often as they like.
+ * The balance a store keeps for a card is not read from its counter, as the
+ * card may have been given credits before it came to the store; a store adds
+ * what its counter rises by instead.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class CreditCounters {
+	private ConcurrentHashMap<Integer, PNCounter> counters = new ConcurrentHashMap<Integer, PNCounter>();
+
+	private PNCounter counter(int cardId) {
+		PNCounter counter = counters.get(cardId);
+		if (counter == null) {
+			PNCounter fresh = new PNCounter();
+			counter = counters.putIfAbsent(cardId, fresh);
+			if (counter == null) {
+				counter = fresh;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Count a transaction received by <code>store</code>. Every transaction
+	 * must be counted only once.
+	 */
+	void apply(CreditTransaction t, int store) {
+		counter(t.getCardId()).add(store, t.getAmount());
+	}
+
+	/**
+	 * @return <code>balance</code> plus <code>amount</code>, limited to what a
+	 *         card can hold.
+	 */
+	static short credit(short balance, long amount) {
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+				balance + amount));
+	}
+
+	/**
+	 * @return the credits ever spent with a card.
+	 */
+	long spent(int cardId) {
+		PNCounter counter = counters.get(cardId);
+		return counter == null ? 0 : counter.removed();
+	}
+
+	/**
+	 * Take over the state of another store.
+	 * 
+	 * @return what the balance of every changed card rose by, by card id.
+	 */
+	Map<Integer, Long> merge(CreditCounters other) {
+		Map<Integer, Long> changed = new HashMap<Integer, Long>();
+		for (Map.Entry<Integer, PNCounter> e : other.counters.entrySet()) {
+			PNCounter counter = counter(e.getKey());
+			long before = counter.value();
+			if (counter.merge(e.getValue())) {
+				changed.put(e.getKey(), counter.value() - before);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return a copy of the counters of <code>cards</code>, to go with the
+	 *         cards to another store.
+	 */
+	CreditCounters select(Collection<Card> cards) {
+		CreditCounters selected = new CreditCounters();
+		for (Card card : cards) {
+			PNCounter counter = counters.get(card.getID());
+			if (counter != null) {
+				selected.counter(card.getID()).merge(counter);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * @return the state of all counters, ready to be written.
+	 */
+	ByteBuffer encode() {
+		List<Integer> cards = new ArrayList<Integer>();
+		List<ByteBuffer> states = new ArrayList<ByteBuffer>();
+		int size = 4;
+		for (Map.Entry<Integer, PNCounter> e : counters.entrySet()) {
+			ByteBuffer state = e.getValue().encode();
+			cards.add(e.getKey());
+			states.add(state);
+			size += 4 + state.remaining();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(cards.size());
+		for (int i = 0; i < cards.size(); i++) {
+			buffer.putInt(cards.get(i));
+			buffer.put(states.get(i));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static CreditCounters readFrom(ByteBuffer buffer) {
+		CreditCounters counters = new CreditCounters();
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			counters.counters.put(buffer.getInt(), PNCounter.readFrom(buffer));
+		}
+		return counters;
+	}
+
+	/**
+	 * Write the state of all counters, under a temporary name first.
+	 */
+	void writeTo(File file) throws IOException {
+		write(file, encode());
+	}
+
+	/**
+	 * Write <code>buffer</code> to <code>file</code> under a temporary name,
+	 * force it to disk and move it over <code>file</code>.
+	 */
+	static void write(File file, ByteBuffer buffer) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not replace " + file);
+		}
+	}
+
+	static CreditCounters readFrom(File file) throws IOException {
+		return readFrom(read(file));
+	}
+
+	/**
+	 * @return the whole of <code>file</code>.
+	 */
+	static ByteBuffer read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException(file + " is truncated");
+				}
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -1,10 +1,17 @@
 package officeterminal;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
  * Internal representation of a customer.
  * 
+ * The name is kept as UTF-8, either in an array of its own or in the chunk of
+ * a {@link NameArena}, and only becomes a string in {@link #getName()}.
+ * 
  * @author Geert Smelt
  * @author Robin Oostrum
  * 
@@ -12,18 +19,103 @@ import java.io.Serializable;
 public class Customer implements Serializable {
 
 	private static final long serialVersionUID = 7401122668539562560L;
-	private String name;
+	/** Serialized as before the name was kept as bytes. */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("name", String.class),
+			new ObjectStreamField("id", int.class),
+			new ObjectStreamField("currentCard", Card.class) };
+	/** Stands in for the chunk while the name is being moved. */
+	private static final byte[] MOVING = new byte[0];
+
+	private transient volatile byte[] nameChunk;
+	private transient volatile int nameOffset;
 	private int id;
-	private Card currentCard = null;
+	private volatile Card currentCard = null;
 
 	public Customer clone() {
-		Customer c = new Customer(name, id);
+		byte[] chunk;
+		int offset;
+		do {
+			chunk = nameChunk;
+			offset = offsetIn(chunk);
+		} while (offset < 0);
+		Customer c = new Customer(chunk, offset, id);
 		c.setCard(currentCard);
 		return c;
 	}
 
 	String getName() {
-		return name;
+		byte[] chunk;
+		int offset;
+		do {
+			chunk = nameChunk;
+			offset = offsetIn(chunk);
+		} while (offset < 0);
+		return NameArena.decode(chunk, offset);
+	}
+
+	/**
+	 * @return the offset of the name in <code>chunk</code>, or -1 if the name
+	 *         was moved meanwhile.
+	 */
+	private int offsetIn(byte[] chunk) {
+		if (chunk == MOVING) {
+			Thread.yield();
+			return -1;
+		}
+		int offset = nameOffset;
+		return nameChunk == chunk ? offset : -1;
+	}
+
+	/**
+	 * Compare names as UTF-8, without turning either into a string.
+	 */
+	int compareName(Customer other) {
+		while (true) {
+			byte[] mine = nameChunk;
+			int myOffset = offsetIn(mine);
+			byte[] theirs = other.nameChunk;
+			int theirOffset = other.offsetIn(theirs);
+			if (myOffset >= 0 && theirOffset >= 0) {
+				return NameArena.compare(mine, myOffset, theirs, theirOffset);
+			}
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            a name made by {@link NameArena#encode(String)}
+	 */
+	boolean nameStartsWith(byte[] prefix) {
+		byte[] chunk;
+		int offset;
+		do {
+			chunk = nameChunk;
+			offset = offsetIn(chunk);
+		} while (offset < 0);
+		return NameArena.startsWith(chunk, offset, prefix);
+	}
+
+	/**
+	 * Only for the {@link NameArena} that moves the name.
+	 */
+	byte[] nameChunk() {
+		return nameChunk;
+	}
+
+	int nameOffset() {
+		return nameOffset;
+	}
+
+	/**
+	 * Point at a copy of the name. Readers that meet the name half moved try
+	 * again; movers take turns, as a customer moving between two stores may
+	 * be in both arenas for a moment.
+	 */
+	synchronized void moveName(byte[] chunk, int offset) {
+		nameChunk = MOVING;
+		nameOffset = offset;
+		nameChunk = chunk;
 	}
 
 	int getID() {
@@ -34,6 +126,10 @@ public class Customer implements Serializable {
 		this.currentCard = card;
 	}
 
+	Card getCard() {
+		return currentCard;
+	}
+
 	int getCardID() {
 		return currentCard.getID();
 	}
@@ -41,9 +137,30 @@ public class Customer implements Serializable {
 	short getCredits () {
 		return currentCard.getCredits();
 	}
-	
+
 	Customer(String name, int id) {
-		this.name = name;
+		this(NameArena.encode(name), 0, id);
+	}
+
+	private Customer(byte[] chunk, int offset, int id) {
+		this.nameChunk = chunk;
+		this.nameOffset = offset;
 		this.id = id;
 	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("name", getName());
+		fields.put("id", id);
+		fields.put("currentCard", currentCard);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		nameChunk = NameArena.encode((String) fields.get("name", null));
+		id = fields.get("id", 0);
+		currentCard = (Card) fields.get("currentCard", null);
+	}
 }
@@ -0,0 +1,271 @@
+package officeterminal;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Management figures over all customers of a simulator: the credits
+ * outstanding, how balances are distributed, and who spent the most. The id
+ * range is cut into slices that are aggregated in parallel, each over the same
+ * snapshot of the customer table, and merged as they come in. Only the
+ * aggregates are ever held, never the customers.
+ *
+ * Spending is read from the balance counters of the ledger, which are not part
+ * of the snapshot, and counts the current card of each customer only.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class CustomerAnalytics {
+	/** Number of customer ids aggregated by one task */
+	static final int SLICE = 1 << 16;
+
+	/**
+	 * Told about every slice merged into the report, in the order they finish.
+	 */
+	interface Listener {
+		void sliceDone(int done, int slices, Report soFar);
+	}
+
+	/**
+	 * A customer and the credits spent on their card.
+	 */
+	static final class Spender {
+		final int customerId;
+		final String name;
+		final long spent;
+
+		Spender(int customerId, String name, long spent) {
+			this.customerId = customerId;
+			this.name = name;
+			this.spent = spent;
+		}
+	}
+
+	private static final Comparator<Spender> LEAST_SPENT = new Comparator<Spender>() {
+		public int compare(Spender a, Spender b) {
+			return a.spent < b.spent ? -1 : a.spent == b.spent ? 0 : 1;
+		}
+	};
+
+	/**
+	 * The figures over some or all of the customers.
+	 */
+	static final class Report {
+		private long customers;
+		private long liability;
+		private int bucketWidth;
+		private long[] balances;
+		private int top;
+		private PriorityQueue<Spender> spenders;
+
+		Report(int bucketWidth, int top) {
+			this.bucketWidth = bucketWidth;
+			this.balances = new long[Short.MAX_VALUE / bucketWidth + 1];
+			this.top = top;
+			this.spenders = new PriorityQueue<Spender>(top + 1, LEAST_SPENT);
+		}
+
+		private void add(Customer c, long spent) {
+			customers++;
+			short credits = c.getCard() == null ? 0 : c.getCredits();
+			liability += credits;
+			balances[Math.max(0, credits) / bucketWidth]++;
+			if (spent > 0) {
+				offer(new Spender(c.getID(), c.getName(), spent));
+			}
+		}
+
+		private void offer(Spender s) {
+			if (spenders.size() < top) {
+				spenders.add(s);
+			} else if (top > 0 && spenders.peek().spent < s.spent) {
+				spenders.poll();
+				spenders.add(s);
+			}
+		}
+
+		private void merge(Report other) {
+			customers += other.customers;
+			liability += other.liability;
+			for (int i = 0; i < balances.length; i++) {
+				balances[i] += other.balances[i];
+			}
+			for (Spender s : other.spenders) {
+				offer(s);
+			}
+		}
+
+		/**
+		 * @return the number of customers counted.
+		 */
+		long getCustomers() {
+			return customers;
+		}
+
+		/**
+		 * @return the credits on all cards together.
+		 */
+		long getLiability() {
+			return liability;
+		}
+
+		/**
+		 * @return the number of cards per range of balances, the first range
+		 *         starting at 0.
+		 */
+		long[] getBalanceDistribution() {
+			return balances.clone();
+		}
+
+		int getBucketWidth() {
+			return bucketWidth;
+		}
+
+		/**
+		 * @return the customers who spent the most, most first.
+		 */
+		List<Spender> getTopSpenders() {
+			List<Spender> list = new ArrayList<Spender>(spenders);
+			Collections.sort(list, Collections.reverseOrder(LEAST_SPENT));
+			return list;
+		}
+	}
+
+	private BackOfficeSimulator office;
+	private ExecutorService executor;
+
+	/**
+	 * @param office
+	 *            the back office to report on
+	 * @param threads
+	 *            the number of slices aggregated at the same time
+	 */
+	CustomerAnalytics(BackOfficeSimulator office, int threads) {
+		this.office = office;
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "analytics-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Compute the report over all customers as they are now.
+	 *
+	 * @param bucketWidth
+	 *            the width of the balance ranges
+	 * @param top
+	 *            the number of top spenders to keep
+	 * @param listener
+	 *            told about every finished slice, or <code>null</code>
+	 * @throws BackOfficeException
+	 */
+	Report run(final int bucketWidth, final int top, Listener listener)
+			throws BackOfficeException {
+		if (bucketWidth <= 0 || top < 0) {
+			throw new IllegalArgumentException("Invalid report parameters.");
+		}
+		final CustomerVersions.Snapshot snapshot = office.snapshot();
+		final CreditCounters counters = office.getCreditCounters();
+		try {
+			int last = office.lastCustomerId();
+			CompletionService<Report> slices = new ExecutorCompletionService<Report>(
+					executor);
+			int count = 0;
+			for (long from = 0; from <= last; from += SLICE) {
+				final int start = (int) from;
+				final int end = (int) Math.min(last, from + SLICE - 1);
+				slices.submit(new Callable<Report>() {
+					public Report call() {
+						Report part = new Report(bucketWidth, top);
+						for (int id = start; id <= end; id++) {
+							Customer c = snapshot.getCustomer(id);
+							if (c != null) {
+								part.add(c, c.getCard() == null ? 0 : counters
+										.spent(c.getCardID()));
+							}
+						}
+						return part;
+					}
+				});
+				count++;
+			}
+			Report report = new Report(bucketWidth, top);
+			for (int done = 1; done <= count; done++) {
+				report.merge(slices.take().get());
+				if (listener != null) {
+					listener.sliceDone(done, count, report);
+				}
+			}
+			return report;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BackOfficeException("Interrupted while reporting", e);
+		} catch (ExecutionException e) {
+			throw new BackOfficeException("Report failed", e.getCause());
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Print the report for the simulator in the current directory, using
+	 * <code>analytics.threads</code> threads (default: one per processor).
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Security.addProvider(new BouncyCastleProvider());
+		try {
+			CustomerAnalytics analytics = new CustomerAnalytics(
+					new BackOfficeSimulator("./keys/"), Integer.getInteger(
+							"analytics.threads", Runtime.getRuntime()
+									.availableProcessors()));
+			Report report = analytics.run(100, 10, new Listener() {
+				public void sliceDone(int done, int slices, Report soFar) {
+					System.out.println("Slice " + done + "/" + slices + ": "
+							+ soFar.getCustomers() + " customers, "
+							+ soFar.getLiability() + " credits outstanding");
+				}
+			});
+			analytics.shutdown();
+			System.out.println("Credits outstanding: " + report.getLiability());
+			long[] balances = report.getBalanceDistribution();
+			for (int i = 0; i < balances.length; i++) {
+				if (balances[i] > 0) {
+					System.out.println("Balance " + i * report.getBucketWidth()
+							+ "-" + ((i + 1) * report.getBucketWidth() - 1)
+							+ ": " + balances[i] + " customers");
+				}
+			}
+			for (Spender s : report.getTopSpenders()) {
+				System.out.println("Customer #" + s.customerId + " (" + s.name
+						+ ") spent " + s.spent);
+			}
+		} catch (BackOfficeException e) {
+			System.err.println("Failed to report: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,458 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Moves the customer base in and out of a back office as CSV, with columns
+ * <code>id,name,card,credits</code> and a header line. Both directions stream
+ * through a fixed buffer, so memory use does not depend on the size of the
+ * file or of the back office.
+ *
+ * Import reads the bytes of the file directly and only turns the name column
+ * into a string; the other columns are skipped. Names go to
+ * {@link BackOffice#registerCustomers(java.util.Collection)} a batch at a
+ * time, on a separate thread, while the next batch is being parsed. Imported
+ * customers get new ids and new cards. A file without a <code>name</code>
+ * column in its first line is read as one name per line.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class CustomerCsv {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] HEADER = "id,name,card,credits\n"
+			.getBytes(UTF8);
+
+	/** Customers per registration or page */
+	static final int BATCH = 1000;
+	/** Batches parsed ahead of registration */
+	static final int AHEAD = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Told about the progress of an import or export, once per batch.
+	 */
+	interface Progress {
+		void update(long customers, long bytes);
+	}
+
+	private CustomerCsv() {
+	}
+
+	/**
+	 * Write every customer of <code>office</code> to <code>file</code>.
+	 *
+	 * @return the number of customers written.
+	 * @throws BackOfficeException
+	 */
+	static long export(BackOffice office, File file, Progress progress)
+			throws BackOfficeException {
+		FileOutputStream out = null;
+		Iterator<List<Customer>> pages = null;
+		long count = 0;
+		try {
+			out = new FileOutputStream(file);
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.put(HEADER);
+			pages = office.streamCustomers(null, BATCH);
+			while (pages.hasNext()) {
+				for (Customer c : pages.next()) {
+					byte[] name = c.getName().getBytes(UTF8);
+					if (buffer.remaining() < 2 * name.length + 40) {
+						drain(channel, buffer);
+						if (buffer.remaining() < 2 * name.length + 40) {
+							throw new BackOfficeException("Name too long: "
+									+ c.getName());
+						}
+					}
+					putNumber(buffer, c.getID());
+					buffer.put((byte) ',');
+					putName(buffer, name);
+					buffer.put((byte) ',');
+					if (c.getCard() != null) {
+						putNumber(buffer, c.getCardID());
+						buffer.put((byte) ',');
+						putNumber(buffer, c.getCredits());
+					} else {
+						buffer.put((byte) ',');
+					}
+					buffer.put((byte) '\n');
+					count++;
+				}
+				if (progress != null) {
+					progress.update(count, channel.position()
+							+ buffer.position());
+				}
+			}
+			drain(channel, buffer);
+			channel.force(false);
+		} catch (IOException e) {
+			throw new BackOfficeException("Exporting customers failed", e);
+		} finally {
+			if (pages != null) {
+				CustomerPages.close(pages);
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return count;
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Write the digits of a number without going through a string.
+	 */
+	private static void putNumber(ByteBuffer buffer, int value) {
+		long v = value;
+		if (v < 0) {
+			buffer.put((byte) '-');
+			v = -v;
+		}
+		long divisor = 1;
+		while (divisor * 10 <= v) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			buffer.put((byte) ('0' + v / divisor % 10));
+		}
+	}
+
+	/**
+	 * Write a name, quoted if it holds a separator, quote or line break.
+	 */
+	private static void putName(ByteBuffer buffer, byte[] name) {
+		boolean quote = false;
+		for (byte b : name) {
+			if (b == ',' || b == '"' || b == '\n' || b == '\r') {
+				quote = true;
+				break;
+			}
+		}
+		if (!quote) {
+			buffer.put(name);
+			return;
+		}
+		buffer.put((byte) '"');
+		for (byte b : name) {
+			if (b == '"') {
+				buffer.put((byte) '"');
+			}
+			buffer.put(b);
+		}
+		buffer.put((byte) '"');
+	}
+
+	/**
+	 * Register a new customer for every record in <code>file</code>.
+	 *
+	 * @return the number of customers registered.
+	 * @throws BackOfficeException
+	 */
+	static long importFrom(final BackOffice office, File file,
+			Progress progress) throws BackOfficeException {
+		ExecutorService registrar = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "csv-import");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		LinkedList<Future<Integer>> pending = new LinkedList<Future<Integer>>();
+		FileInputStream in = null;
+		long registered = 0;
+		try {
+			in = new FileInputStream(file);
+			Parser parser = new Parser(in.getChannel());
+			List<String> batch;
+			while (!(batch = parser.next(BATCH)).isEmpty()) {
+				final List<String> names = batch;
+				pending.add(registrar.submit(new Callable<Integer>() {
+					public Integer call() throws BackOfficeException {
+						return office.registerCustomers(names).size();
+					}
+				}));
+				while (pending.size() > AHEAD) {
+					registered += pending.removeFirst().get();
+					if (progress != null) {
+						progress.update(registered, parser.position());
+					}
+				}
+			}
+			while (!pending.isEmpty()) {
+				registered += pending.removeFirst().get();
+			}
+			if (progress != null) {
+				progress.update(registered, parser.position());
+			}
+			return registered;
+		} catch (IOException e) {
+			throw new BackOfficeException("Importing customers failed", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BackOfficeException("Interrupted while importing", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BackOfficeException) {
+				throw (BackOfficeException) e.getCause();
+			}
+			throw new BackOfficeException("Importing customers failed", e
+					.getCause());
+		} finally {
+			registrar.shutdownNow();
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the name column of a CSV file a batch at a time. Fields are
+	 * scanned as bytes; only the name is decoded.
+	 */
+	private static final class Parser {
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private boolean eof;
+		private long consumed;
+
+		/* The record being read. */
+		private int column;
+		private boolean quoted;
+		private boolean quoteSeen;
+		private byte[] field = new byte[64];
+		private int length;
+		private List<String> header = new ArrayList<String>();
+		private String nameField;
+
+		/** The column of the name, or -1 until the first line was read */
+		private int nameColumn = -1;
+
+		Parser(FileChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		long position() {
+			return consumed;
+		}
+
+		private boolean fill() throws IOException {
+			if (eof) {
+				return false;
+			}
+			buffer.compact();
+			int read = channel.read(buffer);
+			buffer.flip();
+			if (read < 0) {
+				eof = true;
+			}
+			return buffer.hasRemaining();
+		}
+
+		private boolean collecting() {
+			return nameColumn < 0 || column == nameColumn;
+		}
+
+		private void append(byte b) {
+			if (!collecting()) {
+				return;
+			}
+			if (length == field.length) {
+				byte[] larger = new byte[2 * field.length];
+				System.arraycopy(field, 0, larger, 0, length);
+				field = larger;
+			}
+			field[length++] = b;
+		}
+
+		private String decode() {
+			return new String(field, 0, length, UTF8);
+		}
+
+		/**
+		 * Skip the byte order mark some editors put in front of UTF-8.
+		 */
+		private void skipByteOrderMark() throws IOException {
+			while (buffer.remaining() < 3 && fill()) {
+			}
+			if (buffer.remaining() >= 3 && buffer.get(0) == (byte) 0xEF
+					&& buffer.get(1) == (byte) 0xBB
+					&& buffer.get(2) == (byte) 0xBF) {
+				buffer.position(3);
+				consumed = 3;
+			}
+		}
+
+		/** The end of a field. */
+		private void endField() {
+			if (nameColumn < 0) {
+				header.add(decode());
+			} else if (column == nameColumn) {
+				nameField = length > 0 ? decode() : null;
+			}
+			length = 0;
+			column++;
+			quoteSeen = false;
+		}
+
+		/**
+		 * The end of a record.
+		 *
+		 * @return the name in it, or <code>null</code> if there is none.
+		 */
+		private String endRecord() {
+			endField();
+			column = 0;
+			String name = nameField;
+			nameField = null;
+			if (nameColumn < 0) {
+				nameColumn = 0;
+				for (int i = 0; i < header.size(); i++) {
+					if (header.get(i).trim().equalsIgnoreCase("name")) {
+						nameColumn = i;
+						header = null;
+						return null;
+					}
+				}
+				name = header.get(0).length() > 0 ? header.get(0) : null;
+				header = null;
+			}
+			return name;
+		}
+
+		/**
+		 * @return up to <code>max</code> names, none at the end of the file.
+		 */
+		List<String> next(int max) throws IOException {
+			List<String> names = new ArrayList<String>(max);
+			if (nameColumn < 0 && consumed == 0) {
+				skipByteOrderMark();
+			}
+			while (names.size() < max) {
+				if (!buffer.hasRemaining() && !fill()) {
+					if (column > 0 || length > 0) {
+						String name = endRecord();
+						if (name != null) {
+							names.add(name);
+						}
+					}
+					break;
+				}
+				byte b = buffer.get();
+				consumed++;
+				if (quoted) {
+					if (b == '"') {
+						quoted = false;
+						quoteSeen = true;
+					} else {
+						append(b);
+					}
+				} else if (b == '"') {
+					if (quoteSeen) {
+						append(b);
+					}
+					quoted = true;
+				} else if (b == ',') {
+					endField();
+				} else if (b == '\n') {
+					if (column > 0 || length > 0) {
+						String name = endRecord();
+						if (name != null) {
+							names.add(name);
+						}
+					}
+				} else if (b != '\r') {
+					append(b);
+				}
+			}
+			return names;
+		}
+	}
+
+	/**
+	 * Import or export the back office selected with the same system
+	 * properties as the office terminal uses.
+	 *
+	 * @param args
+	 *            <code>import</code> or <code>export</code>, and a file name
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2
+				|| !(args[0].equals("import") || args[0].equals("export"))) {
+			System.err.println("Usage: CustomerCsv import|export <file>");
+			return;
+		}
+		Security.addProvider(new BouncyCastleProvider());
+		final long start = System.nanoTime();
+		Progress progress = new Progress() {
+			private long reported;
+
+			public void update(long customers, long bytes) {
+				if (customers - reported < 10 * BATCH) {
+					return;
+				}
+				reported = customers;
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(customers + " customers, " + bytes / 1024
+						+ " kB, " + (long) (customers / seconds)
+						+ " customers/s");
+			}
+		};
+		try {
+			BackOffice office = OfficeTerminal.createStore();
+			File file = new File(args[1]);
+			long count = args[0].equals("import") ? importFrom(office, file,
+					progress) : export(office, file, progress);
+			office.save();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println((args[0].equals("import") ? "Imported "
+					: "Exported ")
+					+ count + " customers in " + (long) (seconds * 1000)
+					+ " ms (" + (long) (count / seconds) + " customers/s)");
+		} catch (BackOfficeException e) {
+			System.err.println("Failed to " + args[0] + " customers: "
+					+ e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Failed to save the back office: "
+					+ e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package officeterminal;
+
+/**
+ * Selects customers while streaming over the back office.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+interface CustomerFilter {
+	boolean accept(Customer customer);
+}
@@ -0,0 +1,79 @@
+package officeterminal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index from customer name to customer ids, for a store that keeps
+ * its customers in memory. Unlike {@link NameIndex} it holds no strings: it
+ * sorts the customers themselves by name and then by id, comparing the names
+ * as bytes where they are kept (see {@link NameArena}). Lookups never lock.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class CustomerNameIndex {
+	private static final Comparator<Customer> BY_NAME = new Comparator<Customer>() {
+		public int compare(Customer a, Customer b) {
+			int byName = a.compareName(b);
+			if (byName != 0) {
+				return byName;
+			}
+			return a.getID() < b.getID() ? -1 : a.getID() == b.getID() ? 0 : 1;
+		}
+	};
+
+	private ConcurrentSkipListSet<Customer> sorted = new ConcurrentSkipListSet<Customer>(
+			BY_NAME);
+
+	void add(Customer c) {
+		sorted.add(c);
+	}
+
+	/**
+	 * Remove the entry with the name and id of <code>c</code>.
+	 */
+	void remove(Customer c) {
+		sorted.remove(c);
+	}
+
+	/**
+	 * @return the lowest id of a customer with exactly this name, or -1.
+	 */
+	int first(String name) {
+		Customer probe = new Customer(name, Integer.MIN_VALUE);
+		Customer first = sorted.ceiling(probe);
+		return first == null || first.compareName(probe) != 0 ? -1 : first
+				.getID();
+	}
+
+	/**
+	 * Find customers whose name starts with <code>prefix</code>, ordered by
+	 * name and then by id.
+	 *
+	 * @param prefix
+	 *            start of the name, may be empty
+	 * @param offset
+	 *            number of matches to skip
+	 * @param limit
+	 *            maximum number of ids to return
+	 * @return a page of matching customer ids
+	 */
+	List<Integer> prefix(String prefix, int offset, int limit) {
+		List<Integer> page = new ArrayList<Integer>();
+		byte[] start = NameArena.encode(prefix);
+		for (Customer c : sorted.tailSet(new Customer(prefix, Integer.MIN_VALUE))) {
+			if (page.size() >= limit || !c.nameStartsWith(start)) {
+				break;
+			}
+			if (offset > 0) {
+				offset--;
+			} else {
+				page.add(c.getID());
+			}
+		}
+		return page;
+	}
+}
@@ -0,0 +1,122 @@
+package officeterminal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Groups a lazily produced sequence of customers into pages. Only the current
+ * page is ever held in memory. Whatever the store holds for the sequence, such
+ * as a snapshot or a cursor, is released when the last page has been read, or
+ * when the pages are closed before that.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class CustomerPages implements Iterator<List<Customer>>, Closeable {
+	private Iterator<Customer> source;
+	private Closeable resource;
+	private CustomerFilter filter;
+	private int pageSize;
+	private List<Customer> next;
+
+	/**
+	 * @param source
+	 *            customers in store order, produced on demand
+	 * @param filter
+	 *            customers to keep, or <code>null</code> for all of them
+	 * @param pageSize
+	 *            maximum number of customers per page
+	 */
+	CustomerPages(Iterator<Customer> source, CustomerFilter filter,
+			int pageSize) {
+		this(source, filter, pageSize, null);
+	}
+
+	/**
+	 * @param resource
+	 *            released once the pages are read or closed, or
+	 *            <code>null</code>
+	 */
+	CustomerPages(Iterator<Customer> source, CustomerFilter filter,
+			int pageSize, Closeable resource) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be positive.");
+		}
+		this.source = source;
+		this.filter = filter;
+		this.pageSize = pageSize;
+		this.resource = resource;
+	}
+
+	/**
+	 * Close pages returned by {@link BackOffice#streamCustomers} that may not
+	 * have been read to the end.
+	 */
+	static void close(Iterator<List<Customer>> pages) {
+		if (pages instanceof Closeable) {
+			try {
+				((Closeable) pages).close();
+			} catch (IOException e) {
+				System.err.println("Could not release customer pages: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	private List<Customer> fill() {
+		List<Customer> page = new ArrayList<Customer>(pageSize);
+		while (page.size() < pageSize && source.hasNext()) {
+			Customer c = source.next();
+			if (filter == null || filter.accept(c)) {
+				page.add(c);
+			}
+		}
+		return page;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			next = fill();
+			if (next.isEmpty()) {
+				close();
+			}
+		}
+		return !next.isEmpty();
+	}
+
+	@Override
+	public List<Customer> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		List<Customer> page = next;
+		next = null;
+		return page;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Release the resource of the sequence. Closing twice does nothing.
+	 */
+	public void close() {
+		Closeable r = resource;
+		resource = null;
+		if (r != null) {
+			try {
+				r.close();
+			} catch (IOException e) {
+				System.err.println("Could not release customer pages: "
+						+ e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package officeterminal;
+
+import java.io.Closeable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Past states of the customer table, so reports can read it as it was at one
+ * moment while terminals keep changing it. Before a customer is changed, its
+ * state is kept as an immutable version, stamped from a global clock once the
+ * change is made. A {@link Snapshot} reads the customer from the live table,
+ * unless it was changed after the stamp of the snapshot: then it reads the
+ * state kept before the first such change. Neither side takes a lock the
+ * other waits for.
+ *
+ * Only customers changed while a snapshot was open have versions, in a map of
+ * their own, so the customer table itself carries nothing extra. Versions
+ * that no open snapshot can see any more are cut off when the change is done,
+ * or swept once the last snapshot is closed. Snapshots that are dropped
+ * without being closed are noticed by the garbage collector.
+ *
+ * Changes to one customer must not run concurrently; the simulator makes
+ * them under the lock stripe of the customer.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class CustomerVersions {
+	private static final long UNCOMMITTED = Long.MAX_VALUE;
+
+	/**
+	 * The state of a customer until the change stamped with
+	 * <code>stamp</code>.
+	 */
+	private static final class Version {
+		/**
+		 * Holds the name, which is never changed, or <code>null</code> if the
+		 * customer did not exist
+		 */
+		final Customer customer;
+		final int cardId;
+		final short credits;
+		volatile long stamp = UNCOMMITTED;
+		volatile Version previous;
+
+		Version(Customer c, Version previous) {
+			this.customer = c;
+			Card card = c == null ? null : c.getCard();
+			this.cardId = card == null ? -1 : card.getID();
+			this.credits = card == null ? 0 : card.getCredits();
+			this.previous = previous;
+		}
+
+		/**
+		 * The stamp is taken after the change is made, so a reader can meet
+		 * the version in between; it is then a matter of a few instructions.
+		 */
+		long stamp() {
+			long s;
+			while ((s = stamp) == UNCOMMITTED) {
+				Thread.yield();
+			}
+			return s;
+		}
+
+		Customer toCustomer() {
+			if (customer == null) {
+				return null;
+			}
+			Customer c = customer.clone();
+			c.setCard(cardId == -1 ? null : new Card(cardId, credits, c));
+			return c;
+		}
+	}
+
+	/**
+	 * Keeps a snapshot open until it is closed or collected. Ordered by the
+	 * stamp below which versions must be kept.
+	 */
+	private static final class Registration extends WeakReference<Snapshot>
+			implements Comparable<Registration> {
+		private static final AtomicLong serials = new AtomicLong();
+		final long floor;
+		final long serial = serials.incrementAndGet();
+
+		Registration(Snapshot snapshot, long floor,
+				ReferenceQueue<Snapshot> queue) {
+			super(snapshot, queue);
+			this.floor = floor;
+		}
+
+		public int compareTo(Registration other) {
+			if (floor != other.floor) {
+				return floor < other.floor ? -1 : 1;
+			}
+			return serial < other.serial ? -1 : serial == other.serial ? 0 : 1;
+		}
+	}
+
+	private IntHashMap<Customer> table;
+	/** Versions of the customers changed while a snapshot was open, newest first */
+	private ConcurrentHashMap<Integer, Version> retained = new ConcurrentHashMap<Integer, Version>();
+	private AtomicLong clock = new AtomicLong();
+	private ConcurrentSkipListSet<Registration> open = new ConcurrentSkipListSet<Registration>();
+	private ReferenceQueue<Snapshot> dropped = new ReferenceQueue<Snapshot>();
+
+	/**
+	 * @param table
+	 *            the live customer table, which only holds current customers
+	 */
+	CustomerVersions(IntHashMap<Customer> table) {
+		this.table = table;
+	}
+
+	/**
+	 * Keep the state of a customer before it is changed, added or removed.
+	 * Call {@link #after(int)} once the change is made.
+	 *
+	 * @param current
+	 *            the customer in the table, or <code>null</code> if there is
+	 *            none yet
+	 */
+	void before(int id, Customer current) {
+		retained.put(id, new Version(current, retained.get(id)));
+	}
+
+	/**
+	 * Stamp the change to a customer, and drop the versions no snapshot needs.
+	 * Does nothing if {@link #before(int, Customer)} was not called.
+	 */
+	void after(int id) {
+		Version head = retained.get(id);
+		if (head == null || head.stamp != UNCOMMITTED) {
+			return;
+		}
+		head.stamp = clock.incrementAndGet();
+		expunge();
+		if (trim(head, oldestFloor())) {
+			retained.remove(id, head);
+		}
+	}
+
+	/**
+	 * Cut off the versions that no snapshot stamped at or after
+	 * <code>floor</code> reads.
+	 *
+	 * @return whether that is all of them.
+	 */
+	private static boolean trim(Version head, long floor) {
+		if (head.stamp <= floor) {
+			return true;
+		}
+		Version v = head;
+		while (v.previous != null && v.previous.stamp > floor) {
+			v = v.previous;
+		}
+		v.previous = null;
+		return false;
+	}
+
+	private long oldestFloor() {
+		Iterator<Registration> i = open.iterator();
+		return i.hasNext() ? i.next().floor : UNCOMMITTED;
+	}
+
+	/**
+	 * Forget snapshots that were collected without being closed.
+	 */
+	private void expunge() {
+		boolean removed = false;
+		Object r;
+		while ((r = dropped.poll()) != null) {
+			removed |= open.remove(r);
+		}
+		if (removed) {
+			sweep();
+		}
+	}
+
+	/**
+	 * Once no snapshot is open, drop every version kept for the snapshots
+	 * that were.
+	 */
+	private void sweep() {
+		for (Map.Entry<Integer, Version> e : retained.entrySet()) {
+			// A snapshot opened after this check stamps at least now.
+			long now = clock.get();
+			if (!open.isEmpty()) {
+				return;
+			}
+			if (trim(e.getValue(), now)) {
+				retained.remove(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return a view of the customers as they are now, which later changes do
+	 *         not affect. Close it when done.
+	 */
+	Snapshot snapshot() {
+		expunge();
+		Snapshot snapshot = new Snapshot();
+		// Register before taking the stamp: a change that misses the
+		// registration got its stamp before ours, so it is visible.
+		Registration registration = new Registration(snapshot, clock.get(),
+				dropped);
+		open.add(registration);
+		snapshot.stamp = clock.get();
+		snapshot.registration = registration;
+		return snapshot;
+	}
+
+	/**
+	 * @return a copy of a customer in the table that later changes do not
+	 *         affect.
+	 */
+	private static Customer copyOf(Customer live) {
+		Customer c = live.clone();
+		Card card = live.getCard();
+		c.setCard(card == null ? null : new Card(card.getID(), card
+				.getCredits(), c));
+		return c;
+	}
+
+	/**
+	 * The customer table at one moment.
+	 */
+	final class Snapshot implements Closeable {
+		private long stamp;
+		private Registration registration;
+
+		/**
+		 * @return the customer as it was, or <code>null</code> if it did not
+		 *         exist.
+		 */
+		Customer getCustomer(int id) {
+			Customer live = table.get(id);
+			return resolve(id, live == null ? null : copyOf(live));
+		}
+
+		/**
+		 * @param current
+		 *            the customer as read from the table, before looking for
+		 *            versions: a change that got in between kept its version
+		 *            first
+		 */
+		private Customer resolve(int id, Customer current) {
+			Version v = retained.get(id);
+			Version then = null;
+			while (v != null && v.stamp() > stamp) {
+				then = v;
+				v = v.previous;
+			}
+			return then == null ? current : then.toCustomer();
+		}
+
+		/**
+		 * @return every customer as it was, in no particular order: those in
+		 *         the table, and then those that were removed since.
+		 */
+		Iterator<Customer> customers() {
+			final Iterator<Customer> live = table.iterator();
+			final BitSet seen = new BitSet();
+			return new Iterator<Customer>() {
+				private Customer next;
+				/*
+				 * Started once the table is walked, so it has the versions of
+				 * every customer that was removed before the walk reached it.
+				 */
+				private Iterator<Integer> changed;
+
+				public boolean hasNext() {
+					while (next == null && live.hasNext()) {
+						Customer c = live.next();
+						seen.set(c.getID());
+						next = resolve(c.getID(), copyOf(c));
+					}
+					if (next == null && changed == null) {
+						changed = retained.keySet().iterator();
+					}
+					while (next == null && changed.hasNext()) {
+						int id = changed.next();
+						if (!seen.get(id)) {
+							next = resolve(id, null);
+						}
+					}
+					return next != null;
+				}
+
+				public Customer next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					Customer c = next;
+					next = null;
+					return c;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/**
+		 * Release the versions kept for this snapshot.
+		 */
+		public void close() {
+			if (open.remove(registration)) {
+				registration.clear();
+				sweep();
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package officeterminal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import common.CreditTransaction;
+
+/**
+ * Recognizes transactions a register delivers more than once, by card,
+ * register and sequence number. Every register has a window of its latest
+ * {@link #WINDOW} sequence numbers, each in the slot given by its low bits, so
+ * a lookup is one map lookup and two array reads whatever the outcome.
+ * Transactions further back than the window count as delivered. Memory is
+ * bounded by the number of registers, however many transactions pass.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class DuplicateFilter {
+	/** Sequence numbers per register in which delivery may be out of order */
+	static final int WINDOW = 4096;
+
+	private static final class Window {
+		/** The highest sequence number in the window */
+		long last;
+		final long[] sequences = new long[WINDOW];
+		final int[] cards = new int[WINDOW];
+
+		Window(long first) {
+			last = first;
+			Arrays.fill(sequences, Long.MIN_VALUE);
+		}
+	}
+
+	private Map<Integer, Window> windows = new HashMap<Integer, Window>();
+
+	/**
+	 * @return whether <code>t</code> was added before, or is too old to
+	 *         tell.
+	 */
+	boolean contains(CreditTransaction t) {
+		Window w = windows.get(t.getRegisterId());
+		if (w == null) {
+			return false;
+		}
+		long sequence = t.getSequence();
+		if (sequence <= w.last - WINDOW) {
+			return true;
+		}
+		int slot = (int) sequence & (WINDOW - 1);
+		return w.sequences[slot] == sequence && w.cards[slot] == t.getCardId();
+	}
+
+	void add(CreditTransaction t) {
+		long sequence = t.getSequence();
+		Window w = windows.get(t.getRegisterId());
+		if (w == null) {
+			w = new Window(sequence);
+			windows.put(t.getRegisterId(), w);
+		}
+		if (sequence <= w.last - WINDOW) {
+			return;
+		}
+		int slot = (int) sequence & (WINDOW - 1);
+		w.sequences[slot] = sequence;
+		w.cards[slot] = t.getCardId();
+		w.last = Math.max(w.last, sequence);
+	}
+
+	/**
+	 * @return the windows of all registers, ready to be written. Only the
+	 *         slots in use are written.
+	 */
+	ByteBuffer encode() {
+		int size = 4;
+		for (Window w : windows.values()) {
+			size += 16 + 12 * WINDOW;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(windows.size());
+		for (Map.Entry<Integer, Window> e : windows.entrySet()) {
+			Window w = e.getValue();
+			buffer.putInt(e.getKey());
+			buffer.putLong(w.last);
+			int count = buffer.position();
+			buffer.putInt(0);
+			int used = 0;
+			for (int slot = 0; slot < WINDOW; slot++) {
+				if (w.sequences[slot] != Long.MIN_VALUE) {
+					buffer.putLong(w.sequences[slot]);
+					buffer.putInt(w.cards[slot]);
+					used++;
+				}
+			}
+			buffer.putInt(count, used);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static DuplicateFilter readFrom(ByteBuffer buffer) {
+		DuplicateFilter filter = new DuplicateFilter();
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			int register = buffer.getInt();
+			Window w = new Window(buffer.getLong());
+			int used = buffer.getInt();
+			for (int j = 0; j < used; j++) {
+				long sequence = buffer.getLong();
+				int slot = (int) sequence & (WINDOW - 1);
+				w.sequences[slot] = sequence;
+				w.cards[slot] = buffer.getInt();
+			}
+			filter.windows.put(register, w);
+		}
+		return filter;
+	}
+}
@@ -0,0 +1,54 @@
+package officeterminal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out monotonically increasing ids. Ids are never reused, not even after
+ * the entity they were given to is deleted. Ids stay <code>int</code>s because
+ * that is what the card stores.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class IdAllocator {
+	private final AtomicInteger last;
+
+	IdAllocator(int last) {
+		this.last = new AtomicInteger(last);
+	}
+
+	/**
+	 * @return a new, unused id.
+	 */
+	int next() {
+		return last.incrementAndGet();
+	}
+
+	/**
+	 * Reserve <code>count</code> consecutive ids at once.
+	 * 
+	 * @return the first id of the block.
+	 */
+	int nextBlock(int count) {
+		return last.addAndGet(count) - count + 1;
+	}
+
+	/**
+	 * @return the highest id handed out so far.
+	 */
+	int last() {
+		return last.get();
+	}
+
+	/**
+	 * Make sure no id up to and including <code>id</code> is handed out again.
+	 */
+	void reserve(int id) {
+		while (true) {
+			int current = last.get();
+			if (current >= id || last.compareAndSet(current, id)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package officeterminal;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map from <code>int</code> ids to records, without boxing and
+ * without an entry object per record. Keys and values are kept in two
+ * parallel arrays and found by linear probing; a map is split into segments
+ * that each lock for updates, while lookups take no lock at all.
+ *
+ * A removed record leaves its key behind with no value, so a lookup probing
+ * past it never misses a record further on. These keys are cleared when the
+ * segment is rebuilt, which also happens when it fills up.
+ *
+ * <code>Integer.MIN_VALUE</code> marks an empty slot and cannot be used as a
+ * key.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class IntHashMap<V> implements Iterable<V> {
+	private static final int EMPTY = Integer.MIN_VALUE;
+	private static final int SEGMENT_BITS = 4;
+	private static final int MIN_CAPACITY = 16;
+
+	private static final class Table<V> {
+		final AtomicIntegerArray keys;
+		final AtomicReferenceArray<V> values;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new AtomicIntegerArray(capacity);
+			values = new AtomicReferenceArray<V>(capacity);
+			mask = capacity - 1;
+			for (int i = 0; i < capacity; i++) {
+				keys.lazySet(i, EMPTY);
+			}
+		}
+	}
+
+	private static final class Segment<V> {
+		volatile Table<V> table = new Table<V>(MIN_CAPACITY);
+		/** Slots holding a record */
+		volatile int count;
+		/** Slots holding a key, with or without a record */
+		int used;
+	}
+
+	private final Segment<V>[] segments;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	IntHashMap() {
+		segments = new Segment[1 << SEGMENT_BITS];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment<V>();
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Segment<V> segmentFor(int hash) {
+		return segments[hash >>> (32 - SEGMENT_BITS)];
+	}
+
+	private static void check(int key) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("Key out of range.");
+		}
+	}
+
+	/**
+	 * @return the slot holding <code>key</code>, or the empty slot that ends
+	 *         its probe sequence, as <code>-1 - slot</code>.
+	 */
+	private static int find(Table<?> t, int hash, int key) {
+		int i = hash & t.mask;
+		while (true) {
+			int k = t.keys.get(i);
+			if (k == key) {
+				return i;
+			}
+			if (k == EMPTY) {
+				return -1 - i;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	V get(int key) {
+		int h = hash(key);
+		Table<V> t = segmentFor(h).table;
+		int i = find(t, h, key);
+		return i < 0 ? null : t.values.get(i);
+	}
+
+	boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return the record that was stored under <code>key</code> before.
+	 */
+	V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		check(key);
+		int h = hash(key);
+		Segment<V> s = segmentFor(h);
+		synchronized (s) {
+			Table<V> t = s.table;
+			int i = find(t, h, key);
+			if (i >= 0) {
+				V old = t.values.get(i);
+				t.values.set(i, value);
+				if (old == null) {
+					s.count++;
+				}
+				return old;
+			}
+			if ((s.used + 1) * 4 > (t.mask + 1) * 3) {
+				t = rebuild(s);
+				i = find(t, h, key);
+			}
+			i = -1 - i;
+			// The value must be in place before a reader can find the key.
+			t.values.set(i, value);
+			t.keys.set(i, key);
+			s.used++;
+			s.count++;
+			return null;
+		}
+	}
+
+	/**
+	 * Move the records of a segment into a new table sized for them, dropping
+	 * the keys of removed records.
+	 */
+	private Table<V> rebuild(Segment<V> s) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < (s.count + 1) * 2) {
+			capacity <<= 1;
+		}
+		Table<V> old = s.table;
+		Table<V> fresh = new Table<V>(capacity);
+		for (int i = 0; i <= old.mask; i++) {
+			V value = old.values.get(i);
+			if (value != null) {
+				int key = old.keys.get(i);
+				int slot = -1 - find(fresh, hash(key), key);
+				fresh.values.lazySet(slot, value);
+				fresh.keys.lazySet(slot, key);
+			}
+		}
+		s.used = s.count;
+		s.table = fresh;
+		return fresh;
+	}
+
+	/**
+	 * @return the record that was removed, or <code>null</code> if there was
+	 *         none.
+	 */
+	V remove(int key) {
+		return removeIf(key, null);
+	}
+
+	/**
+	 * Remove the record under <code>key</code> only if it is
+	 * <code>expected</code>.
+	 *
+	 * @return whether it was removed.
+	 */
+	boolean remove(int key, V expected) {
+		if (expected == null) {
+			throw new NullPointerException();
+		}
+		return removeIf(key, expected) != null;
+	}
+
+	/**
+	 * Remove the record under <code>key</code> if it is <code>expected</code>,
+	 * or whatever it is if <code>expected</code> is <code>null</code>.
+	 */
+	private V removeIf(int key, V expected) {
+		int h = hash(key);
+		Segment<V> s = segmentFor(h);
+		synchronized (s) {
+			Table<V> t = s.table;
+			int i = find(t, h, key);
+			if (i < 0) {
+				return null;
+			}
+			V old = t.values.get(i);
+			if (old == null || (expected != null && !expected.equals(old))) {
+				return null;
+			}
+			t.values.set(i, null);
+			s.count--;
+			if (s.count * 8 < t.mask + 1 && t.mask + 1 > MIN_CAPACITY) {
+				rebuild(s);
+			}
+			return old;
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Segment<V> s : segments) {
+			size += s.count;
+		}
+		return size;
+	}
+
+	/**
+	 * Walks the records without locking. Records added or removed while
+	 * walking may or may not show up.
+	 */
+	public Iterator<V> iterator() {
+		return new Iterator<V>() {
+			private int segment = -1;
+			private Table<V> table;
+			private int slot;
+			private V next;
+
+			public boolean hasNext() {
+				while (next == null) {
+					if (table == null || slot > table.mask) {
+						if (segment + 1 == segments.length) {
+							return false;
+						}
+						segment++;
+						table = segments[segment].table;
+						slot = 0;
+						continue;
+					}
+					next = table.values.get(slot++);
+				}
+				return true;
+			}
+
+			public V next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				V value = next;
+				next = null;
+				return value;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,670 @@
+package officeterminal;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import common.CreditTransaction;
+
+/**
+ * BackOffice backed by an embedded SQL database, such as H2 or SQLite. The
+ * driver only has to be on the class path; the store is chosen by its JDBC
+ * URL. Every operation runs in its own transaction on a pooled connection.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class JdbcBackOffice implements BackOffice {
+	private static final int POOL_SIZE = 4;
+
+	private static final String[] SCHEMA = {
+			"CREATE TABLE IF NOT EXISTS customers (id INTEGER PRIMARY KEY, "
+					+ "name VARCHAR(255) NOT NULL, card_id INTEGER)",
+			"CREATE TABLE IF NOT EXISTS cards (id INTEGER PRIMARY KEY, "
+					+ "customer_id INTEGER NOT NULL, credits SMALLINT NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS counters (name VARCHAR(16) PRIMARY KEY, "
+					+ "last_id INTEGER NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS transactions (register_id INTEGER NOT NULL, "
+					+ "sequence BIGINT NOT NULL, card_id INTEGER NOT NULL, "
+					+ "amount SMALLINT NOT NULL, new_balance SMALLINT NOT NULL, "
+					+ "PRIMARY KEY (register_id, sequence))",
+			"CREATE INDEX IF NOT EXISTS customers_name ON customers (name)",
+			"CREATE INDEX IF NOT EXISTS customers_card ON customers (card_id)",
+			"CREATE INDEX IF NOT EXISTS cards_customer ON cards (customer_id)" };
+
+	private static final String SELECT_CUSTOMER = "SELECT c.id, c.name, k.id, k.credits "
+			+ "FROM customers c LEFT JOIN cards k ON k.id = c.card_id ";
+	private static final String BY_ID = SELECT_CUSTOMER + "WHERE c.id = ?";
+	private static final String BY_NAME = SELECT_CUSTOMER
+			+ "WHERE c.name = ? ORDER BY c.id LIMIT 1";
+	private static final String BY_PREFIX = SELECT_CUSTOMER
+			+ "WHERE c.name LIKE ? ESCAPE '!' ORDER BY c.name, c.id LIMIT ? OFFSET ?";
+	private static final String BY_CARD = SELECT_CUSTOMER
+			+ "WHERE c.id = (SELECT customer_id FROM cards WHERE id = ?)";
+	private static final String ALL = SELECT_CUSTOMER + "ORDER BY c.id";
+	private static final String AFTER = SELECT_CUSTOMER
+			+ "WHERE c.id > ? ORDER BY c.id LIMIT ?";
+
+	private static final String INSERT_CUSTOMER = "INSERT INTO customers (id, name, card_id) VALUES (?, ?, ?)";
+	private static final String INSERT_CARD = "INSERT INTO cards (id, customer_id, credits) VALUES (?, ?, ?)";
+	private static final String SET_CARD = "UPDATE customers SET card_id = ? WHERE id = ?";
+	private static final String CLEAR_CARD = "UPDATE customers SET card_id = NULL WHERE card_id = ?";
+	private static final String DELETE_CARD = "DELETE FROM cards WHERE id = ?";
+	private static final String DELETE_CUSTOMER = "DELETE FROM customers WHERE id = ?";
+	private static final String EXISTS_CUSTOMER = "SELECT 1 FROM customers WHERE id = ?";
+	private static final String READ_COUNTER = "SELECT last_id FROM counters WHERE name = ?";
+	private static final String INSERT_COUNTER = "INSERT INTO counters (name, last_id) VALUES (?, 0)";
+	private static final String INSERT_TRANSACTION = "INSERT INTO transactions "
+			+ "(register_id, sequence, card_id, amount, new_balance) SELECT ?, ?, ?, ?, ? "
+			+ "WHERE NOT EXISTS (SELECT 1 FROM transactions WHERE register_id = ? AND sequence = ?)";
+	private static final String ADD_CREDITS = "UPDATE cards SET credits = credits + ? WHERE id = ?";
+	private static final String COUNT_CUSTOMERS = "SELECT COUNT(*) FROM customers";
+	private static final String ALL_CARDS = "SELECT id, customer_id, credits FROM cards";
+	private static final String UPDATE_COUNTER = "UPDATE counters SET last_id = ? WHERE name = ? AND last_id < ?";
+
+	private ConnectionPool pool;
+	private KeyPair supermarketKeyPair;
+	private IdAllocator customerIds;
+	private IdAllocator cardIds;
+	private LiveStatistics statistics = new LiveStatistics();
+	/** Whether the driver reports row counts for batched inserts */
+	private volatile boolean batchCounts = true;
+
+	/**
+	 * Connect to the database and create the schema if it does not exist yet.
+	 *
+	 * @param keyPath
+	 *            directory holding the supermarket key pair
+	 * @param url
+	 *            JDBC URL of the database, e.g. <code>jdbc:h2:./backoffice</code>
+	 * @throws BackOfficeException
+	 */
+	public JdbcBackOffice(String keyPath, String url) throws BackOfficeException {
+		supermarketKeyPair = SupermarketKey.loadOrGenerate(keyPath);
+		try {
+			pool = new ConnectionPool(url, POOL_SIZE);
+		} catch (SQLException e) {
+			throw new BackOfficeException("Failed to connect to " + url, e);
+		}
+
+		ConnectionPool.Pooled c = acquire();
+		try {
+			Statement statement = c.connection.createStatement();
+			try {
+				for (String sql : SCHEMA) {
+					statement.executeUpdate(sql);
+				}
+			} finally {
+				statement.close();
+			}
+			customerIds = new IdAllocator(readCounter(c, "customers"));
+			cardIds = new IdAllocator(readCounter(c, "cards"));
+			countRecords(c);
+			c.connection.commit();
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+
+		System.out.println("Loaded information on " + customerIds.last()
+				+ " customers, and " + cardIds.last() + " cards.");
+	}
+
+	private static int readCounter(ConnectionPool.Pooled c, String name)
+			throws SQLException {
+		PreparedStatement read = c.prepare(READ_COUNTER);
+		read.setString(1, name);
+		ResultSet rs = read.executeQuery();
+		try {
+			if (rs.next()) {
+				return rs.getInt(1);
+			}
+		} finally {
+			rs.close();
+		}
+		PreparedStatement insert = c.prepare(INSERT_COUNTER);
+		insert.setString(1, name);
+		insert.executeUpdate();
+		return 0;
+	}
+
+	/**
+	 * Count what is in the database, once, to start the statistics from.
+	 * Changes made through other connections after this are not seen.
+	 */
+	private void countRecords(ConnectionPool.Pooled c) throws SQLException {
+		ResultSet rs = c.prepare(COUNT_CUSTOMERS).executeQuery();
+		try {
+			rs.next();
+			statistics.customersAdded(rs.getLong(1));
+		} finally {
+			rs.close();
+		}
+		rs = c.prepare(ALL_CARDS).executeQuery();
+		try {
+			while (rs.next()) {
+				statistics.cardChanged(rs.getInt(1), rs.getInt(2), rs
+						.getShort(3));
+			}
+		} finally {
+			rs.close();
+		}
+	}
+
+	private static void writeCounter(ConnectionPool.Pooled c, String name,
+			int last) throws SQLException {
+		PreparedStatement update = c.prepare(UPDATE_COUNTER);
+		update.setInt(1, last);
+		update.setString(2, name);
+		update.setInt(3, last);
+		update.executeUpdate();
+	}
+
+	private ConnectionPool.Pooled acquire() throws BackOfficeException {
+		try {
+			return pool.acquire();
+		} catch (SQLException e) {
+			throw failure(e);
+		}
+	}
+
+	private static void rollback(ConnectionPool.Pooled c) {
+		try {
+			c.connection.rollback();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static BackOfficeException failure(SQLException e) {
+		return new BackOfficeException("Back office database access failed", e);
+	}
+
+	/**
+	 * Build a customer, with its current card if it has one, from a row of
+	 * {@link #SELECT_CUSTOMER}.
+	 */
+	private static Customer readCustomer(ResultSet rs) throws SQLException {
+		Customer customer = new Customer(rs.getString(2), rs.getInt(1));
+		int cardId = rs.getInt(3);
+		if (!rs.wasNull()) {
+			customer.setCard(new Card(cardId, rs.getShort(4), customer));
+		}
+		return customer;
+	}
+
+	private static List<Customer> readCustomers(PreparedStatement query)
+			throws SQLException {
+		ArrayList<Customer> list = new ArrayList<Customer>();
+		ResultSet rs = query.executeQuery();
+		try {
+			while (rs.next()) {
+				list.add(readCustomer(rs));
+			}
+		} finally {
+			rs.close();
+		}
+		return list;
+	}
+
+	private static void addCustomer(PreparedStatement customer,
+			PreparedStatement card, String name, int customerId, int cardId)
+			throws SQLException {
+		customer.setInt(1, customerId);
+		customer.setString(2, name);
+		customer.setInt(3, cardId);
+		customer.addBatch();
+		card.setInt(1, cardId);
+		card.setInt(2, customerId);
+		card.setShort(3, (short) 0);
+		card.addBatch();
+	}
+
+	@Override
+	public Customer registerCustomer(String cusName) throws BackOfficeException {
+		ArrayList<String> names = new ArrayList<String>(1);
+		names.add(cusName);
+		return registerCustomers(names).get(0);
+	}
+
+	/**
+	 * Insert all customers and their cards as two JDBC batches in a single
+	 * transaction.
+	 */
+	@Override
+	public List<Customer> registerCustomers(Collection<String> names)
+			throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>(names.size());
+		if (names.isEmpty()) {
+			return list;
+		}
+		int customerId = customerIds.nextBlock(names.size());
+		int cardId = cardIds.nextBlock(names.size());
+
+		ConnectionPool.Pooled c = acquire();
+		try {
+			PreparedStatement customers = c.prepare(INSERT_CUSTOMER);
+			PreparedStatement cards = c.prepare(INSERT_CARD);
+			for (String name : names) {
+				addCustomer(customers, cards, name, customerId, cardId);
+				Customer customer = new Customer(name, customerId++);
+				customer.setCard(new Card(cardId++, (short) 0, customer));
+				list.add(customer);
+			}
+			customers.executeBatch();
+			cards.executeBatch();
+			writeCounter(c, "customers", customerId - 1);
+			writeCounter(c, "cards", cardId - 1);
+			c.connection.commit();
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+		statistics.customersAdded(list.size());
+		for (Customer customer : list) {
+			statistics.cardChanged(customer.getCardID(), customer.getID(),
+					(short) 0);
+		}
+		return list;
+	}
+
+	@Override
+	public KeyPair getSupermarketKeyPair() throws BackOfficeException {
+		return supermarketKeyPair;
+	}
+
+	@Override
+	public void issueCard(Customer client) throws BackOfficeException {
+		int cardId = cardIds.next();
+		ConnectionPool.Pooled c = acquire();
+		try {
+			PreparedStatement exists = c.prepare(EXISTS_CUSTOMER);
+			exists.setInt(1, client.getID());
+			ResultSet rs = exists.executeQuery();
+			try {
+				if (!rs.next()) {
+					throw new BackOfficeException("Unkown Customer.");
+				}
+			} finally {
+				rs.close();
+			}
+			PreparedStatement card = c.prepare(INSERT_CARD);
+			card.setInt(1, cardId);
+			card.setInt(2, client.getID());
+			card.setShort(3, (short) 0);
+			card.executeUpdate();
+			PreparedStatement link = c.prepare(SET_CARD);
+			link.setInt(1, cardId);
+			link.setInt(2, client.getID());
+			link.executeUpdate();
+			writeCounter(c, "cards", cardId);
+			c.connection.commit();
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} catch (BackOfficeException e) {
+			rollback(c);
+			throw e;
+		} finally {
+			pool.release(c);
+		}
+		client.setCard(new Card(cardId, (short) 0, client));
+		statistics.cardChanged(cardId, client.getID(), (short) 0);
+	}
+
+	@Override
+	public void deleteCard(int cardID) {
+		ConnectionPool.Pooled c;
+		try {
+			c = acquire();
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+			return;
+		}
+		try {
+			PreparedStatement delete = c.prepare(DELETE_CARD);
+			delete.setInt(1, cardID);
+			boolean deleted = delete.executeUpdate() > 0;
+			if (!deleted) {
+				System.err.println("Cannot remove non-existing card with id: "
+						+ cardID);
+			}
+			PreparedStatement unlink = c.prepare(CLEAR_CARD);
+			unlink.setInt(1, cardID);
+			unlink.executeUpdate();
+			c.connection.commit();
+			if (deleted) {
+				statistics.cardRemoved(cardID);
+			}
+		} catch (SQLException e) {
+			rollback(c);
+			e.printStackTrace();
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	@Override
+	public void deleteCustomer(int customerID) {
+		ConnectionPool.Pooled c;
+		try {
+			c = acquire();
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+			return;
+		}
+		try {
+			PreparedStatement delete = c.prepare(DELETE_CUSTOMER);
+			delete.setInt(1, customerID);
+			boolean deleted = delete.executeUpdate() > 0;
+			if (!deleted) {
+				System.err.println("Cannot remove non-existing customer with id: "
+						+ customerID);
+			}
+			c.connection.commit();
+			if (deleted) {
+				statistics.customerRemoved();
+			}
+		} catch (SQLException e) {
+			rollback(c);
+			e.printStackTrace();
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	@Override
+	public int getCardID(Customer client) throws BackOfficeException {
+		return client.getCardID();
+	}
+
+	@Override
+	public short getCredits(Customer client) throws BackOfficeException {
+		return client.getCredits();
+	}
+
+	/**
+	 * Insert the batch into the transactions table, skipping transactions that
+	 * are already there, and add the amounts of the new ones to the balances,
+	 * all in one transaction.
+	 */
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		if (batch.isEmpty()) {
+			return 0;
+		}
+		ConnectionPool.Pooled c = acquire();
+		try {
+			int[] inserted = insertTransactions(c, batch);
+			PreparedStatement credits = c.prepare(ADD_CREDITS);
+			int fresh = 0;
+			for (int i = 0; i < inserted.length; i++) {
+				if (inserted[i] <= 0) {
+					continue;
+				}
+				credits.setShort(1, batch.get(i).getAmount());
+				credits.setInt(2, batch.get(i).getCardId());
+				credits.addBatch();
+				fresh++;
+			}
+			if (fresh > 0) {
+				credits.executeBatch();
+			}
+			c.connection.commit();
+			for (int i = 0; i < inserted.length; i++) {
+				if (inserted[i] > 0) {
+					statistics.creditsAdded(batch.get(i).getCardId(), batch
+							.get(i).getAmount());
+				}
+			}
+			return fresh;
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	/**
+	 * Insert the transactions of a batch that are not there yet.
+	 *
+	 * @return per transaction, the number of rows inserted.
+	 */
+	private int[] insertTransactions(ConnectionPool.Pooled c,
+			List<CreditTransaction> batch) throws SQLException {
+		PreparedStatement insert = c.prepare(INSERT_TRANSACTION);
+		if (batchCounts) {
+			for (CreditTransaction t : batch) {
+				setTransaction(insert, t);
+				insert.addBatch();
+			}
+			int[] inserted = insert.executeBatch();
+			boolean counted = true;
+			for (int count : inserted) {
+				counted &= count != Statement.SUCCESS_NO_INFO;
+			}
+			if (counted) {
+				return inserted;
+			}
+			// The driver does not tell which rows it inserted: undo the batch
+			// and insert one row at a time from now on.
+			c.connection.rollback();
+			batchCounts = false;
+		}
+		int[] inserted = new int[batch.size()];
+		for (int i = 0; i < inserted.length; i++) {
+			setTransaction(insert, batch.get(i));
+			inserted[i] = insert.executeUpdate();
+		}
+		return inserted;
+	}
+
+	private static void setTransaction(PreparedStatement insert,
+			CreditTransaction t) throws SQLException {
+		insert.setInt(1, t.getRegisterId());
+		insert.setLong(2, t.getSequence());
+		insert.setInt(3, t.getCardId());
+		insert.setShort(4, t.getAmount());
+		insert.setShort(5, t.getNewBalance());
+		insert.setInt(6, t.getRegisterId());
+		insert.setLong(7, t.getSequence());
+	}
+
+	/**
+	 * Run a read-only query that takes a single int parameter and returns at
+	 * most one customer.
+	 */
+	private Customer queryOne(String sql, int param) throws BackOfficeException {
+		ConnectionPool.Pooled c = acquire();
+		try {
+			PreparedStatement query = c.prepare(sql);
+			query.setInt(1, param);
+			List<Customer> list = readCustomers(query);
+			c.connection.commit();
+			return list.isEmpty() ? null : list.get(0);
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	@Override
+	public Customer getCustomerByID(int custID) throws BackOfficeException {
+		Customer c = queryOne(BY_ID, custID);
+		if (c == null) {
+			throw new BackOfficeException("Unkown Customer.");
+		}
+		return c;
+	}
+
+	@Override
+	public Customer getCustomerByCard(int cardID) throws BackOfficeException {
+		Customer c = queryOne(BY_CARD, cardID);
+		if (c == null) {
+			throw new BackOfficeException("Unknown card.");
+		}
+		return c;
+	}
+
+	@Override
+	public Customer getCustomerByName(String name) throws BackOfficeException {
+		ConnectionPool.Pooled c = acquire();
+		try {
+			PreparedStatement query = c.prepare(BY_NAME);
+			query.setString(1, name);
+			List<Customer> list = readCustomers(query);
+			c.connection.commit();
+			return list.isEmpty() ? null : list.get(0);
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	@Override
+	public List<Customer> getCustomersByName(String prefix, int offset,
+			int limit) throws BackOfficeException {
+		String pattern = prefix.replace("!", "!!").replace("%", "!%")
+				.replace("_", "!_") + "%";
+		ConnectionPool.Pooled c = acquire();
+		try {
+			PreparedStatement query = c.prepare(BY_PREFIX);
+			query.setString(1, pattern);
+			query.setInt(2, limit);
+			query.setInt(3, offset);
+			List<Customer> list = readCustomers(query);
+			c.connection.commit();
+			return list;
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	@Override
+	public List<Customer> getCustomers() throws BackOfficeException {
+		ConnectionPool.Pooled c = acquire();
+		try {
+			List<Customer> list = readCustomers(c.prepare(ALL));
+			c.connection.commit();
+			return list;
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	/**
+	 * Fetch the customers after <code>lastId</code>, in id order.
+	 */
+	private List<Customer> readAfter(int lastId, int count)
+			throws BackOfficeException {
+		ConnectionPool.Pooled c = acquire();
+		try {
+			PreparedStatement query = c.prepare(AFTER);
+			query.setInt(1, lastId);
+			query.setInt(2, count);
+			List<Customer> list = readCustomers(query);
+			c.connection.commit();
+			return list;
+		} catch (SQLException e) {
+			rollback(c);
+			throw failure(e);
+		} finally {
+			pool.release(c);
+		}
+	}
+
+	/**
+	 * Pages through the customers table by id (keyset paging), so no
+	 * connection or cursor is held open between pages.
+	 */
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			final int pageSize) throws BackOfficeException {
+		Iterator<Customer> rows = new Iterator<Customer>() {
+			private Iterator<Customer> chunk = new ArrayList<Customer>()
+					.iterator();
+			private int lastId = Integer.MIN_VALUE;
+			private boolean done = false;
+
+			public boolean hasNext() {
+				if (!chunk.hasNext() && !done) {
+					List<Customer> list;
+					try {
+						list = readAfter(lastId, pageSize);
+					} catch (BackOfficeException e) {
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+					done = list.size() < pageSize;
+					if (!list.isEmpty()) {
+						lastId = list.get(list.size() - 1).getID();
+					}
+					chunk = list.iterator();
+				}
+				return chunk.hasNext();
+			}
+
+			public Customer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return chunk.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		return new CustomerPages(rows, filter, pageSize);
+	}
+
+	/**
+	 * Kept up to date by the changes made through this back office, so this
+	 * does not query the database.
+	 */
+	@Override
+	public BackOfficeStatistics getStatistics() {
+		return statistics.get();
+	}
+
+	/**
+	 * Every operation commits on its own, so there is nothing left to flush.
+	 */
+	@Override
+	public void save() throws IOException {
+	}
+
+	/**
+	 * Close all pooled connections.
+	 */
+	public void close() throws BackOfficeException {
+		try {
+			pool.close();
+		} catch (SQLException e) {
+			throw failure(e);
+		}
+	}
+}
@@ -0,0 +1,879 @@
+package officeterminal;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import common.CreditTransaction;
+
+/**
+ * BackOffice that opens a {@link BackOfficeCodec} file by mapping only its
+ * index, so startup takes the same time whatever the size of the database.
+ * Records are read on demand and the most recently used customers are kept in
+ * a bounded cache. Changes are kept in memory and appended to a journal next
+ * to the file as they are made. Once the journal has grown as large as the
+ * file, or on {@link #save()}, they are merged into a new file in one
+ * sequential pass, so a change costs a few records rather than a rewrite.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class LazyBackOffice implements BackOffice {
+	private static final int CACHE_SIZE = 10000;
+	/** Size below which the journal is never folded into the file */
+	private static final long FOLD_SIZE = 1 << 20;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private FileChannel journalChannel;
+	private BackOfficeCodec.Writer journal;
+	private RecordIndex customerIndex;
+	private RecordIndex detachedIndex;
+	private RecordIndex cardIndex;
+	private KeyPair supermarketKeyPair;
+	private IdAllocator customerIds;
+	private IdAllocator cardIds;
+	private NameIndex nameIndex;
+	private TransactionLedger ledger;
+	/* Counted on first use, so opening does not have to read every record. */
+	private LiveStatistics statistics;
+
+	/* Changes since the file was written. */
+	private Map<Integer, Customer> customers = new HashMap<Integer, Customer>();
+	private Map<Integer, Customer> detached = new HashMap<Integer, Customer>();
+	private Map<Integer, Card> cards = new HashMap<Integer, Card>();
+	private Set<Integer> deletedCustomers = new HashSet<Integer>();
+	private Set<Integer> deletedCards = new HashSet<Integer>();
+
+	/* Unchanged customers recently read from the file. */
+	private Map<Integer, Customer> cache = new LinkedHashMap<Integer, Customer>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Customer> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Open the back office, creating an empty database file if there is none.
+	 *
+	 * @param keyPath
+	 *            directory holding the supermarket key pair
+	 * @param dbPath
+	 *            the database file
+	 * @throws BackOfficeException
+	 */
+	public LazyBackOffice(String keyPath, String dbPath)
+			throws BackOfficeException {
+		supermarketKeyPair = SupermarketKey.loadOrGenerate(keyPath);
+		file = new File(dbPath);
+		try {
+			if (!file.exists()) {
+				FileOutputStream fos = new FileOutputStream(file);
+				try {
+					new BackOfficeCodec.Writer(fos.getChannel(), 0, 0).finish();
+				} finally {
+					fos.close();
+				}
+			}
+			open();
+			openJournal();
+			ledger = new TransactionLedger(new File(file.getAbsoluteFile()
+					.getParentFile(), "ledger.log"));
+		} catch (IOException e) {
+			throw new BackOfficeException("Failed to open " + dbPath, e);
+		}
+
+		System.out.println("Indexed " + customerIndex.size()
+				+ " customers, and " + cardIndex.size() + " cards.");
+	}
+
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		BackOfficeCodec.Reader header = new BackOfficeCodec.Reader(channel);
+		customerIds = new IdAllocator(header.lastCustomerId());
+		cardIds = new IdAllocator(header.lastCardId());
+
+		ByteBuffer[] tables = BackOfficeCodec.mapIndex(channel);
+		if (tables == null) {
+			tables = BackOfficeCodec.buildIndex(channel);
+		}
+		customerIndex = new RecordIndex(tables[0]);
+		detachedIndex = new RecordIndex(tables[1]);
+		cardIndex = new RecordIndex(tables[2]);
+	}
+
+	/**
+	 * Open the journal and apply the changes in it, or start an empty one.
+	 */
+	private void openJournal() throws IOException {
+		journalChannel = new RandomAccessFile(file.getPath() + ".journal",
+				"rw").getChannel();
+		long end = journalChannel.size() == 0 ? 0 : replay();
+		if (end == 0) {
+			startJournal();
+		} else {
+			journalChannel.truncate(end);
+			journalChannel.position(end);
+			journal = BackOfficeCodec.Writer.append(journalChannel);
+		}
+	}
+
+	private void startJournal() throws IOException {
+		journalChannel.truncate(0);
+		journalChannel.position(0);
+		journal = BackOfficeCodec.Writer.stream(journalChannel, customerIds
+				.last(), cardIds.last());
+		journal.flush();
+	}
+
+	/**
+	 * Apply the changes in the journal, up to the first incomplete record a
+	 * crash may have left. Every customer record holds the whole customer, and
+	 * every card record follows the record of its owner.
+	 *
+	 * @return the length of the complete part of the journal, or 0 if not even
+	 *         its header is complete.
+	 */
+	private long replay() throws IOException {
+		journalChannel.position(0);
+		BackOfficeCodec.Reader in;
+		try {
+			in = new BackOfficeCodec.Reader(journalChannel);
+		} catch (BufferUnderflowException e) {
+			return 0;
+		}
+		customerIds.reserve(in.lastCustomerId());
+		cardIds.reserve(in.lastCardId());
+		Map<Integer, Integer> links = new HashMap<Integer, Integer>();
+		Map<Integer, Integer> owners = new HashMap<Integer, Integer>();
+		Map<Integer, Short> credits = new HashMap<Integer, Short>();
+		while (true) {
+			byte type;
+			try {
+				type = in.next();
+			} catch (EOFException e) {
+				break;
+			} catch (BufferUnderflowException e) {
+				break;
+			}
+			int id = in.id();
+			if (type == BackOfficeCodec.CUSTOMER) {
+				customers.put(id, new Customer(in.name(), id));
+				links.put(id, in.link());
+				customerIds.reserve(id);
+			} else if (type == BackOfficeCodec.DETACHED) {
+				detached.put(id, new Customer(in.name(), id));
+				links.put(id, in.link());
+			} else if (type == BackOfficeCodec.CARD) {
+				owners.put(id, in.link());
+				credits.put(id, in.credits());
+				cardIds.reserve(id);
+			} else if (in.link() == BackOfficeCodec.CUSTOMER) {
+				customers.remove(id);
+				deletedCustomers.add(id);
+			} else {
+				owners.remove(id);
+				deletedCards.add(id);
+			}
+		}
+		for (Map.Entry<Integer, Integer> e : owners.entrySet()) {
+			Customer owner = customers.get(e.getValue());
+			if (owner == null) {
+				owner = detached.get(e.getValue());
+			}
+			if (owner != null) {
+				cards.put(e.getKey(), new Card(e.getKey(), credits.get(e
+						.getKey()), owner));
+			}
+		}
+		for (Map.Entry<Integer, Integer> e : links.entrySet()) {
+			Customer c = customers.get(e.getKey());
+			if (c == null) {
+				c = detached.get(e.getKey());
+			}
+			if (c != null) {
+				Card card = cards.get(e.getValue());
+				if (card != null) {
+					c.setCard(card);
+				} else {
+					attachCard(c, e.getValue());
+				}
+			}
+		}
+		return in.offset();
+	}
+
+	/**
+	 * Append a changed customer and its current card to the journal.
+	 */
+	private void log(Customer c) throws BackOfficeException {
+		try {
+			if (customers.get(c.getID()) == c) {
+				journal.writeCustomer(c);
+			} else {
+				journal.writeDetached(c);
+			}
+			if (c.getCard() != null) {
+				journal.writeCard(c.getCard());
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+	}
+
+	/**
+	 * Append a changed card that is not the current card of its owner.
+	 */
+	private void logCard(Card card) throws BackOfficeException {
+		try {
+			journal.writeCard(card);
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+	}
+
+	/**
+	 * Append the removal of a customer or card to the journal.
+	 */
+	private void logRemoved(byte type, int id) throws BackOfficeException {
+		try {
+			journal.writeRemoved(type, id);
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+	}
+
+	private static BackOfficeException failure(IOException e) {
+		return new BackOfficeException("Reading back office records failed", e);
+	}
+
+	private BackOfficeCodec.Reader readAt(long offset) throws IOException {
+		channel.position(offset);
+		BackOfficeCodec.Reader in = BackOfficeCodec.Reader.records(channel);
+		in.next();
+		return in;
+	}
+
+	/**
+	 * @return the current version of a customer, or <code>null</code> if it
+	 *         does not exist (any more).
+	 */
+	private Customer loadCustomer(int id) throws IOException {
+		Customer c = customers.get(id);
+		if (c != null || deletedCustomers.contains(id)) {
+			return c;
+		}
+		c = cache.get(id);
+		if (c != null) {
+			return c;
+		}
+		long offset = customerIndex.find(id);
+		if (offset < 0) {
+			return null;
+		}
+		BackOfficeCodec.Reader in = readAt(offset);
+		c = new Customer(in.name(), id);
+		attachCard(c, in.link());
+		cache.put(id, c);
+		return c;
+	}
+
+	/**
+	 * @return a deleted customer that still owns a card.
+	 */
+	private Customer loadDetached(int id) throws IOException {
+		Customer c = detached.get(id);
+		if (c != null) {
+			return c;
+		}
+		long offset = detachedIndex.find(id);
+		if (offset < 0) {
+			return null;
+		}
+		BackOfficeCodec.Reader in = readAt(offset);
+		c = new Customer(in.name(), id);
+		attachCard(c, in.link());
+		return c;
+	}
+
+	private void attachCard(Customer c, int cardId) throws IOException {
+		if (cardId == 0 || deletedCards.contains(cardId)) {
+			return;
+		}
+		long offset = cardIndex.find(cardId);
+		if (offset >= 0) {
+			c.setCard(new Card(cardId, readAt(offset).credits(), c));
+		}
+	}
+
+	/**
+	 * @return the owner of a card, or <code>null</code> if the card does not
+	 *         exist.
+	 */
+	private Customer loadOwner(int cardId) throws IOException {
+		Card card = cards.get(cardId);
+		if (card != null) {
+			return card.getCustomer();
+		}
+		if (deletedCards.contains(cardId)) {
+			return null;
+		}
+		long offset = cardIndex.find(cardId);
+		if (offset < 0) {
+			return null;
+		}
+		int ownerId = readAt(offset).link();
+		Customer owner = loadCustomer(ownerId);
+		return owner != null ? owner : loadDetached(ownerId);
+	}
+
+	/**
+	 * @return the current version of a card, or <code>null</code> if it does
+	 *         not exist.
+	 */
+	private Card loadCard(int cardId) throws IOException {
+		Card card = cards.get(cardId);
+		if (card != null) {
+			return card;
+		}
+		Customer owner = loadOwner(cardId);
+		if (owner == null) {
+			return null;
+		}
+		if (owner.getCard() != null && owner.getCardID() == cardId) {
+			return owner.getCard();
+		}
+		return new Card(cardId, readAt(cardIndex.find(cardId)).credits(), owner);
+	}
+
+	/**
+	 * Move a customer, and its current card, into the set of changed records
+	 * before modifying it.
+	 */
+	private void promote(Customer c) {
+		int id = c.getID();
+		boolean live = customers.containsKey(id)
+				|| (!deletedCustomers.contains(id) && customerIndex.find(id) >= 0);
+		Map<Integer, Customer> target = live ? customers : detached;
+		if (target.get(id) != c) {
+			cache.remove(id);
+			target.put(id, c);
+			if (c.getCard() != null) {
+				cards.put(c.getCardID(), c.getCard());
+			}
+		}
+	}
+
+	/**
+	 * Write out the changes logged so far, and fold them into the file once
+	 * the journal has grown as large as the file.
+	 */
+	private void remoteSave() throws BackOfficeException {
+		try {
+			journal.flush();
+			if (journalChannel.size() > Math.max(FOLD_SIZE, channel.size())) {
+				save();
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Saving backoffice state failed", e);
+		}
+	}
+
+	private Customer addCustomer(String cusName, int customerId, int cardId) {
+		Customer newCustomer = new Customer(cusName, customerId);
+		Card newCard = new Card(cardId, (short) 0, newCustomer);
+		newCustomer.setCard(newCard);
+		customers.put(customerId, newCustomer);
+		cards.put(cardId, newCard);
+		if (nameIndex != null) {
+			nameIndex.add(cusName, customerId);
+		}
+		if (statistics != null) {
+			statistics.customerAdded();
+			statistics.cardChanged(cardId, customerId, (short) 0);
+		}
+		return newCustomer;
+	}
+
+	@Override
+	public synchronized Customer registerCustomer(String cusName)
+			throws BackOfficeException {
+		Customer newCustomer = addCustomer(cusName, customerIds.next(),
+				cardIds.next());
+		log(newCustomer);
+		remoteSave();
+		return newCustomer;
+	}
+
+	@Override
+	public synchronized List<Customer> registerCustomers(
+			Collection<String> names) throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>(names.size());
+		if (names.isEmpty()) {
+			return list;
+		}
+		int customerId = customerIds.nextBlock(names.size());
+		int cardId = cardIds.nextBlock(names.size());
+		for (String name : names) {
+			Customer c = addCustomer(name, customerId++, cardId++);
+			log(c);
+			list.add(c);
+		}
+		remoteSave();
+		return list;
+	}
+
+	@Override
+	public KeyPair getSupermarketKeyPair() throws BackOfficeException {
+		return supermarketKeyPair;
+	}
+
+	@Override
+	public synchronized void issueCard(Customer client)
+			throws BackOfficeException {
+		Customer stored;
+		try {
+			stored = loadCustomer(client.getID());
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		if (stored == null) {
+			throw new BackOfficeException("Unkown Customer.");
+		}
+		promote(stored);
+		Card newCard = new Card(cardIds.next(), (short) 0, stored);
+		cards.put(newCard.getID(), newCard);
+		stored.setCard(newCard);
+		client.setCard(newCard);
+		if (statistics != null) {
+			statistics.cardChanged(newCard.getID(), stored.getID(), (short) 0);
+		}
+		log(stored);
+		remoteSave();
+	}
+
+	@Override
+	public synchronized void deleteCard(int cardID) {
+		try {
+			Customer owner = loadOwner(cardID);
+			if (owner == null) {
+				System.err.println("Cannot remove non-existing card with id: "
+						+ cardID);
+				return;
+			}
+			promote(owner);
+			cards.remove(cardID);
+			deletedCards.add(cardID);
+			if (statistics != null) {
+				statistics.cardRemoved(cardID);
+			}
+			if (owner.getCard() != null && owner.getCardID() == cardID) {
+				owner.setCard(null);
+			}
+			log(owner);
+			logRemoved(BackOfficeCodec.CARD, cardID);
+			remoteSave();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized void deleteCustomer(int customerID) {
+		try {
+			Customer customer = loadCustomer(customerID);
+			if (customer == null) {
+				System.err.println("Cannot remove non-existing customer with id: "
+						+ customerID);
+				return;
+			}
+			promote(customer);
+			customers.remove(customerID);
+			deletedCustomers.add(customerID);
+			if (statistics != null) {
+				statistics.customerRemoved();
+			}
+			if (customer.getCard() != null) {
+				detached.put(customerID, customer);
+			}
+			if (nameIndex != null) {
+				nameIndex.remove(customer.getName(), customerID);
+			}
+			logRemoved(BackOfficeCodec.CUSTOMER, customerID);
+			if (customer.getCard() != null) {
+				log(customer);
+			}
+			remoteSave();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getCardID(Customer client) throws BackOfficeException {
+		return client.getCardID();
+	}
+
+	@Override
+	public short getCredits(Customer client) throws BackOfficeException {
+		return client.getCredits();
+	}
+
+	/**
+	 * Log the new transactions and add them to the balances of their cards.
+	 * The balances reach the journal before this returns.
+	 */
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		List<CreditTransaction> fresh;
+		try {
+			fresh = ledger.append(batch);
+			synchronized (this) {
+				for (CreditTransaction t : fresh) {
+					Card card = loadCard(t.getCardId());
+					if (card == null) {
+						System.err.println("Transaction for unknown card: " + t);
+						continue;
+					}
+					promote(card.getCustomer());
+					cards.put(card.getID(), card);
+					card.setCredits(CreditCounters.credit(card.getCredits(), t
+							.getAmount()));
+					log(card.getCustomer());
+					if (card.getCustomer().getCard() != card) {
+						logCard(card);
+					}
+					if (statistics != null) {
+						statistics.balanceChanged(card.getID(), card.getCredits());
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		if (!fresh.isEmpty()) {
+			synchronized (this) {
+				remoteSave();
+			}
+		}
+		return fresh.size();
+	}
+
+	@Override
+	public synchronized Customer getCustomerByID(int custID)
+			throws BackOfficeException {
+		Customer c;
+		try {
+			c = loadCustomer(custID);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		if (c == null) {
+			throw new BackOfficeException("Unkown Customer.");
+		}
+		return c.clone();
+	}
+
+	@Override
+	public synchronized Customer getCustomerByCard(int cardID)
+			throws BackOfficeException {
+		Customer c;
+		try {
+			c = loadOwner(cardID);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		if (c == null) {
+			throw new BackOfficeException("Unknown card.");
+		}
+		return c.clone();
+	}
+
+	/**
+	 * The name index needs every name, so it is built by one sequential read
+	 * of the file the first time a name is looked up, and kept up to date from
+	 * then on.
+	 */
+	private NameIndex nameIndex() throws IOException {
+		if (nameIndex == null) {
+			NameIndex index = new NameIndex();
+			channel.position(0);
+			BackOfficeCodec.Reader in = new BackOfficeCodec.Reader(channel);
+			byte type;
+			while ((type = in.next()) != BackOfficeCodec.END) {
+				if (type == BackOfficeCodec.CUSTOMER
+						&& !deletedCustomers.contains(in.id())
+						&& !customers.containsKey(in.id())) {
+					index.add(in.name(), in.id());
+				}
+			}
+			for (Customer c : customers.values()) {
+				index.add(c.getName(), c.getID());
+			}
+			nameIndex = index;
+		}
+		return nameIndex;
+	}
+
+	@Override
+	public synchronized Customer getCustomerByName(String name)
+			throws BackOfficeException {
+		try {
+			int id = nameIndex().first(name);
+			return id < 0 ? null : loadCustomer(id);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public synchronized List<Customer> getCustomersByName(String prefix,
+			int offset, int limit) throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>();
+		try {
+			for (int id : nameIndex().prefix(prefix, offset, limit)) {
+				Customer c = loadCustomer(id);
+				if (c != null) {
+					list.add(c.clone());
+				}
+			}
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		return list;
+	}
+
+	@Override
+	public List<Customer> getCustomers() throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>();
+		Iterator<List<Customer>> pages = streamCustomers(null, 1024);
+		while (pages.hasNext()) {
+			list.addAll(pages.next());
+		}
+		return list;
+	}
+
+	/**
+	 * Count every record once, on the first call, and keep the count up to
+	 * date from then on.
+	 */
+	@Override
+	public synchronized BackOfficeStatistics getStatistics()
+			throws BackOfficeException {
+		if (statistics == null) {
+			LiveStatistics counted = new LiveStatistics();
+			try {
+				Set<Integer> ids = new HashSet<Integer>(customers.keySet());
+				for (int i = 0; i < customerIndex.size(); i++) {
+					ids.add(customerIndex.id(i));
+				}
+				for (int id : ids) {
+					if (loadCustomer(id) != null) {
+						counted.customerAdded();
+					}
+				}
+				ids = new HashSet<Integer>(cards.keySet());
+				for (int i = 0; i < cardIndex.size(); i++) {
+					ids.add(cardIndex.id(i));
+				}
+				for (int id : ids) {
+					Card card = loadCard(id);
+					if (card != null) {
+						counted.cardChanged(id, card.getCustomerID(), card
+								.getCredits());
+					}
+				}
+			} catch (IOException e) {
+				throw failure(e);
+			}
+			statistics = counted;
+		}
+		return statistics.get();
+	}
+
+	/**
+	 * @return the ids of customers that are not in the file yet, in order.
+	 */
+	private synchronized List<Integer> newCustomerIds() {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id : customers.keySet()) {
+			if (customerIndex.find(id) < 0) {
+				ids.add(id);
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private synchronized Customer cloneOf(int id) throws BackOfficeException {
+		try {
+			Customer c = loadCustomer(id);
+			return c == null ? null : c.clone();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * Walks the customers in the file in id order, followed by the customers
+	 * registered since the last save. Records are read as the pages are
+	 * requested, so a save in between may or may not show in later pages.
+	 */
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException {
+		final RecordIndex index;
+		synchronized (this) {
+			index = customerIndex;
+		}
+		final List<Integer> added = newCustomerIds();
+		Iterator<Customer> records = new Iterator<Customer>() {
+			private int position = 0;
+			private Customer next;
+
+			public boolean hasNext() {
+				while (next == null && position < index.size() + added.size()) {
+					int id = position < index.size() ? index.id(position)
+							: added.get(position - index.size());
+					position++;
+					try {
+						next = cloneOf(id);
+					} catch (BackOfficeException e) {
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+				}
+				return next != null;
+			}
+
+			public Customer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Customer c = next;
+				next = null;
+				return c;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		return new CustomerPages(records, filter, pageSize);
+	}
+
+	/**
+	 * Merge the changes into a new file in one pass over the old one, and
+	 * empty the journal. Customer records come before card records, as
+	 * {@link BackOfficeCodec} requires.
+	 */
+	@Override
+	public synchronized void save() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			BackOfficeCodec.Writer out = new BackOfficeCodec.Writer(
+					fos.getChannel(), customerIds.last(), cardIds.last());
+			Set<Integer> writtenCustomers = new HashSet<Integer>();
+			Set<Integer> writtenCards = new HashSet<Integer>();
+			boolean customersDone = false;
+
+			channel.position(0);
+			BackOfficeCodec.Reader in = new BackOfficeCodec.Reader(channel);
+			byte type;
+			while ((type = in.next()) != BackOfficeCodec.END) {
+				int id = in.id();
+				if (type == BackOfficeCodec.CARD) {
+					if (!customersDone) {
+						writeRemainingCustomers(out, writtenCustomers);
+						customersDone = true;
+					}
+					Card card = cards.get(id);
+					if (card != null) {
+						out.writeCard(card);
+						writtenCards.add(id);
+					} else if (!deletedCards.contains(id)) {
+						out.writeCard(id, in.link(), in.credits());
+					}
+				} else if (writtenCustomers.contains(id)) {
+					continue;
+				} else if (customers.containsKey(id)) {
+					out.writeCustomer(customers.get(id));
+					writtenCustomers.add(id);
+				} else if (detached.containsKey(id)) {
+					out.writeDetached(detached.get(id));
+					writtenCustomers.add(id);
+				} else if (type == BackOfficeCodec.DETACHED) {
+					out.writeDetached(id, in.link(), in.name());
+				} else if (!deletedCustomers.contains(id)) {
+					out.writeCustomer(id, in.link(), in.name());
+				}
+			}
+			if (!customersDone) {
+				writeRemainingCustomers(out, writtenCustomers);
+			}
+			for (Card card : cards.values()) {
+				if (!writtenCards.contains(card.getID())) {
+					out.writeCard(card);
+				}
+			}
+			out.finish();
+		} finally {
+			fos.close();
+		}
+
+		channel.close();
+		raf.close();
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not replace " + file);
+		}
+		customers.clear();
+		detached.clear();
+		cards.clear();
+		deletedCustomers.clear();
+		deletedCards.clear();
+		cache.clear();
+		open();
+		startJournal();
+	}
+
+	private void writeRemainingCustomers(BackOfficeCodec.Writer out,
+			Set<Integer> written) throws IOException {
+		for (Customer c : customers.values()) {
+			if (written.add(c.getID())) {
+				out.writeCustomer(c);
+			}
+		}
+		for (Customer c : detached.values()) {
+			if (written.add(c.getID())) {
+				out.writeDetached(c);
+			}
+		}
+	}
+}
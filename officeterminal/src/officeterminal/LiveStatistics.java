@@ -0,0 +1,352 @@
+package officeterminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the {@link BackOfficeStatistics} of a store up to date as it changes,
+ * so the dashboard never waits for the store. The totals are kept in striped
+ * counters, so changes from different threads rarely touch the same memory.
+ * The balance and owner of every active card are kept in plain arrays, split
+ * into segments that are locked one at a time, at about ten bytes per card.
+ *
+ * The top balances are ranked on request, by one pass over the segments, and
+ * kept until a change could alter them: a change to a card that is in the top,
+ * or one that brings a card up to the lowest balance in it. Changes to the
+ * other cards leave the ranking as it is.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class LiveStatistics {
+	/** Number of top balances reported */
+	static final int TOP = 10;
+
+	/** Number of segments and of counter cells, a power of two */
+	private static final int STRIPES = 64;
+
+	private static final Comparator<BackOfficeStatistics.Balance> HIGHEST_FIRST = new Comparator<BackOfficeStatistics.Balance>() {
+		public int compare(BackOfficeStatistics.Balance a,
+				BackOfficeStatistics.Balance b) {
+			if (a.credits != b.credits) {
+				return b.credits - a.credits;
+			}
+			return a.cardId < b.cardId ? -1 : a.cardId == b.cardId ? 0 : 1;
+		}
+	};
+
+	/**
+	 * A sum kept in several cells, so that threads adding to it rarely share
+	 * one. Cells are a cache line apart.
+	 */
+	private static final class Counter {
+		private static final int SPREAD = 8;
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+				* SPREAD);
+
+		void add(long amount) {
+			long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+			cells.addAndGet((int) (h >>> 58) * SPREAD, amount);
+		}
+
+		long sum() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * SPREAD);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * The cards of one stripe, in an open-addressing table of card ids with
+	 * the owner and balance of each alongside. Guarded by its own monitor.
+	 */
+	private static final class Segment {
+		private static final int FREE = Integer.MIN_VALUE;
+
+		int size;
+		int[] cards = free(8);
+		int[] owners = new int[8];
+		short[] balances = new short[8];
+
+		private static int[] free(int capacity) {
+			int[] cards = new int[capacity];
+			Arrays.fill(cards, FREE);
+			return cards;
+		}
+
+		/**
+		 * @return the slot of <code>card</code>, or the free slot it would
+		 *         go in.
+		 */
+		int slot(int card) {
+			int mask = cards.length - 1;
+			int i = (card * 0x9E3779B9 >>> 6) & mask;
+			while (cards[i] != FREE && cards[i] != card) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		void put(int slot, int card, int owner, short balance) {
+			if (cards[slot] == FREE) {
+				if (++size * 4 > cards.length * 3) {
+					grow();
+					slot = slot(card);
+				}
+				cards[slot] = card;
+			}
+			owners[slot] = owner;
+			balances[slot] = balance;
+		}
+
+		private void grow() {
+			int[] oldCards = cards;
+			int[] oldOwners = owners;
+			short[] oldBalances = balances;
+			cards = free(oldCards.length * 2);
+			owners = new int[cards.length];
+			balances = new short[cards.length];
+			for (int i = 0; i < oldCards.length; i++) {
+				if (oldCards[i] != FREE) {
+					int slot = slot(oldCards[i]);
+					cards[slot] = oldCards[i];
+					owners[slot] = oldOwners[i];
+					balances[slot] = oldBalances[i];
+				}
+			}
+		}
+
+		/**
+		 * Empty a slot, moving later entries of the same run back so every
+		 * card stays reachable from its home slot.
+		 */
+		void remove(int slot) {
+			int mask = cards.length - 1;
+			int gap = slot;
+			int i = slot;
+			while (true) {
+				i = (i + 1) & mask;
+				if (cards[i] == FREE) {
+					break;
+				}
+				int home = (cards[i] * 0x9E3779B9 >>> 6) & mask;
+				if (((i - home) & mask) >= ((i - gap) & mask)) {
+					cards[gap] = cards[i];
+					owners[gap] = owners[i];
+					balances[gap] = balances[i];
+					gap = i;
+				}
+			}
+			cards[gap] = FREE;
+			size--;
+		}
+	}
+
+	/**
+	 * The top balances as ranked, with the lowest balance that can still
+	 * enter them.
+	 */
+	private static final class Ranking {
+		final List<BackOfficeStatistics.Balance> top;
+		final int threshold;
+
+		Ranking(List<BackOfficeStatistics.Balance> top) {
+			this.top = top;
+			threshold = top.size() < TOP ? Integer.MIN_VALUE : top.get(
+					top.size() - 1).credits;
+		}
+
+		/**
+		 * @return whether a card with this balance now, or before, could
+		 *         change the ranking.
+		 */
+		boolean affectedBy(int cardId, int balance) {
+			if (balance >= threshold) {
+				return true;
+			}
+			for (BackOfficeStatistics.Balance b : top) {
+				if (b.cardId == cardId) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final Counter customers = new Counter();
+	private final Counter cards = new Counter();
+	private final Counter credits = new Counter();
+	private final Segment[] segments = new Segment[STRIPES];
+	/** The last ranking, or null if a change may have made it wrong */
+	private volatile Ranking ranking;
+	/** Counts the changes that may have altered the ranking */
+	private final AtomicLong rankChanges = new AtomicLong();
+
+	LiveStatistics() {
+		for (int i = 0; i < STRIPES; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private Segment segment(int cardId) {
+		int h = cardId * 0x9E3779B9;
+		return segments[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Drop the ranking if a card changing to <code>balance</code> could alter
+	 * it. Call while holding the segment of the card.
+	 */
+	private void ranked(int cardId, int balance) {
+		Ranking r = ranking;
+		if (r == null || r.affectedBy(cardId, balance)) {
+			ranking = null;
+			rankChanges.incrementAndGet();
+		}
+	}
+
+	void customerAdded() {
+		customers.add(1);
+	}
+
+	void customersAdded(long count) {
+		customers.add(count);
+	}
+
+	void customerRemoved() {
+		customers.add(-1);
+	}
+
+	/**
+	 * Count a new card, or the new balance of a card counted before.
+	 */
+	void cardChanged(int cardId, int customerId, short balance) {
+		Segment s = segment(cardId);
+		synchronized (s) {
+			int slot = s.slot(cardId);
+			if (s.cards[slot] == cardId) {
+				if (s.balances[slot] == balance
+						&& s.owners[slot] == customerId) {
+					return;
+				}
+				credits.add(balance - s.balances[slot]);
+				ranked(cardId, s.balances[slot]);
+			} else {
+				cards.add(1);
+				credits.add(balance);
+			}
+			s.put(slot, cardId, customerId, balance);
+			ranked(cardId, balance);
+		}
+	}
+
+	/**
+	 * Update the balance of a card counted before; unknown cards are ignored.
+	 */
+	void balanceChanged(int cardId, short balance) {
+		Segment s = segment(cardId);
+		synchronized (s) {
+			int slot = s.slot(cardId);
+			if (s.cards[slot] == cardId) {
+				cardChanged(cardId, s.owners[slot], balance);
+			}
+		}
+	}
+
+	/**
+	 * Add to the balance of a card counted before; unknown cards are ignored.
+	 */
+	void creditsAdded(int cardId, int amount) {
+		Segment s = segment(cardId);
+		synchronized (s) {
+			int slot = s.slot(cardId);
+			if (s.cards[slot] == cardId) {
+				cardChanged(cardId, s.owners[slot], (short) Math.max(
+						Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+								s.balances[slot] + amount)));
+			}
+		}
+	}
+
+	void cardRemoved(int cardId) {
+		Segment s = segment(cardId);
+		synchronized (s) {
+			int slot = s.slot(cardId);
+			if (s.cards[slot] == cardId) {
+				cards.add(-1);
+				credits.add(-s.balances[slot]);
+				ranked(cardId, s.balances[slot]);
+				s.remove(slot);
+			}
+		}
+	}
+
+	BackOfficeStatistics get() {
+		Ranking r = ranking;
+		if (r == null) {
+			long changes = rankChanges.get();
+			r = new Ranking(rank());
+			// Keep it only if nothing that could alter it happened meanwhile.
+			if (rankChanges.get() == changes) {
+				ranking = r;
+			}
+		}
+		return new BackOfficeStatistics(customers.sum(), cards.sum(), credits
+				.sum(), r.top);
+	}
+
+	/**
+	 * @return the {@link #TOP} highest balances, highest first.
+	 */
+	private List<BackOfficeStatistics.Balance> rank() {
+		TreeSet<BackOfficeStatistics.Balance> top = new TreeSet<BackOfficeStatistics.Balance>(
+				HIGHEST_FIRST);
+		for (Segment s : segments) {
+			synchronized (s) {
+				for (int i = 0; i < s.cards.length; i++) {
+					if (s.cards[i] == Segment.FREE || top.size() == TOP
+							&& s.balances[i] < top.last().credits) {
+						continue;
+					}
+					top.add(new BackOfficeStatistics.Balance(s.cards[i],
+							s.owners[i], s.balances[i]));
+					if (top.size() > TOP) {
+						top.pollLast();
+					}
+				}
+			}
+		}
+		return new ArrayList<BackOfficeStatistics.Balance>(top);
+	}
+
+	/**
+	 * Add up the statistics of several stores.
+	 */
+	static BackOfficeStatistics combine(List<BackOfficeStatistics> parts) {
+		long customers = 0;
+		long cards = 0;
+		long credits = 0;
+		TreeSet<BackOfficeStatistics.Balance> top = new TreeSet<BackOfficeStatistics.Balance>(
+				HIGHEST_FIRST);
+		for (BackOfficeStatistics part : parts) {
+			customers += part.getCustomers();
+			cards += part.getActiveCards();
+			credits += part.getOutstandingCredits();
+			for (BackOfficeStatistics.Balance b : part.getTopBalances()) {
+				top.add(b);
+				if (top.size() > TOP) {
+					top.pollLast();
+				}
+			}
+		}
+		return new BackOfficeStatistics(customers, cards, credits,
+				new ArrayList<BackOfficeStatistics.Balance>(top));
+	}
+}
@@ -0,0 +1,31 @@
+package officeterminal;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by all ids. Updates that touch several records
+ * belonging to one customer take the stripe of that customer id, so updates
+ * for different customers rarely contend.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class LockStripes {
+	private final ReentrantLock[] locks;
+
+	/**
+	 * @param stripes
+	 *            number of locks, must be a power of two
+	 */
+	LockStripes(int stripes) {
+		locks = new ReentrantLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	ReentrantLock get(int id) {
+		int h = id * 0x9E3779B9;
+		return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+	}
+}
@@ -0,0 +1,502 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import common.CreditTransaction;
+
+/**
+ * BackOffice that keeps customers and cards as fixed-width records in
+ * memory-mapped files. A record lives at a fixed offset computed from its id,
+ * so lookups by id never need an index, and nothing is read at startup apart
+ * from the file headers. Customer names are appended to a separate string heap
+ * and referenced by offset and length.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class MappedBackOffice implements BackOffice {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x4C434230; // "LCB0"
+	private static final int VERSION = 1;
+
+	/* Header: magic, version, last used id, reserved (4 bytes each). */
+	private static final int HEADER_SIZE = 16;
+	private static final int HEADER_LAST_ID = 8;
+
+	/* Customer record: flags, card id, name offset (8), name length, reserved. */
+	private static final int CUSTOMER_SIZE = 24;
+	private static final int CUSTOMER_CARD = 4;
+	private static final int CUSTOMER_NAME_OFFSET = 8;
+	private static final int CUSTOMER_NAME_LENGTH = 16;
+
+	/* Card record: flags, customer id, credits (2), reserved (2). */
+	private static final int CARD_SIZE = 12;
+	private static final int CARD_CUSTOMER = 4;
+	private static final int CARD_CREDITS = 8;
+
+	/* Name heap header: magic, version, end of heap (8). */
+	private static final int NAMES_END = 8;
+
+	private static final int FLAG_USED = 1;
+
+	private MappedFile customerFile;
+	private MappedFile cardFile;
+	private MappedFile nameFile;
+	private KeyPair supermarketKeyPair;
+	private int lastCustomerId;
+	private int lastCardId;
+	private long namesEnd;
+	private NameIndex nameIndex;
+	private TransactionLedger ledger;
+	/** Counted on the first request for statistics */
+	private LiveStatistics statistics;
+
+	/**
+	 * Open (or create) the mapped store.
+	 *
+	 * @param keyPath
+	 *            directory holding the supermarket key pair
+	 * @param dataPath
+	 *            directory holding the customer, card and name files
+	 * @throws BackOfficeException
+	 */
+	public MappedBackOffice(String keyPath, String dataPath)
+			throws BackOfficeException {
+		supermarketKeyPair = SupermarketKey.loadOrGenerate(keyPath);
+
+		try {
+			customerFile = new MappedFile(new File(dataPath, "customers.dat"));
+			cardFile = new MappedFile(new File(dataPath, "cards.dat"));
+			nameFile = new MappedFile(new File(dataPath, "names.dat"));
+			ledger = new TransactionLedger(new File(dataPath, "ledger.log"));
+			lastCustomerId = openHeader(customerFile);
+			lastCardId = openHeader(cardFile);
+			openHeader(nameFile);
+			namesEnd = nameFile.getLong(NAMES_END);
+			if (namesEnd == 0) {
+				namesEnd = HEADER_SIZE;
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Failed to open mapped back office", e);
+		}
+
+		System.out.println("Loaded information on " + lastCustomerId
+				+ " customers, and " + lastCardId + " cards.");
+	}
+
+	/**
+	 * Check the header of a store file, writing a fresh one if the file is new.
+	 *
+	 * @return the last id used in this file.
+	 */
+	private static int openHeader(MappedFile file) throws IOException,
+			BackOfficeException {
+		boolean fresh = file.length() == 0;
+		if (fresh) {
+			file.putInt(0, MAGIC);
+			file.putInt(4, VERSION);
+			return 0;
+		}
+		if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+			throw new BackOfficeException("Unknown back office file format.");
+		}
+		return file.getInt(HEADER_LAST_ID);
+	}
+
+	private static long customerPosition(int id) {
+		return HEADER_SIZE + (long) id * CUSTOMER_SIZE;
+	}
+
+	private static long cardPosition(int id) {
+		return HEADER_SIZE + (long) id * CARD_SIZE;
+	}
+
+	private BackOfficeException failure(IOException e) {
+		return new BackOfficeException("Mapped back office I/O failed", e);
+	}
+
+	private boolean customerExists(int id) throws IOException {
+		return id >= 0 && id <= lastCustomerId
+				&& (customerFile.getInt(customerPosition(id)) & FLAG_USED) != 0;
+	}
+
+	private boolean cardExists(int id) throws IOException {
+		return id > 0 && id <= lastCardId
+				&& (cardFile.getInt(cardPosition(id)) & FLAG_USED) != 0;
+	}
+
+	private String readName(int customerId) throws IOException {
+		long pos = customerPosition(customerId);
+		byte[] bytes = new byte[customerFile.getInt(pos + CUSTOMER_NAME_LENGTH)];
+		nameFile.getBytes(customerFile.getLong(pos + CUSTOMER_NAME_OFFSET), bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Materialize a customer, together with its card, from the mapped records.
+	 */
+	private Customer readCustomer(int id) throws IOException {
+		Customer customer = new Customer(readName(id), id);
+		int cardId = customerFile.getInt(customerPosition(id) + CUSTOMER_CARD);
+		if (cardExists(cardId)) {
+			short credits = cardFile.getShort(cardPosition(cardId) + CARD_CREDITS);
+			customer.setCard(new Card(cardId, credits, customer));
+		}
+		return customer;
+	}
+
+	@Override
+	public synchronized Customer registerCustomer(String cusName)
+			throws BackOfficeException {
+		int customerId = lastCustomerId + 1;
+		byte[] name = cusName.getBytes(UTF8);
+		try {
+			nameFile.putBytes(namesEnd, name);
+			long pos = customerPosition(customerId);
+			customerFile.putInt(pos + CUSTOMER_CARD, 0);
+			customerFile.putLong(pos + CUSTOMER_NAME_OFFSET, namesEnd);
+			customerFile.putInt(pos + CUSTOMER_NAME_LENGTH, name.length);
+			customerFile.putInt(pos, FLAG_USED);
+			namesEnd += name.length;
+			nameFile.putLong(NAMES_END, namesEnd);
+			lastCustomerId = customerId;
+			customerFile.putInt(HEADER_LAST_ID, lastCustomerId);
+			if (statistics != null) {
+				statistics.customerAdded();
+			}
+			if (nameIndex != null) {
+				nameIndex.add(cusName, customerId);
+			}
+		} catch (IOException e) {
+			throw failure(e);
+		}
+
+		Customer newCustomer = new Customer(cusName, customerId);
+		issueCard(newCustomer);
+		return newCustomer;
+	}
+
+	/**
+	 * Register many customers under one lock and flush the mapped files once
+	 * at the end.
+	 */
+	@Override
+	public synchronized List<Customer> registerCustomers(
+			Collection<String> names) throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>(names.size());
+		for (String name : names) {
+			list.add(registerCustomer(name));
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		return list;
+	}
+
+	@Override
+	public KeyPair getSupermarketKeyPair() throws BackOfficeException {
+		return supermarketKeyPair;
+	}
+
+	@Override
+	public synchronized void issueCard(Customer client)
+			throws BackOfficeException {
+		int cardId = lastCardId + 1;
+		try {
+			if (!customerExists(client.getID())) {
+				throw new BackOfficeException("Unkown Customer.");
+			}
+			long pos = cardPosition(cardId);
+			cardFile.putInt(pos + CARD_CUSTOMER, client.getID());
+			cardFile.putShort(pos + CARD_CREDITS, (short) 0);
+			cardFile.putInt(pos, FLAG_USED);
+			lastCardId = cardId;
+			cardFile.putInt(HEADER_LAST_ID, lastCardId);
+			customerFile.putInt(customerPosition(client.getID()) + CUSTOMER_CARD,
+					cardId);
+			if (statistics != null) {
+				statistics.cardChanged(cardId, client.getID(), (short) 0);
+			}
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		client.setCard(new Card(cardId, (short) 0, client));
+	}
+
+	@Override
+	public synchronized void deleteCard(int cardID) {
+		try {
+			if (!cardExists(cardID)) {
+				System.err.println("Cannot remove non-existing card with id: "
+						+ cardID);
+				return;
+			}
+			long pos = cardPosition(cardID);
+			int customerId = cardFile.getInt(pos + CARD_CUSTOMER);
+			cardFile.putInt(pos, 0);
+			if (statistics != null) {
+				statistics.cardRemoved(cardID);
+			}
+			long customerPos = customerPosition(customerId);
+			if (customerFile.getInt(customerPos + CUSTOMER_CARD) == cardID) {
+				customerFile.putInt(customerPos + CUSTOMER_CARD, 0);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized void deleteCustomer(int customerID) {
+		try {
+			if (!customerExists(customerID)) {
+				System.err.println("Cannot remove non-existing customer with id: "
+						+ customerID);
+				return;
+			}
+			if (nameIndex != null) {
+				nameIndex.remove(readName(customerID), customerID);
+			}
+			customerFile.putInt(customerPosition(customerID), 0);
+			if (statistics != null) {
+				statistics.customerRemoved();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getCardID(Customer client) throws BackOfficeException {
+		return client.getCardID();
+	}
+
+	@Override
+	public short getCredits(Customer client) throws BackOfficeException {
+		return client.getCredits();
+	}
+
+	/**
+	 * Log the new transactions and add them straight to the balances in the
+	 * card records.
+	 */
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		try {
+			List<CreditTransaction> fresh = ledger.append(batch);
+			synchronized (this) {
+				for (CreditTransaction t : fresh) {
+					if (!cardExists(t.getCardId())) {
+						System.err.println("Transaction for unknown card: " + t);
+						continue;
+					}
+					long position = cardPosition(t.getCardId()) + CARD_CREDITS;
+					short balance = CreditCounters.credit(cardFile
+							.getShort(position), t.getAmount());
+					cardFile.putShort(position, balance);
+					if (statistics != null) {
+						statistics.balanceChanged(t.getCardId(), balance);
+					}
+				}
+			}
+			return fresh.size();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public synchronized Customer getCustomerByID(int custID)
+			throws BackOfficeException {
+		try {
+			if (!customerExists(custID)) {
+				throw new BackOfficeException("Unkown Customer.");
+			}
+			return readCustomer(custID);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * The name index is built by one scan over the name heap the first time a
+	 * name is looked up, so that opening the store stays cheap, and is kept up
+	 * to date from then on.
+	 */
+	private NameIndex nameIndex() throws IOException {
+		if (nameIndex == null) {
+			NameIndex index = new NameIndex();
+			for (int id = 0; id <= lastCustomerId; id++) {
+				if (customerExists(id)) {
+					index.add(readName(id), id);
+				}
+			}
+			nameIndex = index;
+		}
+		return nameIndex;
+	}
+
+	@Override
+	public synchronized Customer getCustomerByName(String name)
+			throws BackOfficeException {
+		try {
+			int id = nameIndex().first(name);
+			return id < 0 ? null : readCustomer(id);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public synchronized List<Customer> getCustomersByName(String prefix,
+			int offset, int limit) throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>();
+		try {
+			for (int id : nameIndex().prefix(prefix, offset, limit)) {
+				list.add(readCustomer(id));
+			}
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized Customer getCustomerByCard(int cardID)
+			throws BackOfficeException {
+		try {
+			if (!cardExists(cardID)) {
+				throw new BackOfficeException("Unknown card.");
+			}
+			return readCustomer(cardFile.getInt(cardPosition(cardID)
+					+ CARD_CUSTOMER));
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	public synchronized List<Customer> getCustomers()
+			throws BackOfficeException {
+		ArrayList<Customer> list = new ArrayList<Customer>();
+		try {
+			for (int id = 0; id <= lastCustomerId; id++) {
+				if (customerExists(id)) {
+					list.add(readCustomer(id));
+				}
+			}
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		return list;
+	}
+
+	/**
+	 * @return the customer with the lowest id of at least <code>from</code>, or
+	 *         <code>null</code> if there is none.
+	 */
+	private synchronized Customer readCustomerFrom(int from)
+			throws BackOfficeException {
+		try {
+			for (int id = from; id <= lastCustomerId; id++) {
+				if (customerExists(id)) {
+					return readCustomer(id);
+				}
+			}
+		} catch (IOException e) {
+			throw failure(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Walks the customer records in id order, reading one record at a time and
+	 * holding the store lock only while reading it.
+	 */
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException {
+		Iterator<Customer> records = new Iterator<Customer>() {
+			private Customer next;
+			private int from = 0;
+
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						next = readCustomerFrom(from);
+					} catch (BackOfficeException e) {
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+					if (next != null) {
+						from = next.getID() + 1;
+					}
+				}
+				return next != null;
+			}
+
+			public Customer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Customer c = next;
+				next = null;
+				return c;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		return new CustomerPages(records, filter, pageSize);
+	}
+
+	/**
+	 * Count every record once, on the first call, and keep the count up to
+	 * date from then on, so opening the store does not scan the files.
+	 */
+	@Override
+	public synchronized BackOfficeStatistics getStatistics()
+			throws BackOfficeException {
+		if (statistics == null) {
+			LiveStatistics counted = new LiveStatistics();
+			try {
+				for (int id = 0; id <= lastCustomerId; id++) {
+					if (customerExists(id)) {
+						counted.customerAdded();
+					}
+				}
+				for (int id = 1; id <= lastCardId; id++) {
+					if (cardExists(id)) {
+						long pos = cardPosition(id);
+						counted.cardChanged(id, cardFile.getInt(pos
+								+ CARD_CUSTOMER), cardFile.getShort(pos
+								+ CARD_CREDITS));
+					}
+				}
+			} catch (IOException e) {
+				throw failure(e);
+			}
+			statistics = counted;
+		}
+		return statistics.get();
+	}
+
+	@Override
+	public synchronized void save() throws IOException {
+		customerFile.force();
+		cardFile.force();
+		nameFile.force();
+	}
+}
@@ -0,0 +1,142 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file accessed through a list of memory-mapped chunks. Chunks are mapped on
+ * first access, which also grows the file, so only the pages that are actually
+ * touched are ever loaded. A chunk is mapped only as far as it is used, at
+ * least {@link #MIN_MAP} bytes, and mapped again twice as large when a later
+ * access goes past its end, so the file grows with the data instead of by a
+ * whole chunk at a time. Fixed-width values must not cross a chunk boundary;
+ * byte ranges may.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class MappedFile {
+	static final int CHUNK_SIZE = 1 << 26;
+	static final int MIN_MAP = 1 << 16;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+	MappedFile(File path) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+	}
+
+	/**
+	 * @return the size of the file before it was first mapped.
+	 */
+	long length() throws IOException {
+		return file.length();
+	}
+
+	/**
+	 * @return the chunk holding <code>position</code>, mapped at least as far
+	 *         as <code>width</code> bytes past it.
+	 */
+	private MappedByteBuffer chunk(long position, int width) throws IOException {
+		int index = (int) (position / CHUNK_SIZE);
+		while (chunks.size() <= index) {
+			chunks.add(null);
+		}
+		MappedByteBuffer chunk = chunks.get(index);
+		int needed = offset(position) + width;
+		if (chunk == null || chunk.capacity() < needed) {
+			long start = (long) index * CHUNK_SIZE;
+			// Map what the file already holds of this chunk, or twice what
+			// was mapped before.
+			long size = chunk == null ? file.length() - start
+					: 2L * chunk.capacity();
+			size = Math.min(CHUNK_SIZE, Math.max(Math.max(size, MIN_MAP),
+					needed));
+			chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			chunks.set(index, chunk);
+		}
+		return chunk;
+	}
+
+	private static int offset(long position) {
+		return (int) (position % CHUNK_SIZE);
+	}
+
+	int getInt(long position) throws IOException {
+		return chunk(position, 4).getInt(offset(position));
+	}
+
+	void putInt(long position, int value) throws IOException {
+		chunk(position, 4).putInt(offset(position), value);
+	}
+
+	short getShort(long position) throws IOException {
+		return chunk(position, 2).getShort(offset(position));
+	}
+
+	void putShort(long position, short value) throws IOException {
+		chunk(position, 2).putShort(offset(position), value);
+	}
+
+	long getLong(long position) throws IOException {
+		return chunk(position, 8).getLong(offset(position));
+	}
+
+	void putLong(long position, long value) throws IOException {
+		chunk(position, 8).putLong(offset(position), value);
+	}
+
+	void getBytes(long position, byte[] dst) throws IOException {
+		int done = 0;
+		while (done < dst.length) {
+			int offset = offset(position + done);
+			int n = Math.min(dst.length - done, CHUNK_SIZE - offset);
+			MappedByteBuffer chunk = chunk(position + done, n);
+			ByteBuffer view = chunk.duplicate();
+			view.position(offset);
+			view.get(dst, done, n);
+			done += n;
+		}
+	}
+
+	void putBytes(long position, byte[] src) throws IOException {
+		int done = 0;
+		while (done < src.length) {
+			int offset = offset(position + done);
+			int n = Math.min(src.length - done, CHUNK_SIZE - offset);
+			MappedByteBuffer chunk = chunk(position + done, n);
+			ByteBuffer view = chunk.duplicate();
+			view.position(offset);
+			view.put(src, done, n);
+			done += n;
+		}
+	}
+
+	/**
+	 * Write all modified chunks back to disk.
+	 */
+	void force() {
+		// A chunk mapped again shares its pages with the earlier mapping, so
+		// forcing the new one writes what was changed through either.
+		for (MappedByteBuffer chunk : chunks) {
+			if (chunk != null) {
+				chunk.force();
+			}
+		}
+	}
+
+	void close() throws IOException {
+		force();
+		chunks.clear();
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,14 @@
+package officeterminal;
+
+/**
+ * Told about every change a {@link BackOfficeSimulator} makes, while it makes
+ * it and under the lock stripe of the customer the change belongs to. Changes
+ * to one customer therefore arrive in the order they were made, and changes to
+ * different customers do not wait for each other.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+interface MutationListener {
+	void mutated(MutationLog.Mutation mutation);
+}
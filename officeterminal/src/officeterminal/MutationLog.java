@@ -0,0 +1,205 @@
+package officeterminal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.NavigableMap;
+
+import common.CreditTransaction;
+
+/**
+ * The format of the mutation log a primary back office ships to its standby.
+ * Every record is a sequence number (8 bytes), the time it was logged (8
+ * bytes), its type (1 byte), the length of its payload (4 bytes) and the
+ * payload. Sequence numbers start at 1 and have no gaps.
+ * 
+ * Records describe the result of a change rather than the request, so the
+ * standby ends up with the same ids as the primary, and applying a record
+ * twice does no harm. Once the standby has every record the log may be
+ * emptied; numbering then goes on from the last record.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class MutationLog {
+	static final int HEADER = 21;
+	/** Every how many records the position of a record is indexed */
+	static final int INDEX_INTERVAL = 1024;
+
+	/** A customer with its current card: id, card id (-1 for none), credits, name. */
+	static final byte CUSTOMER = 1;
+	/** A card issued to an existing customer: card id, customer id. */
+	static final byte CARD = 2;
+	/** A deleted card: card id. */
+	static final byte DELETE_CARD = 3;
+	/** A deleted customer: customer id. */
+	static final byte DELETE_CUSTOMER = 4;
+	/**
+	 * Transactions: count, the transactions, then the id of the store that
+	 * counted them (missing in older records).
+	 */
+	static final byte TRANSACTIONS = 5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private MutationLog() {
+	}
+
+	/**
+	 * A change waiting to be logged: its type and payload.
+	 */
+	static final class Mutation {
+		final byte type;
+		final ByteBuffer payload;
+		final long time = System.currentTimeMillis();
+
+		Mutation(byte type, ByteBuffer payload) {
+			this.type = type;
+			this.payload = payload;
+			payload.flip();
+		}
+
+		/**
+		 * @return the complete record, with sequence number
+		 *         <code>sequence</code>.
+		 */
+		ByteBuffer record(long sequence) {
+			ByteBuffer record = ByteBuffer.allocate(HEADER
+					+ payload.remaining());
+			record.putLong(sequence);
+			record.putLong(time);
+			record.put(type);
+			record.putInt(payload.remaining());
+			record.put(payload.duplicate());
+			record.flip();
+			return record;
+		}
+	}
+
+	static Mutation customer(Customer c) {
+		byte[] name = c.getName().getBytes(UTF8);
+		ByteBuffer payload = ByteBuffer.allocate(14 + name.length);
+		payload.putInt(c.getID());
+		if (c.getCard() == null) {
+			payload.putInt(-1);
+			payload.putShort((short) 0);
+		} else {
+			payload.putInt(c.getCardID());
+			payload.putShort(c.getCredits());
+		}
+		payload.putInt(name.length);
+		payload.put(name);
+		return new Mutation(CUSTOMER, payload);
+	}
+
+	static Mutation card(int cardId, int customerId) {
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putInt(cardId);
+		payload.putInt(customerId);
+		return new Mutation(CARD, payload);
+	}
+
+	static Mutation deletion(byte type, int id) {
+		ByteBuffer payload = ByteBuffer.allocate(4);
+		payload.putInt(id);
+		return new Mutation(type, payload);
+	}
+
+	/**
+	 * @param store
+	 *            the id the primary counted the transactions under, or 0 if
+	 *            it has none
+	 */
+	static Mutation transactions(List<CreditTransaction> batch, int store) {
+		ByteBuffer payload = ByteBuffer.allocate(8 + batch.size()
+				* CreditTransaction.SIZE);
+		payload.putInt(batch.size());
+		for (CreditTransaction t : batch) {
+			t.writeTo(payload);
+		}
+		payload.putInt(store);
+		return new Mutation(TRANSACTIONS, payload);
+	}
+
+	/**
+	 * Read a customer record payload.
+	 */
+	static Customer readCustomer(ByteBuffer payload) {
+		int id = payload.getInt();
+		int cardId = payload.getInt();
+		short credits = payload.getShort();
+		byte[] name = new byte[payload.getInt()];
+		payload.get(name);
+		Customer c = new Customer(new String(name, UTF8), id);
+		if (cardId != -1) {
+			c.setCard(new Card(cardId, credits, c));
+		}
+		return c;
+	}
+
+	/**
+	 * Find where the record after <code>sequence</code> starts, reading the
+	 * record headers from the indexed record closest before it.
+	 * 
+	 * @param index
+	 *            the positions of records, by sequence number
+	 * @return the position of that record, or the end of the complete records
+	 *         if there is none yet.
+	 */
+	static long positionAfter(FileChannel log, NavigableMap<Long, Long> index,
+			long sequence) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		Long start = index.isEmpty() ? null : index.floorKey(sequence + 1);
+		long position = start == null ? 0 : index.get(start);
+		long size = log.size();
+		while (position + HEADER <= size) {
+			header.clear();
+			while (header.hasRemaining()) {
+				if (log.read(header, position + header.position()) < 0) {
+					return position;
+				}
+			}
+			long next = position + HEADER + header.getInt(17);
+			if (header.getLong(0) > sequence || next > size) {
+				return position;
+			}
+			position = next;
+		}
+		return position;
+	}
+
+	/**
+	 * Index the log as well, every {@link #INDEX_INTERVAL} records.
+	 * 
+	 * @return the sequence number of the last complete record in the log, or
+	 *         0 if there is none; the log is cut off after that record.
+	 */
+	static long recover(FileChannel log, NavigableMap<Long, Long> index)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		long position = 0;
+		long last = 0;
+		long size = log.size();
+		while (position + HEADER <= size) {
+			header.clear();
+			while (header.hasRemaining()) {
+				log.read(header, position + header.position());
+			}
+			long next = position + HEADER + header.getInt(17);
+			if (next > size) {
+				break;
+			}
+			last = header.getLong(0);
+			if (last % INDEX_INTERVAL == 0) {
+				index.put(last, position);
+			}
+			position = next;
+		}
+		// Drop a record torn by a crash during the last append.
+		log.truncate(position);
+		log.position(position);
+		return last;
+	}
+}
@@ -0,0 +1,207 @@
+package officeterminal;
+
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the names of the customers of a store as UTF-8 in large shared
+ * chunks, instead of as a string and a character array per customer. A name
+ * is a varint length followed by its bytes; a customer points at the chunk and
+ * offset of its own name, and only turns it into a string when asked for it.
+ *
+ * Chunks are only ever appended to. Names of customers that are gone are
+ * reclaimed by {@link #compact(Iterable, Iterable)}, which copies the names
+ * still in use to fresh chunks and points their customers there. Copies of a
+ * customer made before that keep the old chunk alive until they are dropped.
+ *
+ * Every name is compared and matched as bytes, which orders names by code
+ * point. That is the order of {@link String#compareTo(String)} except for
+ * characters outside the Basic Multilingual Plane.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class NameArena {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** The chunks names are added to, to tell them from other arrays */
+	private Map<byte[], Boolean> chunks = new IdentityHashMap<byte[], Boolean>();
+	private byte[] chunk;
+	private int used;
+	/** Bytes held by current names, and by names released since */
+	private long live;
+	private long dead;
+
+	/**
+	 * @return a name on its own, in the layout of a chunk.
+	 */
+	static byte[] encode(String name) {
+		byte[] bytes = name.getBytes(UTF8);
+		byte[] encoded = new byte[varintSize(bytes.length) + bytes.length];
+		int offset = putVarint(encoded, 0, bytes.length);
+		System.arraycopy(bytes, 0, encoded, offset, bytes.length);
+		return encoded;
+	}
+
+	static String decode(byte[] chunk, int offset) {
+		int length = length(chunk, offset);
+		return new String(chunk, start(chunk, offset), length, UTF8);
+	}
+
+	/**
+	 * Compare two names byte by byte.
+	 */
+	static int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+		int aLength = length(a, aOffset);
+		int bLength = length(b, bOffset);
+		int i = start(a, aOffset);
+		int j = start(b, bOffset);
+		int end = i + Math.min(aLength, bLength);
+		for (; i < end; i++, j++) {
+			if (a[i] != b[j]) {
+				return (a[i] & 0xFF) - (b[j] & 0xFF);
+			}
+		}
+		return aLength - bLength;
+	}
+
+	/**
+	 * @return whether the name at <code>offset</code> starts with the name
+	 *         in <code>prefix</code>, as made by {@link #encode(String)}.
+	 */
+	static boolean startsWith(byte[] chunk, int offset, byte[] prefix) {
+		int length = length(prefix, 0);
+		if (length(chunk, offset) < length) {
+			return false;
+		}
+		int i = start(chunk, offset);
+		int j = start(prefix, 0);
+		for (int end = j + length; j < end; i++, j++) {
+			if (chunk[i] != prefix[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes the name at <code>offset</code> takes up.
+	 */
+	static int size(byte[] chunk, int offset) {
+		return start(chunk, offset) - offset + length(chunk, offset);
+	}
+
+	private static int length(byte[] chunk, int offset) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = chunk[offset++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	private static int start(byte[] chunk, int offset) {
+		while (chunk[offset++] < 0) {
+		}
+		return offset;
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	private static int putVarint(byte[] chunk, int offset, int value) {
+		while ((value & ~0x7F) != 0) {
+			chunk[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		chunk[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Move the name of a customer into the arena, unless it is there already.
+	 * Call before the customer is shared, or for a customer whose name is
+	 * only read.
+	 */
+	synchronized void add(Customer c) {
+		if (!chunks.containsKey(c.nameChunk())) {
+			live += move(c);
+		}
+	}
+
+	/**
+	 * Copy a name to the current chunk and point its customer there. A name
+	 * too long for a chunk keeps its own array.
+	 *
+	 * @return the bytes the name takes up.
+	 */
+	private int move(Customer c) {
+		byte[] from = c.nameChunk();
+		int offset = c.nameOffset();
+		int size = size(from, offset);
+		if (size > CHUNK_SIZE) {
+			return 0;
+		}
+		if (chunk == null || used + size > CHUNK_SIZE) {
+			chunk = new byte[CHUNK_SIZE];
+			chunks.put(chunk, Boolean.TRUE);
+			used = 0;
+		}
+		System.arraycopy(from, offset, chunk, used, size);
+		c.moveName(chunk, used);
+		used += size;
+		return size;
+	}
+
+	/**
+	 * Note that a customer no longer needs its name.
+	 */
+	synchronized void release(Customer c) {
+		if (chunks.containsKey(c.nameChunk())) {
+			int size = size(c.nameChunk(), c.nameOffset());
+			live -= size;
+			dead += size;
+		}
+	}
+
+	/**
+	 * @return whether more bytes are taken by released names than by current
+	 *         ones, so that {@link #compact(Iterable, Iterable)} pays off.
+	 */
+	synchronized boolean wasteful() {
+		return dead > CHUNK_SIZE && dead > live;
+	}
+
+	/**
+	 * Copy the names of <code>customers</code> and of the owners of
+	 * <code>cards</code> to fresh chunks, and drop the chunks they were in.
+	 * Names cannot be added meanwhile.
+	 */
+	synchronized void compact(Iterable<Customer> customers, Iterable<Card> cards) {
+		Map<byte[], Boolean> old = chunks;
+		chunks = new IdentityHashMap<byte[], Boolean>();
+		chunk = null;
+		live = 0;
+		dead = 0;
+		for (Customer c : customers) {
+			if (old.containsKey(c.nameChunk())) {
+				live += move(c);
+			}
+		}
+		for (Card card : cards) {
+			Customer owner = card.getCustomer();
+			if (old.containsKey(owner.nameChunk())) {
+				live += move(owner);
+			}
+		}
+	}
+}
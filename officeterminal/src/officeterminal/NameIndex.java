@@ -0,0 +1,88 @@
+package officeterminal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index from customer name to customer ids. Exact lookups go through
+ * a hash map, prefix lookups through a sorted map; both share the same id sets.
+ * Lookups never lock; updates are serialized so both maps stay in step.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class NameIndex {
+	private ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> exact =
+			new ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>>();
+	private ConcurrentSkipListMap<String, ConcurrentSkipListSet<Integer>> sorted =
+			new ConcurrentSkipListMap<String, ConcurrentSkipListSet<Integer>>();
+
+	synchronized void add(String name, int customerId) {
+		ConcurrentSkipListSet<Integer> ids = exact.get(name);
+		if (ids == null) {
+			ids = new ConcurrentSkipListSet<Integer>();
+			exact.put(name, ids);
+			sorted.put(name, ids);
+		}
+		ids.add(customerId);
+	}
+
+	synchronized void remove(String name, int customerId) {
+		ConcurrentSkipListSet<Integer> ids = exact.get(name);
+		if (ids == null) {
+			return;
+		}
+		ids.remove(customerId);
+		if (ids.isEmpty()) {
+			exact.remove(name);
+			sorted.remove(name);
+		}
+	}
+
+	/**
+	 * @return the lowest id of a customer with exactly this name, or -1.
+	 */
+	int first(String name) {
+		ConcurrentSkipListSet<Integer> ids = exact.get(name);
+		Integer first = ids == null ? null : ids.ceiling(Integer.MIN_VALUE);
+		return first == null ? -1 : first;
+	}
+
+	/**
+	 * Find customers whose name starts with <code>prefix</code>, ordered by
+	 * name and then by id.
+	 *
+	 * @param prefix
+	 *            start of the name, may be empty
+	 * @param offset
+	 *            number of matches to skip
+	 * @param limit
+	 *            maximum number of ids to return
+	 * @return a page of matching customer ids
+	 */
+	List<Integer> prefix(String prefix, int offset, int limit) {
+		List<Integer> page = new ArrayList<Integer>();
+		for (Map.Entry<String, ConcurrentSkipListSet<Integer>> e : sorted
+				.tailMap(prefix).entrySet()) {
+			if (!e.getKey().startsWith(prefix) || page.size() >= limit) {
+				break;
+			}
+			if (offset >= e.getValue().size()) {
+				offset -= e.getValue().size();
+				continue;
+			}
+			for (int id : e.getValue()) {
+				if (offset > 0) {
+					offset--;
+				} else if (page.size() < limit) {
+					page.add(id);
+				}
+			}
+		}
+		return page;
+	}
+}
@@ -5,13 +5,20 @@ import common.CLI;
 import common.AppletCommunication;
 import common.CONSTANTS;
 import common.Formatter;
+import common.CreditTransaction;
 import common.Response;
+import common.RevocationList;
+import common.SpoolTransactionSink;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.Security;
 import java.security.interfaces.RSAPrivateKey;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.smartcardio.CardChannel;
 
@@ -27,6 +34,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
  */
 public class OfficeTerminal {
 	static final int BLOCKSIZE = 128;
+	static final int PAGE_SIZE = 20;
 
 	static final String MSG_ERROR = "Error";
 	static final String MSG_INVALID = "Invalid";
@@ -49,12 +57,31 @@ public class OfficeTerminal {
 	/** Back-office for OfficeTerminal */
 	BackOffice office;
 
+	/** The same back-office, for calls that may run alongside the dialogue */
+	AsyncBackOffice async;
+
+	/** What ships the changes to the standby, or <code>null</code> */
+	ReplicatingBackOffice replication;
+
+	/** Directory where the cash registers drop their transaction batches */
+	static final String LEDGER_SPOOL = SpoolTransactionSink.DEFAULT_DIRECTORY;
+
+	/** Directory where the revocation list is published for the cash registers */
+	static final String REVOCATIONS = RevocationList.DEFAULT_DIRECTORY;
+
+	/** Number of deltas after which a new snapshot of the revocation list is published */
+	static final int SNAPSHOT_INTERVAL = 32;
+
+	/** Cards revoked so far */
+	RevocationList revocations = new RevocationList();
+
 	/**
 	 * Constructs the terminal application.
 	 */
 	public OfficeTerminal() {
 		try {
-			office = new BackOfficeSimulator("./keys/");
+			office = createBackOffice();
+			async = new AsyncBackOfficeAdapter(office, 2);
 		} catch (BackOfficeException e) {
 			System.err.println("Failed to create back office simulator: " + e.getMessage());
 			return;
@@ -67,6 +94,74 @@ public class OfficeTerminal {
 			System.err.println("Failed to fetch supermarket private key: " + e.getMessage());
 		}
 		com = new AppletCommunication(session);
+
+		try {
+			revocations = RevocationList.load(REVOCATIONS);
+		} catch (IOException e) {
+			System.err.println("Failed to load revocation list: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Create the back office selected by the <code>backoffice</code> system
+	 * property: <code>mapped</code> for the memory-mapped store,
+	 * <code>jdbc</code> for the database at <code>backoffice.url</code>,
+	 * <code>lazy</code> for the index-first file store, <code>remote</code>
+	 * for a {@link BackOfficeServer} at <code>backoffice.host</code> and
+	 * <code>backoffice.port</code>, <code>sharded</code> for
+	 * <code>backoffice.shards</code> simulators (default 4), anything else
+	 * for the simulator. Lookups go through a cache of <code>backoffice.cache</code>
+	 * customers (default 1000, 0 for none) that expire after
+	 * <code>backoffice.cache.ttl</code> milliseconds (default never). A
+	 * remote back office is shared with other desks, so it is not cached
+	 * unless <code>backoffice.cache</code> is set, and then for one second
+	 * by default. If
+	 * <code>backoffice.standby</code> is set, every change is shipped to the
+	 * {@link BackOfficeStandby} on that port, and the dashboard shows how
+	 * far behind it is.
+	 * 
+	 * @return the back office for this terminal
+	 * @throws BackOfficeException
+	 */
+	private BackOffice createBackOffice() throws BackOfficeException {
+		BackOffice office = createStore();
+		Integer standbyPort = Integer.getInteger("backoffice.standby");
+		if (standbyPort != null) {
+			replication = new ReplicatingBackOffice(office, new File(
+					"replication.log"), standbyPort);
+			office = replication;
+		}
+		boolean shared = "remote".equals(System.getProperty("backoffice"));
+		int cacheSize = Integer.getInteger("backoffice.cache", shared ? 0
+				: 1000);
+		if (cacheSize > 0) {
+			office = new CachingBackOffice(office, cacheSize, Long.getLong(
+					"backoffice.cache.ttl", shared ? 1000 : 0));
+		}
+		return office;
+	}
+
+	static BackOffice createStore() throws BackOfficeException {
+		if ("remote".equals(System.getProperty("backoffice"))) {
+			return new RemoteBackOffice(System.getProperty("backoffice.host",
+					"localhost"), Integer.getInteger("backoffice.port",
+					BackOfficeProtocol.DEFAULT_PORT));
+		}
+		if ("mapped".equals(System.getProperty("backoffice"))) {
+			return new MappedBackOffice("./keys/", "./");
+		}
+		if ("lazy".equals(System.getProperty("backoffice"))) {
+			return new LazyBackOffice("./keys/", "backoffice.db");
+		}
+		if ("sharded".equals(System.getProperty("backoffice"))) {
+			return new ShardedBackOffice("./keys/", "./shards/", Integer
+					.getInteger("backoffice.shards", 4));
+		}
+		if ("jdbc".equals(System.getProperty("backoffice"))) {
+			return new JdbcBackOffice("./keys/", System.getProperty(
+					"backoffice.url", "jdbc:h2:./backoffice"));
+		}
+		return new BackOfficeSimulator("./keys/");
 	}
 
 	/**
@@ -87,23 +182,97 @@ public class OfficeTerminal {
 	 * Save the back-office state.
 	 */
 	public void save() {
-		BackOfficeSimulator sim = (BackOfficeSimulator) office;
 		try {
-			sim.save();
+			office.save();
+		} catch (IOException e) {
+			System.err.println("Failed to save back-office state: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Record the transaction batches the cash registers have dropped in the
+	 * spool directory. A batch file is only removed once the back office has
+	 * recorded it; recording the same batch twice is harmless.
+	 */
+	public void ingestTransactions() {
+		for (File batch : SpoolTransactionSink.pending(LEDGER_SPOOL)) {
+			try {
+				List<CreditTransaction> list = SpoolTransactionSink.read(batch);
+				office.recordTransactions(list);
+				if (!batch.delete()) {
+					System.err.println("Could not remove " + batch);
+				}
+			} catch (IOException e) {
+				System.err.println("Could not read " + batch + ": " + e.getMessage());
+			} catch (BackOfficeException e) {
+				System.err.println("Could not record " + batch + ": " + e.getMessage());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Publish the revocation of a card to the cash registers. Every revocation
+	 * becomes a small delta; every SNAPSHOT_INTERVAL versions the whole list is
+	 * published again and the deltas it contains are removed.
+	 * 
+	 * @param cardID the card that may no longer be used
+	 */
+	public void publishRevocation(int cardID) {
+		try {
+			long version = revocations.publishDelta(REVOCATIONS, cardID);
+			if (version % SNAPSHOT_INTERVAL == 0) {
+				revocations.writeSnapshot(REVOCATIONS);
+				RevocationList.pruneDeltas(REVOCATIONS);
+			}
 		} catch (IOException e) {
-			System.err.println("Failed to save BackOfficeSimulator state: " + e.getMessage());
+			System.err.println("Failed to publish revocation of card " + cardID + ": " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Register a new customer
+	 * Revoke a lost card: the cash registers refuse it from their next card
+	 * session on, and the back office forgets it.
+	 * 
+	 * @param cardID the card that was lost
+	 */
+	public void revokeLostCard(int cardID) {
+		publishRevocation(cardID);
+		office.deleteCard(cardID);
+	}
+
+	/**
+	 * Register a new customer while waiting for the card that will be
+	 * issued, so the back office and the card reader work at the same time.
 	 * 
 	 * @param cusName
 	 * @return
 	 * @throws BackOfficeException
 	 */
 	public Customer registerNewCustomer(String cusName) throws BackOfficeException {
-		return office.registerCustomer(cusName);
+		Future<Customer> registration = async.registerCustomer(cusName);
+		com.waitForCard();
+		return await(registration);
+	}
+
+	/**
+	 * Wait for an asynchronous back-office call to finish
+	 * 
+	 * @return the result of the call
+	 * @throws BackOfficeException if the call failed
+	 */
+	private static <T> T await(Future<T> call) throws BackOfficeException {
+		try {
+			return call.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BackOfficeException("Interrupted while waiting for the back office", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BackOfficeException) {
+				throw (BackOfficeException) e.getCause();
+			}
+			throw new BackOfficeException("Back office call failed", e.getCause());
+		}
 	}
 
 	public static void main(String[] args) {
@@ -118,9 +287,10 @@ public class OfficeTerminal {
 			} catch (InterruptedException e) {
 				System.err.println("Please do not interupt me!");
 			}
+			ot.ingestTransactions();
 
 			command = CLI.prompt("\nPlease enter command.\n(1) Issue new card |"
-					+ " (2) View customer info | (3) Revoke existing card | (9) Exit\n(?): ");
+					+ " (2) View customer info | (3) Revoke existing card | (4) Revoke lost card | (5) Statistics | (9) Exit\n(?): ");
 
 			/* Register new customer */
 			if (Integer.parseInt(command) == 1) {
@@ -160,23 +330,30 @@ public class OfficeTerminal {
 
 			/* View more info about specific customer */
 			else if (Integer.parseInt(command) == 2) {
-				List<Customer> customers = ot.getCustomerIds();
-				for (Customer c : customers) {
-					System.out.println("Customer #" + c.getID() + ": " + c.getName());
-				}
+				Iterator<List<Customer>> pages = ot.getCustomerPages();
 				Customer chosen = null;
-				while (chosen == null) {
-					int cust = Integer.parseInt(CLI.prompt("Please enter customer's id: "));
-					if (cust == -1)
-						continue mainmenu;
-					for (Customer c : customers) {
-						if (c.getID() == cust) {
-							chosen = c;
-							break;
+				try {
+					while (chosen == null) {
+						if (pages.hasNext()) {
+							for (Customer c : pages.next()) {
+								System.out.println("Customer #" + c.getID() + ": " + c.getName());
+							}
+						}
+						String input = CLI.prompt(pages.hasNext() ? "Please enter customer's id, or press return for more: "
+								: "Please enter customer's id: ");
+						if (input.length() == 0)
+							continue;
+						int cust = Integer.parseInt(input);
+						if (cust == -1)
+							continue mainmenu;
+						try {
+							chosen = ot.getCustomerByID(cust);
+						} catch (BackOfficeException e) {
+							System.err.println("Invalid customer");
 						}
 					}
-					if (chosen == null)
-						System.err.println("Invalid customer");
+				} finally {
+					CustomerPages.close(pages);
 				}
 				System.out.println(chosen.getName() + ": Card ID = " + chosen.getCardID() + ", balance = " + chosen.getCredits());
 
@@ -195,6 +372,10 @@ public class OfficeTerminal {
 				}
 				CLI.checkInt(cust);
 				try {
+					int card = ot.getCardID(cust);
+					if (card != -1) {
+						ot.publishRevocation(card);
+					}
 					ot.deleteCustomer(cust);
 					ot.revoke(cust);
 					CLI.showln("Removed Customer with ID = " + cust + " from database.");
@@ -204,9 +385,35 @@ public class OfficeTerminal {
 				}
 			}
 
+			/* Revoke a card that is not at hand */
+			else if (Integer.parseInt(command) == 4) {
+				int card = Integer.parseInt(CLI.prompt("Please enter the id of the lost card: "));
+				if (card == -1)
+					continue mainmenu;
+				ot.revokeLostCard(card);
+				CLI.showln("Card " + card + " will be refused by the cash registers.");
+			}
+
+			/* Live totals for the dashboard */
+			else if (Integer.parseInt(command) == 5) {
+				try {
+					BackOfficeStatistics statistics = ot.office.getStatistics();
+					CLI.showln(statistics.toString());
+					for (BackOfficeStatistics.Balance b : statistics.getTopBalances()) {
+						CLI.showln("Card " + b.cardId + " of customer #" + b.customerId + ": " + b.credits);
+					}
+					if (ot.replication != null) {
+						CLI.showln(ot.replication.describe());
+					}
+				} catch (BackOfficeException e) {
+					System.err.println("Could not fetch statistics.");
+				}
+			}
+
 			/* Exit */
 			else if (Integer.parseInt(command) == 9) {
 				ot.save();
+				ot.async.shutdown();
 				break;
 			} else {
 				System.err.println("Incorrect command entered.");
@@ -215,7 +422,8 @@ public class OfficeTerminal {
 	}
 
 	/**
-	 * Personalize a card for a new customer
+	 * Personalize a card for a new customer. The card has to be in the reader
+	 * already, see {@link #registerNewCustomer(String)}.
 	 * @param cardID the id of the card to be issued
 	 */
 	private void personalize(int cardID) {
@@ -223,8 +431,6 @@ public class OfficeTerminal {
 		
 		System.arraycopy(Formatter.toByteArray(cardID), 0, data, 0, CONSTANTS.NAME_LENGTH);
 		
-		com.waitForCard();
-		
 		Response response = com.sendCommand(CONSTANTS.INS_PERSONALIZE_WRITE, data);
 		
 		if (response == null) {
@@ -274,6 +480,19 @@ public class OfficeTerminal {
 		return office.getCustomerByID(cust);
 	}
 
+	/**
+	 * Returns the id of the card of a customer
+	 * 
+	 * @param customerID
+	 *            id of the customer
+	 * @return the card id, or -1 if the customer has no card
+	 * @throws BackOfficeException
+	 */
+	private int getCardID(int customerID) throws BackOfficeException {
+		Customer customer = office.getCustomerByID(customerID);
+		return customer.getCard() == null ? -1 : office.getCardID(customer);
+	}
+
 	/**
 	 * Delete a specified customer from the database
 	 * 
@@ -286,16 +505,16 @@ public class OfficeTerminal {
 	}
 
 	/**
-	 * Fetch a list of all customers in the database
+	 * Page through all customers in the database
 	 * 
-	 * @return an ArrayList with customers of type Customer
+	 * @return pages of at most PAGE_SIZE customers, fetched as they are needed
 	 */
-	private List<Customer> getCustomerIds() {
+	private Iterator<List<Customer>> getCustomerPages() {
 		try {
-			return office.getCustomers();
+			return office.streamCustomers(null, PAGE_SIZE);
 		} catch (BackOfficeException e) {
 			System.err.println("Couldn't fetch list of customers: " + e.getMessage());
-			return new ArrayList<Customer>();
+			return new ArrayList<List<Customer>>().iterator();
 		}
 	}
 }
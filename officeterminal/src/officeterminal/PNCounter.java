@@ -0,0 +1,148 @@
+package officeterminal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The balance of one card as a PN-counter: for every store, the total of the
+ * credits added and the total removed by the transactions it received. A store
+ * only ever raises its own totals, so two copies of a counter are merged by
+ * taking the highest totals of every store. Merging is commutative,
+ * associative and idempotent, so copies kept by different stores converge
+ * whatever order they exchange their state in, and without any locking between
+ * them. Totals are kept per store rather than per cash register, as the
+ * uploads of one register may reach more than one store.
+ * 
+ * A card is usually seen by only a few stores, so the totals are kept in two
+ * small arrays sorted by store rather than in a map, at about 20 bytes per
+ * store.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class PNCounter {
+	private static final int[] NO_STORES = new int[0];
+	private static final long[] NO_TOTALS = new long[0];
+
+	/** The number of stores counted */
+	private int size;
+	/** The ids of the stores counted, ascending */
+	private int[] stores = NO_STORES;
+	/**
+	 * Per store, at twice its index in {@link #stores}: the credits added,
+	 * followed by the credits removed.
+	 */
+	private long[] totals = NO_TOTALS;
+
+	/**
+	 * @return the index of <code>store</code>, added with zero totals if it
+	 *         was not counted yet.
+	 */
+	private int index(int store) {
+		int i = Arrays.binarySearch(stores, 0, size, store);
+		if (i >= 0) {
+			return i;
+		}
+		i = -i - 1;
+		if (size == stores.length) {
+			// Most cards are seen by one or two stores, so grow by one.
+			stores = Arrays.copyOf(stores, size + 1);
+			totals = Arrays.copyOf(totals, 2 * (size + 1));
+		}
+		System.arraycopy(stores, i, stores, i + 1, size - i);
+		System.arraycopy(totals, 2 * i, totals, 2 * i + 2, 2 * (size - i));
+		stores[i] = store;
+		totals[2 * i] = 0;
+		totals[2 * i + 1] = 0;
+		size++;
+		return i;
+	}
+
+	/**
+	 * Count credits added (positive) or removed (negative) in a store.
+	 */
+	synchronized void add(int store, long amount) {
+		int i = index(store);
+		if (amount >= 0) {
+			totals[2 * i] += amount;
+		} else {
+			totals[2 * i + 1] -= amount;
+		}
+	}
+
+	/**
+	 * Take over the totals of another copy where they are higher.
+	 * 
+	 * @return <code>true</code> if this counter changed.
+	 */
+	boolean merge(PNCounter other) {
+		// Never hold both locks, so two counters can merge each other.
+		int[] theirStores;
+		long[] theirTotals;
+		synchronized (other) {
+			theirStores = Arrays.copyOf(other.stores, other.size);
+			theirTotals = Arrays.copyOf(other.totals, 2 * other.size);
+		}
+		synchronized (this) {
+			boolean changed = false;
+			for (int j = 0; j < theirStores.length; j++) {
+				int i = index(theirStores[j]);
+				for (int k = 0; k < 2; k++) {
+					if (theirTotals[2 * j + k] > totals[2 * i + k]) {
+						totals[2 * i + k] = theirTotals[2 * j + k];
+						changed = true;
+					}
+				}
+			}
+			return changed;
+		}
+	}
+
+	/**
+	 * @return everything added minus everything removed.
+	 */
+	synchronized long value() {
+		long value = 0;
+		for (int i = 0; i < size; i++) {
+			value += totals[2 * i] - totals[2 * i + 1];
+		}
+		return value;
+	}
+
+	/**
+	 * @return everything removed, in all stores together.
+	 */
+	synchronized long removed() {
+		long removed = 0;
+		for (int i = 0; i < size; i++) {
+			removed += totals[2 * i + 1];
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the state of the counter, ready to be written.
+	 */
+	synchronized ByteBuffer encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 20 * size);
+		buffer.putInt(size);
+		for (int i = 0; i < size; i++) {
+			buffer.putInt(stores[i]);
+			buffer.putLong(totals[2 * i]);
+			buffer.putLong(totals[2 * i + 1]);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static PNCounter readFrom(ByteBuffer buffer) {
+		PNCounter counter = new PNCounter();
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			int index = counter.index(buffer.getInt());
+			counter.totals[2 * index] = buffer.getLong();
+			counter.totals[2 * index + 1] = buffer.getLong();
+		}
+		return counter;
+	}
+}
@@ -0,0 +1,52 @@
+package officeterminal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of one index table of a {@link BackOfficeCodec} file: fixed
+ * width (id, offset) entries sorted by id, usually straight from a mapped file.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class RecordIndex {
+	private ByteBuffer table;
+	private int size;
+
+	RecordIndex(ByteBuffer table) {
+		this.table = table;
+		this.size = table.capacity() / BackOfficeCodec.INDEX_ENTRY;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int id(int i) {
+		return table.getInt(i * BackOfficeCodec.INDEX_ENTRY);
+	}
+
+	long offset(int i) {
+		return table.getLong(i * BackOfficeCodec.INDEX_ENTRY + 4);
+	}
+
+	/**
+	 * @return the file offset of the record with this id, or -1.
+	 */
+	long find(int id) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midId = id(mid);
+			if (midId < id) {
+				low = mid + 1;
+			} else if (midId > id) {
+				high = mid - 1;
+			} else {
+				return offset(mid);
+			}
+		}
+		return -1;
+	}
+}
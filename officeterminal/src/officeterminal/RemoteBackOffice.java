@@ -0,0 +1,416 @@
+package officeterminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.CreditTransaction;
+
+/**
+ * A back office on a {@link BackOfficeServer}, reached over one persistent
+ * connection. Calls from several threads are pipelined: each thread sends its
+ * request as soon as it is made, and a reader thread hands every response to
+ * the thread waiting for it.
+ * 
+ * The supermarket key pair is requested with the token the server wrote to its
+ * token file, so only a user who can read that file gets the keys.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class RemoteBackOffice implements BackOffice {
+	/**
+	 * Reads the customers of a cursor on the server a page at a time, and
+	 * closes the cursor if it is abandoned before the last page.
+	 */
+	private final class RemoteCursor implements Iterator<Customer>, Closeable {
+		private final int cursor;
+		private Iterator<Customer> page = new ArrayList<Customer>().iterator();
+		private boolean last;
+
+		RemoteCursor(int cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!page.hasNext() && !last) {
+				try {
+					ByteBuffer response = call(request(
+							BackOfficeProtocol.NEXT_PAGE).putInt(cursor));
+					last = response.get() == 0;
+					page = BackOfficeProtocol.getCustomers(response).iterator();
+				} catch (BackOfficeException e) {
+					throw new IllegalStateException(e.getMessage(), e);
+				}
+			}
+			return page.hasNext();
+		}
+
+		@Override
+		public Customer next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Close the cursor on the server, which already did so if the last
+		 * page was read.
+		 */
+		public void close() throws IOException {
+			if (last) {
+				return;
+			}
+			last = true;
+			try {
+				call(request(BackOfficeProtocol.CLOSE_CURSOR).putInt(cursor));
+			} catch (BackOfficeException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private static final class Call {
+		final CountDownLatch done = new CountDownLatch(1);
+		ByteBuffer response;
+		IOException failure;
+	}
+
+	private SocketChannel channel;
+	private Object writeLock = new Object();
+	private AtomicInteger nextId = new AtomicInteger();
+	private Map<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+	private volatile IOException closed;
+	private KeyPair supermarketKeyPair;
+
+	/**
+	 * Connect to the back-office server at <code>host</code>:<code>port</code>.
+	 * 
+	 * @throws BackOfficeException
+	 */
+	RemoteBackOffice(String host, int port) throws BackOfficeException {
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.socket().setTcpNoDelay(true);
+		} catch (IOException e) {
+			throw new BackOfficeException("Cannot connect to back office at "
+					+ host + ":" + port, e);
+		}
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readResponses();
+			}
+		}, "backoffice-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void readResponses() {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		try {
+			while (true) {
+				length.clear();
+				fill(length);
+				ByteBuffer frame = ByteBuffer.allocate(length.getInt(0));
+				fill(frame);
+				frame.flip();
+				Call call = calls.remove(frame.getInt());
+				if (call != null) {
+					call.response = frame;
+					call.done.countDown();
+				}
+			}
+		} catch (IOException e) {
+			closed = e;
+			for (Integer id : calls.keySet()) {
+				Call call = calls.remove(id);
+				if (call != null) {
+					call.failure = e;
+					call.done.countDown();
+				}
+			}
+		}
+	}
+
+	private void fill(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Back office closed the connection");
+			}
+		}
+	}
+
+	/**
+	 * @return a new request frame.
+	 */
+	private BackOfficeProtocol.Frame request(byte code) {
+		return new BackOfficeProtocol.Frame(nextId.incrementAndGet(), code);
+	}
+
+	/**
+	 * Send a request and wait for its response.
+	 * 
+	 * @return the result in the response, after its status.
+	 * @throws BackOfficeException
+	 *             if the connection failed or the request failed on the
+	 *             server.
+	 */
+	private ByteBuffer call(BackOfficeProtocol.Frame request)
+			throws BackOfficeException {
+		ByteBuffer frame = request.finish();
+		int id = frame.getInt(4);
+		Call call = new Call();
+		calls.put(id, call);
+		try {
+			if (closed != null) {
+				throw closed;
+			}
+			synchronized (writeLock) {
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+			call.done.await();
+		} catch (IOException e) {
+			calls.remove(id);
+			throw new BackOfficeException("Lost connection to back office", e);
+		} catch (InterruptedException e) {
+			calls.remove(id);
+			Thread.currentThread().interrupt();
+			throw new BackOfficeException("Interrupted while waiting for the back office", e);
+		}
+		if (call.failure != null) {
+			throw new BackOfficeException("Lost connection to back office",
+					call.failure);
+		}
+		ByteBuffer response = call.response;
+		if (response.get() == BackOfficeProtocol.ERROR) {
+			throw new BackOfficeException(BackOfficeProtocol
+					.getString(response));
+		}
+		return response;
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public Customer registerCustomer(String cusName)
+			throws BackOfficeException {
+		return BackOfficeProtocol.getCustomer(call(request(
+				BackOfficeProtocol.REGISTER_CUSTOMER).putString(cusName)));
+	}
+
+	@Override
+	public List<Customer> registerCustomers(Collection<String> names)
+			throws BackOfficeException {
+		BackOfficeProtocol.Frame request = request(
+				BackOfficeProtocol.REGISTER_CUSTOMERS).putInt(names.size());
+		for (String name : names) {
+			request.putString(name);
+		}
+		return BackOfficeProtocol.getCustomers(call(request));
+	}
+
+	@Override
+	public synchronized KeyPair getSupermarketKeyPair()
+			throws BackOfficeException {
+		if (supermarketKeyPair == null) {
+			ByteBuffer response = call(request(BackOfficeProtocol.GET_KEY_PAIR)
+					.putBytes(readToken()));
+			try {
+				KeyFactory factory = KeyFactory.getInstance("RSA");
+				supermarketKeyPair = new KeyPair(factory
+						.generatePublic(new X509EncodedKeySpec(
+								BackOfficeProtocol.getBytes(response))), factory
+						.generatePrivate(new PKCS8EncodedKeySpec(
+								BackOfficeProtocol.getBytes(response))));
+			} catch (Exception e) {
+				throw new BackOfficeException("Failed to decode supermarket key", e);
+			}
+		}
+		return supermarketKeyPair;
+	}
+
+	/**
+	 * @return the contents of the server's token file.
+	 */
+	private static byte[] readToken() throws BackOfficeException {
+		File file = new File(System.getProperty("backoffice.token",
+				BackOfficeProtocol.DEFAULT_TOKEN_FILE));
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] token = new byte[(int) file.length()];
+				int read = 0;
+				while (read < token.length) {
+					int n = in.read(token, read, token.length - read);
+					if (n < 0) {
+						break;
+					}
+					read += n;
+				}
+				return token;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new BackOfficeException("Cannot read the back office token "
+					+ file, e);
+		}
+	}
+
+	@Override
+	public void issueCard(Customer client) throws BackOfficeException {
+		Customer issued = BackOfficeProtocol.getCustomer(call(request(
+				BackOfficeProtocol.ISSUE_CARD).putInt(client.getID())));
+		client.setCard(new Card(issued.getCardID(), issued.getCredits(), client));
+	}
+
+	@Override
+	public void deleteCard(int cardID) {
+		try {
+			call(request(BackOfficeProtocol.DELETE_CARD).putInt(cardID));
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void deleteCustomer(int customerID) {
+		try {
+			call(request(BackOfficeProtocol.DELETE_CUSTOMER).putInt(customerID));
+		} catch (BackOfficeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getCardID(Customer client) throws BackOfficeException {
+		return call(request(BackOfficeProtocol.GET_CARD_ID).putInt(
+				client.getID())).getInt();
+	}
+
+	@Override
+	public short getCredits(Customer client) throws BackOfficeException {
+		return call(request(BackOfficeProtocol.GET_CREDITS).putInt(
+				client.getID())).getShort();
+	}
+
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		BackOfficeProtocol.Frame request = request(
+				BackOfficeProtocol.RECORD_TRANSACTIONS).putInt(batch.size());
+		for (CreditTransaction t : batch) {
+			request.putTransaction(t);
+		}
+		return call(request).getInt();
+	}
+
+	@Override
+	public Customer getCustomerByID(int custID) throws BackOfficeException {
+		return BackOfficeProtocol.getCustomer(call(request(
+				BackOfficeProtocol.GET_CUSTOMER_BY_ID).putInt(custID)));
+	}
+
+	@Override
+	public Customer getCustomerByName(String name) throws BackOfficeException {
+		ByteBuffer response = call(request(
+				BackOfficeProtocol.GET_CUSTOMER_BY_NAME).putString(name));
+		return response.get() == 0 ? null : BackOfficeProtocol
+				.getCustomer(response);
+	}
+
+	@Override
+	public List<Customer> getCustomersByName(String prefix, int offset,
+			int limit) throws BackOfficeException {
+		return BackOfficeProtocol.getCustomers(call(request(
+				BackOfficeProtocol.GET_CUSTOMERS_BY_NAME).putString(prefix)
+				.putInt(offset).putInt(limit)));
+	}
+
+	@Override
+	public Customer getCustomerByCard(int cardID) throws BackOfficeException {
+		return BackOfficeProtocol.getCustomer(call(request(
+				BackOfficeProtocol.GET_CUSTOMER_BY_CARD).putInt(cardID)));
+	}
+
+	/**
+	 * The customers are read through a cursor, a page at a time, since the
+	 * whole table may not fit in one frame.
+	 */
+	@Override
+	public List<Customer> getCustomers() throws BackOfficeException {
+		List<Customer> all = new ArrayList<Customer>();
+		Iterator<List<Customer>> pages = streamCustomers(null,
+				BackOfficeProtocol.PAGE_SIZE);
+		try {
+			while (pages.hasNext()) {
+				all.addAll(pages.next());
+			}
+		} catch (IllegalStateException e) {
+			throw new BackOfficeException(e.getMessage(), e);
+		}
+		return all;
+	}
+
+	/**
+	 * Pages are fetched from a cursor on the server one at a time, as they
+	 * are needed; the filter runs here. Close the pages to close the cursor
+	 * if they are not read to the end.
+	 */
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException {
+		int cursor = call(
+				request(BackOfficeProtocol.OPEN_CURSOR).putInt(pageSize))
+				.getInt();
+		RemoteCursor source = new RemoteCursor(cursor);
+		return new CustomerPages(source, filter, pageSize, source);
+	}
+
+	@Override
+	public BackOfficeStatistics getStatistics() throws BackOfficeException {
+		return BackOfficeProtocol.getStatistics(call(request(
+				BackOfficeProtocol.GET_STATISTICS)));
+	}
+
+	@Override
+	public void save() throws IOException {
+		try {
+			call(request(BackOfficeProtocol.SAVE));
+		} catch (BackOfficeException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+}
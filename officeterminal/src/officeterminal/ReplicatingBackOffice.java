@@ -0,0 +1,559 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyPair;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.CreditTransaction;
+
+/**
+ * A primary back office that ships its changes to a {@link BackOfficeStandby}
+ * on the same machine. Every change that succeeds is queued in memory; a
+ * shipper thread writes the queue to the mutation log (see
+ * {@link MutationLog}), forces it to disk and streams it to the standby, so
+ * the write path itself never touches the log file or the network.
+ * 
+ * When the standby connects it tells the primary the last record it applied,
+ * and the shipper resumes from there. A log that is started on an existing
+ * back office begins with a copy of every customer. Once the standby has
+ * applied every record and the log has grown past {@link #TRUNCATE_SIZE}, the
+ * log is emptied; the number of its last record is kept in
+ * <code>.base</code> so numbering goes on from there.
+ * 
+ * Changes to one customer are queued in the order the back office made them.
+ * A {@link BackOfficeSimulator} queues them itself, under the lock of the
+ * customer (see {@link MutationListener}); for other back offices changes are
+ * made and queued under a lock stripe of the customer here, and a
+ * registration is queued just after it was made. If the log cannot be
+ * written, replication stops for good and changes are no longer queued.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class ReplicatingBackOffice implements BackOffice {
+	static final long RECONNECT_INTERVAL = 1000;
+	/** Size past which a log the standby has caught up with is emptied */
+	static final long TRUNCATE_SIZE = 16 << 20;
+
+	private BackOffice office;
+	/** The id the back office counts transactions under, 0 if unknown */
+	private int storeId;
+	private int standbyPort;
+	private RandomAccessFile file;
+	private FileChannel log;
+	private File baseFile;
+	/** Sequence number of the last record before the first in the log */
+	private long base;
+	/** Positions of every INDEX_INTERVAL-th record in the log, by sequence */
+	private NavigableMap<Long, Long> index = new TreeMap<Long, Long>();
+	private Queue<MutationLog.Mutation> queue = new ConcurrentLinkedQueue<MutationLog.Mutation>();
+	/**
+	 * Held while a change to a customer is made and queued, unless the back
+	 * office queues its changes itself
+	 */
+	private LockStripes locks;
+	private Thread shipper;
+	private volatile boolean running = true;
+	/** Why the log could not be written, once it could not */
+	private volatile IOException failure;
+
+	/** Sequence number of the last change queued */
+	private AtomicLong submitted;
+	/** Sequence number of the last change written to the log */
+	private long logged;
+	/** Sequence number of the last change the standby applied */
+	private volatile long acknowledged;
+	/** When the standby last had everything */
+	private volatile long caughtUpAt = System.currentTimeMillis();
+
+	private volatile SocketChannel standby;
+	private long sendPosition;
+	private long lastAttempt;
+	private boolean warnedBehind;
+
+	/**
+	 * @param office
+	 *            the back office to replicate
+	 * @param logFile
+	 *            the mutation log
+	 * @param standbyPort
+	 *            the port the standby listens on, on the loopback interface
+	 * @throws BackOfficeException
+	 */
+	ReplicatingBackOffice(BackOffice office, File logFile, int standbyPort)
+			throws BackOfficeException {
+		this.office = office;
+		this.standbyPort = standbyPort;
+		baseFile = new File(logFile.getPath() + ".base");
+		try {
+			if (baseFile.length() >= 8) {
+				RandomAccessFile in = new RandomAccessFile(baseFile, "r");
+				try {
+					base = in.readLong();
+				} finally {
+					in.close();
+				}
+			}
+			file = new RandomAccessFile(logFile, "rw");
+			log = file.getChannel();
+			logged = Math.max(base, MutationLog.recover(log, index));
+		} catch (IOException e) {
+			throw new BackOfficeException("Failed to open mutation log", e);
+		}
+		submitted = new AtomicLong(logged);
+		acknowledged = logged;
+		if (logged == 0) {
+			Iterator<List<Customer>> pages = office.streamCustomers(null, 1000);
+			while (pages.hasNext()) {
+				for (Customer c : pages.next()) {
+					submit(MutationLog.customer(c));
+				}
+			}
+		}
+		if (office instanceof BackOfficeSimulator) {
+			storeId = ((BackOfficeSimulator) office).getStoreId();
+			((BackOfficeSimulator) office)
+					.setMutationListener(new MutationListener() {
+						public void mutated(MutationLog.Mutation mutation) {
+							submit(mutation);
+						}
+					});
+		} else {
+			locks = new LockStripes(64);
+		}
+		shipper = new Thread(new Runnable() {
+			public void run() {
+				ship();
+			}
+		}, "replication-shipper");
+		shipper.setDaemon(true);
+		shipper.start();
+	}
+
+	/**
+	 * Queue a change for the log. Has to be called while the change is made,
+	 * holding the lock of the customer it belongs to. After the log failed
+	 * the change only counts towards the lag.
+	 */
+	private void submit(MutationLog.Mutation mutation) {
+		submitted.incrementAndGet();
+		if (failure != null) {
+			return;
+		}
+		queue.add(mutation);
+		LockSupport.unpark(shipper);
+	}
+
+	private void ship() {
+		while (running) {
+			boolean worked = false;
+			try {
+				MutationLog.Mutation m;
+				while ((m = queue.poll()) != null) {
+					if ((logged + 1) % MutationLog.INDEX_INTERVAL == 0) {
+						index.put(logged + 1, log.position());
+					}
+					ByteBuffer record = m.record(logged + 1);
+					while (record.hasRemaining()) {
+						log.write(record);
+					}
+					logged++;
+					worked = true;
+				}
+				// The standby must never get ahead of what survives a crash
+				// here, or numbers would be handed out twice.
+				if (worked) {
+					log.force(false);
+				}
+				truncate();
+			} catch (IOException e) {
+				System.err.println("Failed to write mutation log, "
+						+ "replication stopped: " + e.getMessage());
+				failure = e;
+				queue.clear();
+				return;
+			}
+			if (standby == null) {
+				connect();
+			}
+			if (standby != null) {
+				try {
+					long end = log.position();
+					if (sendPosition < end) {
+						sendPosition += log.transferTo(sendPosition, end
+								- sendPosition, standby);
+						worked = true;
+					}
+				} catch (IOException e) {
+					System.err.println("Lost standby: " + e.getMessage());
+					disconnect();
+				}
+			}
+			if (!worked) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+			}
+		}
+	}
+
+	/**
+	 * Empty the log once the standby has every record in it and it has grown
+	 * past {@link #TRUNCATE_SIZE}. The last number is written down first, so
+	 * that a crash in between leaves records that are merely skipped.
+	 */
+	private void truncate() throws IOException {
+		long end = log.position();
+		if (end < TRUNCATE_SIZE || standby == null || sendPosition < end
+				|| acknowledged < logged) {
+			return;
+		}
+		RandomAccessFile out = new RandomAccessFile(baseFile, "rw");
+		try {
+			out.writeLong(logged);
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		base = logged;
+		log.truncate(0);
+		log.position(0);
+		log.force(false);
+		sendPosition = 0;
+		index.clear();
+	}
+
+	/**
+	 * Connect to the standby, at most once every RECONNECT_INTERVAL, and find
+	 * where in the log it has to resume. A standby that has not applied the
+	 * records before the log was last emptied cannot be brought up to date,
+	 * and is turned away.
+	 */
+	private void connect() {
+		long now = System.currentTimeMillis();
+		if (now - lastAttempt < RECONNECT_INTERVAL) {
+			return;
+		}
+		lastAttempt = now;
+		try {
+			final SocketChannel channel = SocketChannel
+					.open(new InetSocketAddress(InetAddress.getByName(null),
+							standbyPort));
+			channel.socket().setTcpNoDelay(true);
+			ByteBuffer applied = ByteBuffer.allocate(8);
+			while (applied.hasRemaining()) {
+				if (channel.read(applied) < 0) {
+					throw new IOException("Standby closed the connection");
+				}
+			}
+			if (applied.getLong(0) < base) {
+				if (!warnedBehind) {
+					System.err.println("Standby is at record "
+							+ applied.getLong(0) + " but the log starts after "
+							+ base + "; copy the files of the primary to it");
+					warnedBehind = true;
+				}
+				channel.close();
+				return;
+			}
+			acknowledge(applied.getLong(0));
+			sendPosition = MutationLog.positionAfter(log, index, acknowledged);
+			standby = channel;
+			Thread acks = new Thread(new Runnable() {
+				public void run() {
+					readAcknowledgements(channel);
+				}
+			}, "replication-acks");
+			acks.setDaemon(true);
+			acks.start();
+			System.out.println("Standby connected at record " + acknowledged);
+		} catch (IOException e) {
+			// No standby yet; try again later.
+		}
+	}
+
+	private void disconnect() {
+		try {
+			standby.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		standby = null;
+	}
+
+	private void readAcknowledgements(SocketChannel channel) {
+		ByteBuffer applied = ByteBuffer.allocate(8);
+		try {
+			while (true) {
+				applied.clear();
+				while (applied.hasRemaining()) {
+					if (channel.read(applied) < 0) {
+						return;
+					}
+				}
+				acknowledge(applied.getLong(0));
+			}
+		} catch (IOException e) {
+			// The shipper notices as well and reconnects.
+		}
+	}
+
+	private void acknowledge(long sequence) {
+		acknowledged = sequence;
+		if (sequence >= submitted.get()) {
+			caughtUpAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return the number of changes the standby has not applied yet.
+	 */
+	long getLag() {
+		return Math.max(0, submitted.get() - acknowledged);
+	}
+
+	/**
+	 * @return the milliseconds since the standby last had every change, or 0
+	 *         if it has them all now.
+	 */
+	long getLagMillis() {
+		if (getLag() == 0) {
+			return 0;
+		}
+		return System.currentTimeMillis() - caughtUpAt;
+	}
+
+	/**
+	 * @return the sequence number of the last change the standby applied.
+	 */
+	long getAcknowledgedSequence() {
+		return acknowledged;
+	}
+
+	/**
+	 * @return whether changes still reach the mutation log.
+	 */
+	boolean isReplicating() {
+		return failure == null;
+	}
+
+	/**
+	 * @return whether a standby is connected.
+	 */
+	boolean isStandbyConnected() {
+		return standby != null;
+	}
+
+	/**
+	 * @return how far behind the standby is, for the dashboard.
+	 */
+	String describe() {
+		if (!isReplicating()) {
+			return "Replication stopped: " + failure.getMessage();
+		}
+		long lag = getLag();
+		return "Standby " + (isStandbyConnected() ? "connected" : "not connected")
+				+ " at record " + getAcknowledgedSequence() + ", " + lag
+				+ " changes behind"
+				+ (lag == 0 ? "" : " for " + getLagMillis() + " ms");
+	}
+
+	/**
+	 * Stop shipping. Changes that were not shipped yet are shipped after the
+	 * next start, as long as they reached the log.
+	 */
+	void close() throws IOException {
+		running = false;
+		LockSupport.unpark(shipper);
+		try {
+			shipper.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (standby != null) {
+			disconnect();
+		}
+		log.force(false);
+		file.close();
+	}
+
+	/**
+	 * @return the lock that orders the changes to a customer, locked, or
+	 *         <code>null</code> if the back office queues its changes itself.
+	 */
+	private ReentrantLock lock(int customerId) {
+		if (locks == null) {
+			return null;
+		}
+		ReentrantLock lock = locks.get(customerId);
+		lock.lock();
+		return lock;
+	}
+
+	private static void unlock(ReentrantLock lock) {
+		if (lock != null) {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queue a change that the back office does not queue itself.
+	 */
+	private void record(MutationLog.Mutation mutation) {
+		if (locks != null) {
+			submit(mutation);
+		}
+	}
+
+	@Override
+	public Customer registerCustomer(String cusName)
+			throws BackOfficeException {
+		Customer c = office.registerCustomer(cusName);
+		ReentrantLock lock = lock(c.getID());
+		try {
+			record(MutationLog.customer(c));
+		} finally {
+			unlock(lock);
+		}
+		return c;
+	}
+
+	@Override
+	public List<Customer> registerCustomers(Collection<String> names)
+			throws BackOfficeException {
+		List<Customer> list = office.registerCustomers(names);
+		for (Customer c : list) {
+			ReentrantLock lock = lock(c.getID());
+			try {
+				record(MutationLog.customer(c));
+			} finally {
+				unlock(lock);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public KeyPair getSupermarketKeyPair() throws BackOfficeException {
+		return office.getSupermarketKeyPair();
+	}
+
+	@Override
+	public void issueCard(Customer client) throws BackOfficeException {
+		ReentrantLock lock = lock(client.getID());
+		try {
+			office.issueCard(client);
+			record(MutationLog.card(client.getCardID(), client.getID()));
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public void deleteCard(int cardID) {
+		ReentrantLock lock = null;
+		if (locks != null) {
+			try {
+				lock = lock(office.getCustomerByCard(cardID).getID());
+			} catch (BackOfficeException e) {
+				// No owner to order by; the card is unknown anyway.
+			}
+		}
+		try {
+			office.deleteCard(cardID);
+			record(MutationLog.deletion(MutationLog.DELETE_CARD, cardID));
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public void deleteCustomer(int customerID) {
+		ReentrantLock lock = lock(customerID);
+		try {
+			office.deleteCustomer(customerID);
+			record(MutationLog.deletion(MutationLog.DELETE_CUSTOMER,
+					customerID));
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public int getCardID(Customer client) throws BackOfficeException {
+		return office.getCardID(client);
+	}
+
+	@Override
+	public short getCredits(Customer client) throws BackOfficeException {
+		return office.getCredits(client);
+	}
+
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		// The standby drops transactions it has seen, in any order.
+		int recorded = office.recordTransactions(batch);
+		if (recorded > 0) {
+			record(MutationLog.transactions(batch, storeId));
+		}
+		return recorded;
+	}
+
+	@Override
+	public Customer getCustomerByID(int custID) throws BackOfficeException {
+		return office.getCustomerByID(custID);
+	}
+
+	@Override
+	public Customer getCustomerByName(String name) throws BackOfficeException {
+		return office.getCustomerByName(name);
+	}
+
+	@Override
+	public List<Customer> getCustomersByName(String prefix, int offset,
+			int limit) throws BackOfficeException {
+		return office.getCustomersByName(prefix, offset, limit);
+	}
+
+	@Override
+	public Customer getCustomerByCard(int cardID) throws BackOfficeException {
+		return office.getCustomerByCard(cardID);
+	}
+
+	@Override
+	public List<Customer> getCustomers() throws BackOfficeException {
+		return office.getCustomers();
+	}
+
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException {
+		return office.streamCustomers(filter, pageSize);
+	}
+
+	@Override
+	public BackOfficeStatistics getStatistics() throws BackOfficeException {
+		return office.getStatistics();
+	}
+
+	@Override
+	public void save() throws IOException {
+		office.save();
+	}
+}
@@ -0,0 +1,621 @@
+package officeterminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.CreditTransaction;
+
+/**
+ * A back office partitioned over several shards, each a
+ * {@link BackOfficeSimulator} with its own file, ledger and locks. A customer
+ * and all of its cards live on the shard that the customer id hashes to on a
+ * consistent-hash ring; a directory from card id to customer id routes
+ * requests by card. Ids are handed out here, so they stay unique over all
+ * shards.
+ * 
+ * Requests that need every shard run on all of them in parallel. Adding a
+ * shard moves only the customers that now hash to it; the same pass, run on
+ * opening, also repairs a move that was interrupted.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class ShardedBackOffice implements BackOffice {
+	/** Points on the ring per shard; more points spread the load more evenly. */
+	static final int VIRTUAL_NODES = 64;
+	/**
+	 * Sets the high half of the key of every ring point, where the key of a
+	 * customer id has only zeros or ones, so that no point can share a hash
+	 * with a customer.
+	 */
+	private static final long NODE_SALT = 0x9E3779B900000000L;
+
+	private String keyPath;
+	private File directory;
+	private List<BackOfficeSimulator> shards = new ArrayList<BackOfficeSimulator>();
+	private TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+	private Map<Integer, Integer> cardOwners = new ConcurrentHashMap<Integer, Integer>();
+	private IdAllocator customerIds;
+	private IdAllocator cardIds;
+	private ExecutorService executor;
+
+	/** Held shared by every request, and exclusively while shards change. */
+	private ReadWriteLock topology = new ReentrantReadWriteLock();
+
+	/**
+	 * Open the shards in <code>directory</code>, creating them as needed so
+	 * there are at least <code>count</code>.
+	 * 
+	 * @param keyPath
+	 *            directory holding the supermarket key pair
+	 * @throws BackOfficeException
+	 */
+	ShardedBackOffice(String keyPath, String directory, int count)
+			throws BackOfficeException {
+		this.keyPath = keyPath;
+		this.directory = new File(directory);
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new BackOfficeException("Cannot create shard directory "
+					+ directory);
+		}
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "shard-worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		while (shards.size() < count || shardFile(shards.size()).exists()) {
+			openShard();
+		}
+		int lastCustomer = 0;
+		int lastCard = 0;
+		for (BackOfficeSimulator shard : shards) {
+			lastCustomer = Math.max(lastCustomer, shard.lastCustomerId());
+			lastCard = Math.max(lastCard, shard.lastCardId());
+			cardOwners.putAll(shard.cardOwners());
+		}
+		customerIds = new IdAllocator(lastCustomer);
+		cardIds = new IdAllocator(lastCard);
+		rebalance();
+	}
+
+	private File shardFile(int shard) {
+		return new File(directory, "shard-" + shard + ".db");
+	}
+
+	private void openShard() throws BackOfficeException {
+		int shard = shards.size();
+		shards.add(new BackOfficeSimulator(keyPath, shardFile(shard).getPath(),
+				new File(directory, "shard-" + shard + ".ledger").getPath()));
+		for (int v = 0; v < VIRTUAL_NODES; v++) {
+			ring.put(hash(NODE_SALT ^ ((long) shard << 32 | v)), shard);
+		}
+	}
+
+	/**
+	 * Spread the bits of a key over an int (the finalizer of MurmurHash3,
+	 * which maps different keys to different longs).
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * @return the index of the shard that holds customer <code>customerId</code>.
+	 */
+	private int shardIndex(int customerId) {
+		Map.Entry<Integer, Integer> point = ring.ceilingEntry(hash(customerId));
+		return point == null ? ring.firstEntry().getValue() : point.getValue();
+	}
+
+	private BackOfficeSimulator shardOf(int customerId) {
+		return shards.get(shardIndex(customerId));
+	}
+
+	private BackOfficeSimulator shardOfCard(int cardID)
+			throws BackOfficeException {
+		Integer owner = cardOwners.get(cardID);
+		if (owner == null) {
+			throw new BackOfficeException("Unknown card.");
+		}
+		return shardOf(owner);
+	}
+
+	/**
+	 * @return the number of shards.
+	 */
+	int getShardCount() {
+		topology.readLock().lock();
+		try {
+			return shards.size();
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add a shard and move the customers that now hash to it.
+	 * 
+	 * @throws BackOfficeException
+	 */
+	void addShard() throws BackOfficeException {
+		topology.writeLock().lock();
+		try {
+			openShard();
+			rebalance();
+		} finally {
+			topology.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Move every customer that is not on its own shard, together with its
+	 * cards and their balance counters. A customer is first saved on the new shard and only then removed
+	 * from the old one, so an interrupted move leaves a copy behind rather
+	 * than nothing; the next rebalance cleans that up.
+	 */
+	private void rebalance() throws BackOfficeException {
+		for (int i = 0; i < shards.size(); i++) {
+			final int source = i;
+			CustomerFilter misplaced = new CustomerFilter() {
+				public boolean accept(Customer c) {
+					return shardIndex(c.getID()) != source;
+				}
+			};
+			List<Customer> customers = new ArrayList<Customer>();
+			List<Card> cards = new ArrayList<Card>();
+			shards.get(i).collectCustomers(misplaced, customers, cards);
+			if (customers.isEmpty() && cards.isEmpty()) {
+				continue;
+			}
+			Map<Integer, List<Customer>> customersByShard = new TreeMap<Integer, List<Customer>>();
+			Map<Integer, List<Card>> cardsByShard = new TreeMap<Integer, List<Card>>();
+			for (Customer c : customers) {
+				group(customersByShard, shardIndex(c.getID()), c);
+			}
+			for (Card card : cards) {
+				group(cardsByShard, shardIndex(card.getCustomerID()), card);
+			}
+			Set<Integer> targets = new TreeSet<Integer>(customersByShard
+					.keySet());
+			targets.addAll(cardsByShard.keySet());
+			for (int target : targets) {
+				List<Card> moved = part(cardsByShard, target);
+				shards.get(target).importCustomers(
+						part(customersByShard, target), moved,
+						shards.get(i).getCreditCounters(moved));
+			}
+			shards.get(i).dropCustomers(customers, cards);
+			System.out.println("Moved " + customers.size() + " customers and "
+					+ cards.size() + " cards off shard " + i);
+		}
+	}
+
+	private static <T> void group(Map<Integer, List<T>> groups, int key, T value) {
+		List<T> group = groups.get(key);
+		if (group == null) {
+			group = new ArrayList<T>();
+			groups.put(key, group);
+		}
+		group.add(value);
+	}
+
+	private static <T> List<T> part(Map<Integer, List<T>> groups, int key) {
+		List<T> group = groups.get(key);
+		return group == null ? new ArrayList<T>() : group;
+	}
+
+	/**
+	 * Run a request on every shard in parallel.
+	 * 
+	 * @return the result of every shard, in shard order.
+	 */
+	private <T> List<T> scatter(final ShardCall<T> request)
+			throws BackOfficeException {
+		List<Future<T>> futures = new ArrayList<Future<T>>(shards.size());
+		for (int i = 0; i < shards.size(); i++) {
+			final int index = i;
+			final BackOfficeSimulator shard = shards.get(i);
+			futures.add(executor.submit(new Callable<T>() {
+				public T call() throws Exception {
+					return request.call(index, shard);
+				}
+			}));
+		}
+		List<T> results = new ArrayList<T>(futures.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BackOfficeException("Interrupted while waiting for shards", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BackOfficeException) {
+				throw (BackOfficeException) e.getCause();
+			}
+			throw new BackOfficeException("Shard request failed", e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * A request for one shard.
+	 */
+	private interface ShardCall<T> {
+		T call(int index, BackOfficeSimulator shard) throws Exception;
+	}
+
+	@Override
+	public Customer registerCustomer(String cusName)
+			throws BackOfficeException {
+		return registerCustomers(Collections.singletonList(cusName)).get(0);
+	}
+
+	/**
+	 * Ids are reserved as one block, and every shard registers its part of
+	 * the customers at the same time.
+	 */
+	@Override
+	public List<Customer> registerCustomers(Collection<String> names)
+			throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			List<Customer> list = new ArrayList<Customer>(names.size());
+			if (names.isEmpty()) {
+				return list;
+			}
+			int customerId = customerIds.nextBlock(names.size());
+			int cardId = cardIds.nextBlock(names.size());
+			final Map<Integer, List<Customer>> customersByShard = new TreeMap<Integer, List<Customer>>();
+			final Map<Integer, List<Card>> cardsByShard = new TreeMap<Integer, List<Card>>();
+			for (String name : names) {
+				Customer c = new Customer(name, customerId++);
+				Card card = new Card(cardId++, (short) 0, c);
+				c.setCard(card);
+				list.add(c);
+				group(customersByShard, shardIndex(c.getID()), c);
+				group(cardsByShard, shardIndex(c.getID()), card);
+			}
+			scatter(new ShardCall<Void>() {
+				public Void call(int index, BackOfficeSimulator shard) throws Exception {
+					if (customersByShard.containsKey(index)) {
+						shard.importCustomers(customersByShard.get(index),
+								cardsByShard.get(index));
+					}
+					return null;
+				}
+			});
+			for (Customer c : list) {
+				cardOwners.put(c.getCardID(), c.getID());
+			}
+			return list;
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public KeyPair getSupermarketKeyPair() throws BackOfficeException {
+		return shards.get(0).getSupermarketKeyPair();
+	}
+
+	@Override
+	public void issueCard(Customer client) throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			int cardId = cardIds.next();
+			shardOf(client.getID()).issueCard(client, cardId);
+			cardOwners.put(cardId, client.getID());
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteCard(int cardID) {
+		topology.readLock().lock();
+		try {
+			shardOfCard(cardID).deleteCard(cardID);
+			cardOwners.remove(cardID);
+		} catch (BackOfficeException e) {
+			System.err.println("Cannot remove non-existing card with id: "
+					+ cardID);
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteCustomer(int customerID) {
+		topology.readLock().lock();
+		try {
+			shardOf(customerID).deleteCustomer(customerID);
+			// Deleting a customer is rare, so a pass over the directory will do.
+			cardOwners.values().removeAll(Collections.singleton(customerID));
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int getCardID(Customer client) throws BackOfficeException {
+		return client.getCardID();
+	}
+
+	@Override
+	public short getCredits(Customer client) throws BackOfficeException {
+		return client.getCredits();
+	}
+
+	/**
+	 * Every shard records its part of the batch in its own ledger.
+	 */
+	@Override
+	public int recordTransactions(List<CreditTransaction> batch)
+			throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			final Map<Integer, List<CreditTransaction>> byShard = new TreeMap<Integer, List<CreditTransaction>>();
+			for (CreditTransaction t : batch) {
+				Integer owner = cardOwners.get(t.getCardId());
+				if (owner == null) {
+					System.err.println("Transaction for unknown card: " + t);
+					continue;
+				}
+				group(byShard, shardIndex(owner), t);
+			}
+			int recorded = 0;
+			for (int count : scatter(new ShardCall<Integer>() {
+				public Integer call(int index, BackOfficeSimulator shard) throws Exception {
+					List<CreditTransaction> part = byShard.get(index);
+					return part == null ? 0 : shard.recordTransactions(part);
+				}
+			})) {
+				recorded += count;
+			}
+			return recorded;
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Customer getCustomerByID(int custID) throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			return shardOf(custID).getCustomerByID(custID);
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Of all customers with this name, the one with the lowest id.
+	 */
+	@Override
+	public Customer getCustomerByName(final String name)
+			throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			Customer first = null;
+			for (Customer c : scatter(new ShardCall<Customer>() {
+				public Customer call(int index, BackOfficeSimulator shard)
+						throws Exception {
+					return shard.getCustomerByName(name);
+				}
+			})) {
+				if (c != null && (first == null || c.getID() < first.getID())) {
+					first = c;
+				}
+			}
+			return first;
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Every shard returns its first <code>offset + limit</code> matches, which
+	 * are merged in name order.
+	 */
+	@Override
+	public List<Customer> getCustomersByName(final String prefix,
+			int offset, int limit) throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			final int wanted = offset + limit;
+			List<Customer> merged = new ArrayList<Customer>();
+			for (List<Customer> part : scatter(new ShardCall<List<Customer>>() {
+				public List<Customer> call(int index, BackOfficeSimulator shard)
+						throws Exception {
+					return shard.getCustomersByName(prefix, 0, wanted);
+				}
+			})) {
+				merged.addAll(part);
+			}
+			Collections.sort(merged, new Comparator<Customer>() {
+				public int compare(Customer a, Customer b) {
+					int byName = a.getName().compareTo(b.getName());
+					if (byName != 0) {
+						return byName;
+					}
+					return a.getID() < b.getID() ? -1 : (a.getID() == b
+							.getID() ? 0 : 1);
+				}
+			});
+			if (offset >= merged.size()) {
+				return new ArrayList<Customer>();
+			}
+			return new ArrayList<Customer>(merged.subList(offset, Math.min(
+					merged.size(), wanted)));
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Customer getCustomerByCard(int cardID) throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			return shardOfCard(cardID).getCustomerByCard(cardID);
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Customer> getCustomers() throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			List<Customer> list = new ArrayList<Customer>();
+			for (List<Customer> part : scatter(new ShardCall<List<Customer>>() {
+				public List<Customer> call(int index, BackOfficeSimulator shard)
+						throws Exception {
+					return shard.getCustomers();
+				}
+			})) {
+				list.addAll(part);
+			}
+			return list;
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The customers of the shards one after the other, read a page at a time
+	 * from the shard being read.
+	 */
+	private static final class ShardCursor implements Iterator<Customer>,
+			Closeable {
+		private List<BackOfficeSimulator> shards;
+		private int pageSize;
+		private int shard = -1;
+		private Iterator<List<Customer>> pages = new ArrayList<List<Customer>>()
+				.iterator();
+		private Iterator<Customer> current = new ArrayList<Customer>()
+				.iterator();
+
+		ShardCursor(List<BackOfficeSimulator> shards, int pageSize) {
+			this.shards = shards;
+			this.pageSize = pageSize;
+		}
+
+		public boolean hasNext() {
+			while (!current.hasNext()) {
+				if (pages.hasNext()) {
+					current = pages.next().iterator();
+				} else if (shard + 1 < shards.size()) {
+					try {
+						pages = shards.get(++shard).streamCustomers(null,
+								pageSize);
+					} catch (BackOfficeException e) {
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+				} else {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public Customer next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Release the snapshot of the shard being read.
+		 */
+		public void close() {
+			CustomerPages.close(pages);
+		}
+	}
+
+	/**
+	 * Streams the shards one after the other, a page at a time.
+	 */
+	@Override
+	public Iterator<List<Customer>> streamCustomers(CustomerFilter filter,
+			int pageSize) throws BackOfficeException {
+		List<BackOfficeSimulator> snapshot;
+		topology.readLock().lock();
+		try {
+			snapshot = new ArrayList<BackOfficeSimulator>(shards);
+		} finally {
+			topology.readLock().unlock();
+		}
+		ShardCursor source = new ShardCursor(snapshot, pageSize);
+		return new CustomerPages(source, filter, pageSize, source);
+	}
+
+	/**
+	 * Adds up the statistics every shard keeps.
+	 */
+	@Override
+	public BackOfficeStatistics getStatistics() throws BackOfficeException {
+		topology.readLock().lock();
+		try {
+			return LiveStatistics.combine(scatter(new ShardCall<BackOfficeStatistics>() {
+				public BackOfficeStatistics call(int index,
+						BackOfficeSimulator shard) throws Exception {
+					return shard.getStatistics();
+				}
+			}));
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void save() throws IOException {
+		topology.readLock().lock();
+		try {
+			scatter(new ShardCall<Void>() {
+				public Void call(int index, BackOfficeSimulator shard) throws Exception {
+					shard.save();
+					return null;
+				}
+			});
+		} catch (BackOfficeException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			topology.readLock().unlock();
+		}
+	}
+}
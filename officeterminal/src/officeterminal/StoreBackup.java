@@ -0,0 +1,477 @@
+package officeterminal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.security.Security;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Backups of a simulator in a directory of their own: a full backup, followed
+ * by incremental ones that only hold the customers and cards changed since
+ * the backup before (see {@link BackOfficeSimulator#writeBackup}). The first
+ * backup a simulator takes after it was opened is always a full one, as are
+ * backups after one that failed. Use one directory per store.
+ *
+ * <pre>
+ * backup := magic(4) version(1) kind(1) sequence(8) time(8) deflate(records)
+ * </pre>
+ *
+ * The records are a {@link BackOfficeCodec} file without index, compressed
+ * as they are written. A backup is written to a temporary file and renamed
+ * once complete. Sequence numbers start at 1 and have no gaps.
+ *
+ * A store is restored to a point in time from the last full backup taken
+ * before it, and the incremental backups after that one up to that time.
+ * Records are written as they are at the moment they are reached, so a
+ * change made while a backup is written may or may not be in it; it is in
+ * the next one either way. The transaction ledger is not part of the
+ * backups.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class StoreBackup {
+	static final int MAGIC = 0x4C43424B; // "LCBK"
+	static final byte VERSION = 1;
+	static final byte FULL = 1;
+	static final byte INCREMENTAL = 2;
+
+	/** Compression level, traded for speed since deltas are small anyway */
+	static final int LEVEL = Deflater.BEST_SPEED;
+
+	private static final int HEADER = 22;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String SUFFIX = ".backup";
+
+	/**
+	 * What one backup or restore did.
+	 */
+	static final class Report {
+		final long sequence;
+		final byte kind;
+		/** Bytes of records, before compression */
+		final long bytes;
+		/** Bytes on disk */
+		final long compressed;
+		final long nanos;
+
+		Report(long sequence, byte kind, long bytes, long compressed,
+				long nanos) {
+			this.sequence = sequence;
+			this.kind = kind;
+			this.bytes = bytes;
+			this.compressed = compressed;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return the records written or read per second, in MB.
+		 */
+		double throughput() {
+			return bytes / 1e6 / Math.max(nanos, 1) * 1e9;
+		}
+
+		public String toString() {
+			return String.format(
+					"%s %d: %d kB in %d ms (%.1f MB/s), %d kB on disk", kind == FULL ? "full backup" : "incremental backup",
+					sequence, bytes / 1024, nanos / 1000000, throughput(),
+					compressed / 1024);
+		}
+	}
+
+	/**
+	 * The header of a backup file.
+	 */
+	private static final class Backup {
+		final File file;
+		final byte kind;
+		final long sequence;
+		final long time;
+
+		Backup(File file, byte kind, long sequence, long time) {
+			this.file = file;
+			this.kind = kind;
+			this.sequence = sequence;
+			this.time = time;
+		}
+	}
+
+	private BackOfficeSimulator office;
+	private File directory;
+	private long sequence;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param office
+	 *            the store to back up
+	 * @param directory
+	 *            where the backups go, created if needed
+	 * @throws BackOfficeException
+	 */
+	StoreBackup(BackOfficeSimulator office, File directory)
+			throws BackOfficeException {
+		this.office = office;
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new BackOfficeException("Cannot create " + directory);
+		}
+		try {
+			List<Backup> backups = list(directory);
+			sequence = backups.isEmpty() ? 0 : backups.get(
+					backups.size() - 1).sequence;
+		} catch (IOException e) {
+			throw new BackOfficeException("Cannot read backups in "
+					+ directory, e);
+		}
+	}
+
+	/**
+	 * Write a backup of the changes since the last one, or a full backup if
+	 * <code>full</code> is set or the changes are not known.
+	 *
+	 * @throws BackOfficeException
+	 */
+	synchronized Report backup(boolean full) throws BackOfficeException {
+		long start = System.nanoTime();
+		byte kind = full || !office.tracksChanges() ? FULL : INCREMENTAL;
+		long next = sequence + 1;
+		File file = new File(directory, String.format("%010d%s", next,
+				SUFFIX));
+		File tmp = new File(directory, file.getName() + ".tmp");
+		Deflater deflater = new Deflater(LEVEL);
+		boolean done = false;
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			long bytes;
+			try {
+				DataOutputStream header = new DataOutputStream(fos);
+				header.writeInt(MAGIC);
+				header.writeByte(VERSION);
+				header.writeByte(kind);
+				header.writeLong(next);
+				header.writeLong(System.currentTimeMillis());
+				header.flush();
+				DeflaterOutputStream zip = new DeflaterOutputStream(fos,
+						deflater, BUFFER_SIZE);
+				bytes = office.writeBackup(Channels.newChannel(zip),
+						kind == FULL);
+				zip.finish();
+				fos.getChannel().force(true);
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not rename " + tmp);
+			}
+			done = true;
+			sequence = next;
+			return new Report(next, kind, bytes, file.length(),
+					System.nanoTime() - start);
+		} catch (IOException e) {
+			throw new BackOfficeException("Backup failed", e);
+		} finally {
+			deflater.end();
+			if (!done) {
+				office.forgetBackup();
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Take a backup every <code>interval</code> seconds until the program
+	 * ends, printing what each one did.
+	 */
+	synchronized void schedule(long interval) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "backup");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					System.out.println(backup(false));
+				} catch (BackOfficeException e) {
+					System.err.println(e.getMessage() + ": "
+							+ e.getCause());
+				}
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the headers of the backups in <code>directory</code>, by
+	 *         sequence number.
+	 */
+	private static List<Backup> list(File directory) throws IOException {
+		List<Backup> backups = new ArrayList<Backup>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return backups;
+		}
+		List<File> names = new ArrayList<File>();
+		for (File f : files) {
+			if (f.getName().endsWith(SUFFIX)) {
+				names.add(f);
+			}
+		}
+		Collections.sort(names);
+		for (File f : names) {
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException(f + " is not a backup");
+				}
+				byte version = in.readByte();
+				if (version != VERSION) {
+					throw new IOException("Unsupported backup version "
+							+ version + " in " + f);
+				}
+				byte kind = in.readByte();
+				backups.add(new Backup(f, kind, in.readLong(), in.readLong()));
+			} finally {
+				in.close();
+			}
+		}
+		return backups;
+	}
+
+	/**
+	 * A customer record: the name and the current card.
+	 */
+	private static final class Person {
+		final String name;
+		final int cardId;
+
+		Person(String name, int cardId) {
+			this.name = name;
+			this.cardId = cardId;
+		}
+	}
+
+	/**
+	 * The state of a store while backups are applied to it, by id.
+	 */
+	private static final class Restore {
+		Map<Integer, Person> customers = new HashMap<Integer, Person>();
+		/** Former customers that may still own a card */
+		Map<Integer, Person> detached = new HashMap<Integer, Person>();
+		/** Cards: owner and credits */
+		Map<Integer, int[]> cards = new HashMap<Integer, int[]>();
+		int lastCustomerId;
+		int lastCardId;
+		long bytes;
+
+		void apply(Backup backup) throws IOException {
+			FileInputStream fis = new FileInputStream(backup.file);
+			Inflater inflater = new Inflater();
+			try {
+				fis.getChannel().position(HEADER);
+				InflaterInputStream zip = new InflaterInputStream(fis,
+						inflater, BUFFER_SIZE);
+				BackOfficeCodec.Reader in = new BackOfficeCodec.Reader(
+						Channels.newChannel(zip));
+				if (backup.kind == FULL) {
+					customers.clear();
+					detached.clear();
+					cards.clear();
+				}
+				lastCustomerId = Math.max(lastCustomerId, in.lastCustomerId());
+				lastCardId = Math.max(lastCardId, in.lastCardId());
+				byte type;
+				while ((type = in.next()) != BackOfficeCodec.END) {
+					if (type == BackOfficeCodec.CUSTOMER) {
+						customers.put(in.id(), new Person(in.name(), in.link()));
+					} else if (type == BackOfficeCodec.DETACHED) {
+						detached.put(in.id(), new Person(in.name(), in.link()));
+					} else if (type == BackOfficeCodec.CARD) {
+						cards.put(in.id(),
+								new int[] { in.link(), in.credits() });
+					} else if (in.link() == BackOfficeCodec.CUSTOMER) {
+						Person former = customers.remove(in.id());
+						if (former != null) {
+							detached.put(in.id(), former);
+						}
+					} else {
+						cards.remove(in.id());
+					}
+				}
+				bytes += in.offset() + 1;
+			} finally {
+				inflater.end();
+				fis.close();
+			}
+		}
+
+		/**
+		 * Write the store as a {@link BackOfficeCodec} file.
+		 */
+		void write(File target) throws IOException {
+			File tmp = new File(target.getPath() + ".tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				BackOfficeCodec.Writer out = new BackOfficeCodec.Writer(fos
+						.getChannel(), lastCustomerId, lastCardId);
+				for (Map.Entry<Integer, Person> e : customers.entrySet()) {
+					out.writeCustomer(e.getKey(), e.getValue().cardId, e
+							.getValue().name);
+				}
+				Set<Integer> written = new HashSet<Integer>();
+				for (Map.Entry<Integer, int[]> e : cards.entrySet()) {
+					int owner = e.getValue()[0];
+					if (!customers.containsKey(owner) && written.add(owner)) {
+						Person former = detached.get(owner);
+						if (former == null) {
+							throw new IOException("Card " + e.getKey()
+									+ " refers to unknown customer " + owner);
+						}
+						out.writeDetached(owner, former.cardId, former.name);
+					}
+					out.writeCard(e.getKey(), owner, (short) e.getValue()[1]);
+				}
+				out.finish();
+				fos.getChannel().force(true);
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(target)) {
+				throw new IOException("Could not replace " + target);
+			}
+			// The journals of the store replaced hold changes made after it.
+			File[] siblings = target.getAbsoluteFile().getParentFile()
+					.listFiles();
+			for (File f : siblings == null ? new File[0] : siblings) {
+				if (f.getName().startsWith(target.getName() + ".journal")) {
+					f.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuild a store file from the backups in <code>directory</code>, as it
+	 * was at <code>time</code>.
+	 *
+	 * @param time
+	 *            the point in time, in milliseconds since the epoch
+	 * @param target
+	 *            the store file to write, such as <code>backoffice.db</code>
+	 * @return what was read, with the sequence number of the last backup
+	 *         applied.
+	 * @throws BackOfficeException
+	 */
+	static Report restore(File directory, long time, File target)
+			throws BackOfficeException {
+		long start = System.nanoTime();
+		try {
+			List<Backup> backups = list(directory);
+			int base = -1;
+			for (int i = 0; i < backups.size(); i++) {
+				Backup b = backups.get(i);
+				if (b.time <= time && b.kind == FULL) {
+					base = i;
+				}
+			}
+			if (base < 0) {
+				throw new BackOfficeException("No full backup before "
+						+ new Date(time));
+			}
+			Restore restore = new Restore();
+			long compressed = 0;
+			Backup last = backups.get(base);
+			restore.apply(last);
+			compressed += last.file.length();
+			for (int i = base + 1; i < backups.size(); i++) {
+				Backup b = backups.get(i);
+				if (b.time > time || b.kind == FULL) {
+					break;
+				}
+				if (b.sequence != last.sequence + 1) {
+					throw new BackOfficeException("Backup " + (last.sequence + 1)
+							+ " is missing");
+				}
+				restore.apply(b);
+				compressed += b.file.length();
+				last = b;
+			}
+			restore.write(target);
+			return new Report(last.sequence, last.kind, restore.bytes,
+					compressed, System.nanoTime() - start);
+		} catch (IOException e) {
+			throw new BackOfficeException("Restore failed", e);
+		}
+	}
+
+	/**
+	 * Back up the simulator in the current directory, which is always a full
+	 * backup from a program of its own, or restore it.
+	 *
+	 * @param args
+	 *            <code>backup &lt;directory&gt;</code>, or
+	 *            <code>restore &lt;directory&gt; &lt;file&gt; [yyyy-MM-dd'T'HH:mm:ss]</code>
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2 || !(args[0].equals("backup") && args.length == 2)
+				&& !(args[0].equals("restore") && args.length >= 3)) {
+			System.err.println("Usage: StoreBackup backup <directory>");
+			System.err.println("       StoreBackup restore <directory> <file> "
+					+ "[yyyy-MM-dd'T'HH:mm:ss]");
+			return;
+		}
+		try {
+			if (args[0].equals("backup")) {
+				Security.addProvider(new BouncyCastleProvider());
+				StoreBackup backup = new StoreBackup(new BackOfficeSimulator(
+						"./keys/"), new File(args[1]));
+				System.out.println(backup.backup(true));
+			} else {
+				long time = args.length > 3 ? new SimpleDateFormat(
+						"yyyy-MM-dd'T'HH:mm:ss").parse(args[3]).getTime()
+						: Long.MAX_VALUE;
+				Report report = restore(new File(args[1]), time, new File(
+						args[2]));
+				System.out.println(String.format(
+						"Restored up to backup %d: %d kB in %d ms (%.1f MB/s)",
+						report.sequence, report.bytes / 1024,
+						report.nanos / 1000000, report.throughput()));
+			}
+		} catch (ParseException e) {
+			System.err.println("Invalid time: " + args[3]);
+		} catch (BackOfficeException e) {
+			System.err.println(e.getMessage()
+					+ (e.getCause() == null ? "" : ": "
+							+ e.getCause().getMessage()));
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+
+import common.KeyManager;
+
+/**
+ * Loads the supermarket key pair for a back office, generating it on first use.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class SupermarketKey {
+	private static final String keyExtension = "supermarket";
+
+	static KeyPair loadOrGenerate(String keyPath) throws BackOfficeException {
+		KeyManager keymanager = new KeyManager(keyPath);
+		try {
+			if (new File(keyPath + KeyManager.PRIVKEY_BASENAME + keyExtension)
+					.exists()) {
+				return keymanager.loadKeys(keyExtension);
+			}
+			return keymanager.generateAndSave(keyExtension);
+		} catch (NoSuchAlgorithmException e) {
+			throw new BackOfficeException("Failed to load supermarket key", e);
+		} catch (InvalidKeySpecException e) {
+			throw new BackOfficeException("Failed to load supermarket key", e);
+		} catch (IOException e) {
+			throw new BackOfficeException("Failed to load supermarket key", e);
+		}
+	}
+}
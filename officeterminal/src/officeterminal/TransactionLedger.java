@@ -0,0 +1,322 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.CreditTransaction;
+
+/**
+ * Append-only log of the transactions reported by the cash registers. A batch
+ * is appended with a single write and forced to disk before it is
+ * acknowledged. Transactions a register has already delivered are dropped
+ * (see {@link DuplicateFilter}), so a register may safely upload a batch
+ * again, also after later ones.
+ * 
+ * The ledger keeps the balance of every card as a {@link PNCounter}, rebuilt
+ * from the log on opening. A store counts the transactions it receives under
+ * its own random id, kept in <code>.store</code> next to the log.
+ * Transactions replicated from another store are counted under the id of that
+ * store instead, and kept in a log of their own named after it. Counters
+ * merged in from other stores are kept in <code>.merged</code>.
+ * 
+ * So that opening does not read every transaction ever logged, the counters
+ * and the windows of the duplicate filter are written to
+ * <code>.checkpoint</code> together with the length of every log, once the
+ * logs have grown by as much as the checkpoint takes. Opening reads the
+ * checkpoint and only the transactions logged after it.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class TransactionLedger {
+	private File log;
+	private int storeId;
+	/** The log of every store with transactions here, by store id */
+	private Map<Integer, RandomAccessFile> files = new HashMap<Integer, RandomAccessFile>();
+	private DuplicateFilter delivered = new DuplicateFilter();
+	private CreditCounters counters = new CreditCounters();
+	private File countersFile;
+	private File checkpointFile;
+	/** Bytes logged since the last checkpoint */
+	private long sinceCheckpoint;
+
+	/** Bytes below which the logs are never checkpointed */
+	private static final long CHECKPOINT_SIZE = 4 << 20;
+
+	/**
+	 * Open the logs, reading the transactions after the checkpoint to find
+	 * the transactions delivered by every register and to count the balance
+	 * of every card. Every record in a log was new when it was appended.
+	 */
+	TransactionLedger(File log) throws IOException {
+		this.log = log;
+		countersFile = new File(log.getPath() + ".merged");
+		checkpointFile = new File(log.getPath() + ".checkpoint");
+		storeId = readStoreId(new File(log.getPath() + ".store"));
+		Map<Integer, File> logs = new HashMap<Integer, File>();
+		logs.put(storeId, log);
+		File[] siblings = log.getAbsoluteFile().getParentFile().listFiles();
+		String prefix = log.getName() + ".";
+		for (File sibling : siblings == null ? new File[0] : siblings) {
+			String suffix = sibling.getName().substring(
+					Math.min(prefix.length(), sibling.getName().length()));
+			if (sibling.getName().startsWith(prefix)
+					&& suffix.matches("[0-9]{1,10}")
+					&& Long.parseLong(suffix) <= Integer.MAX_VALUE) {
+				logs.put(Integer.parseInt(suffix), sibling);
+			}
+		}
+		Map<Integer, Long> checkpointed = readCheckpoint(logs);
+		for (Map.Entry<Integer, File> e : logs.entrySet()) {
+			Long from = checkpointed.get(e.getKey());
+			open(e.getKey(), e.getValue(), from == null ? 0 : from);
+		}
+		if (countersFile.exists()) {
+			counters.merge(CreditCounters.readFrom(countersFile));
+		}
+		checkpointIfDue();
+	}
+
+	/**
+	 * Take over the counters and duplicate filter of the checkpoint, unless
+	 * it is missing, damaged or does not fit the logs.
+	 * 
+	 * @return the length every log had at the checkpoint, by store id; empty
+	 *         if the logs are to be read from the start.
+	 */
+	private Map<Integer, Long> readCheckpoint(Map<Integer, File> logs) {
+		Map<Integer, Long> lengths = new HashMap<Integer, Long>();
+		if (!checkpointFile.exists()) {
+			return lengths;
+		}
+		try {
+			ByteBuffer buffer = CreditCounters.read(checkpointFile);
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				int store = buffer.getInt();
+				long length = buffer.getLong();
+				File file = logs.get(store);
+				if (file == null || file.length() < length) {
+					System.err.println("Ledger checkpoint does not fit log of store "
+							+ store + ", reading all logs");
+					return new HashMap<Integer, Long>();
+				}
+				lengths.put(store, length);
+			}
+			DuplicateFilter filter = DuplicateFilter.readFrom(buffer);
+			CreditCounters checkpointed = CreditCounters.readFrom(buffer);
+			delivered = filter;
+			counters = checkpointed;
+			return lengths;
+		} catch (IOException e) {
+			System.err.println("Failed to read ledger checkpoint, reading all logs: "
+					+ e.getMessage());
+		} catch (BufferUnderflowException e) {
+			System.err.println("Ledger checkpoint is truncated, reading all logs");
+		}
+		return new HashMap<Integer, Long>();
+	}
+
+	/**
+	 * Write a checkpoint once the logs have grown by as much as the last one
+	 * took. Call with the lock of the ledger held, or before it is shared.
+	 * The transactions are already safe in the logs, so failing to write a
+	 * checkpoint only costs time on the next opening.
+	 */
+	private void checkpointIfDue() {
+		if (sinceCheckpoint > Math.max(CHECKPOINT_SIZE, checkpointFile
+				.length())) {
+			checkpoint();
+		}
+	}
+
+	private void checkpoint() {
+		ByteBuffer filter = delivered.encode();
+		ByteBuffer state = counters.encode();
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 12 * files.size()
+				+ filter.remaining() + state.remaining());
+		buffer.putInt(files.size());
+		try {
+			for (Map.Entry<Integer, RandomAccessFile> e : files.entrySet()) {
+				buffer.putInt(e.getKey());
+				buffer.putLong(e.getValue().getChannel().position());
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to write ledger checkpoint: "
+					+ e.getMessage());
+			return;
+		}
+		buffer.put(filter);
+		buffer.put(state);
+		buffer.flip();
+		try {
+			CreditCounters.write(checkpointFile, buffer);
+			sinceCheckpoint = 0;
+		} catch (IOException e) {
+			System.err.println("Failed to write ledger checkpoint: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the id of this store, chosen when its ledger was created.
+	 */
+	private static int readStoreId(File file) throws IOException {
+		RandomAccessFile id = new RandomAccessFile(file, "rw");
+		try {
+			if (id.length() >= 4) {
+				return id.readInt();
+			}
+			int storeId = 0;
+			while (storeId == 0) {
+				storeId = new SecureRandom().nextInt() & Integer.MAX_VALUE;
+			}
+			id.writeInt(storeId);
+			id.getChannel().force(false);
+			return storeId;
+		} finally {
+			id.close();
+		}
+	}
+
+	/**
+	 * Open the log of the transactions counted for <code>store</code> and
+	 * count those from <code>position</code> on.
+	 */
+	private FileChannel open(int store, File path, long position)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		files.put(store, file);
+		FileChannel channel = file.getChannel();
+		long valid = channel.size() - channel.size() % CreditTransaction.SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate(CreditTransaction.SIZE * 4096);
+		sinceCheckpoint += valid - position;
+		while (position < valid) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), valid - position));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					break;
+				}
+			}
+			buffer.flip();
+			position += buffer.remaining();
+			while (buffer.remaining() >= CreditTransaction.SIZE) {
+				CreditTransaction t = CreditTransaction.readFrom(buffer);
+				delivered.add(t);
+				counters.apply(t, store);
+			}
+		}
+		// Drop a record torn by a crash during the last append.
+		channel.truncate(valid);
+		channel.position(valid);
+		return channel;
+	}
+
+	/**
+	 * @return the id this store counts the transactions it receives under.
+	 */
+	int getStoreId() {
+		return storeId;
+	}
+
+	/**
+	 * Append the transactions that have not been seen before, received by
+	 * this store.
+	 * 
+	 * @return the transactions that were new, in batch order.
+	 */
+	List<CreditTransaction> append(List<CreditTransaction> batch)
+			throws IOException {
+		return append(batch, storeId);
+	}
+
+	/**
+	 * Append the transactions that have not been seen before, received by
+	 * the store with id <code>store</code>.
+	 * 
+	 * @return the transactions that were new, in batch order.
+	 */
+	synchronized List<CreditTransaction> append(List<CreditTransaction> batch,
+			int store) throws IOException {
+		// Only remember the transactions once the batch is on disk.
+		DuplicateFilter seen = new DuplicateFilter();
+		List<CreditTransaction> fresh = new ArrayList<CreditTransaction>(
+				batch.size());
+		for (CreditTransaction t : batch) {
+			if (!delivered.contains(t) && !seen.contains(t)) {
+				seen.add(t);
+				fresh.add(t);
+			}
+		}
+		if (fresh.isEmpty()) {
+			return fresh;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(fresh.size()
+				* CreditTransaction.SIZE);
+		for (CreditTransaction t : fresh) {
+			t.writeTo(buffer);
+		}
+		buffer.flip();
+		FileChannel channel = files.containsKey(store) ? files.get(store)
+				.getChannel() : open(store,
+				new File(log.getPath() + "." + store), 0);
+		long start = channel.position();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			channel.truncate(start);
+			channel.position(start);
+			throw e;
+		}
+		for (CreditTransaction t : fresh) {
+			delivered.add(t);
+			counters.apply(t, store);
+		}
+		sinceCheckpoint += channel.position() - start;
+		checkpointIfDue();
+		return fresh;
+	}
+
+	/**
+	 * @return the counters of this store, to be merged into other stores.
+	 */
+	CreditCounters getCounters() {
+		return counters;
+	}
+
+	/**
+	 * Take over the counters of another store and keep them.
+	 * 
+	 * @return what the balance of every changed card rose by, by card id.
+	 */
+	synchronized Map<Integer, Long> merge(CreditCounters remote)
+			throws IOException {
+		Map<Integer, Long> changed = counters.merge(remote);
+		if (!changed.isEmpty()) {
+			counters.writeTo(countersFile);
+		}
+		return changed;
+	}
+
+	synchronized void close() throws IOException {
+		if (sinceCheckpoint > 0) {
+			checkpoint();
+		}
+		for (RandomAccessFile file : files.values()) {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package officeterminal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import common.CreditTransaction;
+
+/**
+ * Runs the {@link CustomerAnalytics} over the same customers with one thread,
+ * then with twice as many, up to the number of cores or <code>threads</code>,
+ * and prints how long each run takes and how much faster it is than one
+ * thread. Checks that every run reports the same figures, and that they match
+ * what was put in.
+ *
+ * <pre>
+ * java -Xmx8g -Dcustomers=10000000 officeterminal.AnalyticsScalingCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class AnalyticsScalingCheck {
+	private static final int BUCKET_WIDTH = 100;
+	private static final int TOP = 10;
+
+	public static void main(String[] args) throws Exception {
+		int customers = Checks.size("customers", 200000);
+		File dir = Checks.directory("analytics");
+		BackOfficeSimulator office = new BackOfficeSimulator(dir.getPath()
+				+ File.separator, new File(dir, "backoffice.db").getPath(),
+				new File(dir, "ledger.log").getPath());
+
+		Random random = new Random(44);
+		CreditCounters counters = office.getCreditCounters();
+		long spent = 0;
+		long mostSpent = 0;
+		for (int loaded = 0; loaded < customers; loaded += 10000) {
+			List<String> names = new ArrayList<String>();
+			for (int i = loaded; i < Math.min(customers, loaded + 10000); i++) {
+				names.add("Customer " + i);
+			}
+			for (Customer c : office.registerCustomers(names)) {
+				int amount = random.nextInt(1000);
+				counters.apply(new CreditTransaction(c.getCardID(),
+						(short) -amount, 1, c.getID(), (short) 0), 1);
+				spent += amount;
+				mostSpent = Math.max(mostSpent, amount);
+			}
+		}
+		System.out.println(customers + " customers, " + spent
+				+ " credits spent");
+
+		int most = Checks.size("threads", Runtime.getRuntime()
+				.availableProcessors());
+		CustomerAnalytics.Report first = null;
+		long single = 0;
+		for (int threads = 1;; threads = Math.min(most, threads * 2)) {
+			CustomerAnalytics analytics = new CustomerAnalytics(office, threads);
+			try {
+				// Once to warm up, then timed.
+				analytics.run(BUCKET_WIDTH, TOP, null);
+				long start = System.nanoTime();
+				CustomerAnalytics.Report report = analytics.run(BUCKET_WIDTH,
+						TOP, null);
+				long nanos = System.nanoTime() - start;
+				if (first == null) {
+					first = report;
+					single = nanos;
+					Checks.equal(customers, report.getCustomers(), "customers");
+					Checks.equal(mostSpent, report.getTopSpenders().get(0).spent,
+							"most spent");
+				} else {
+					same(first, report, threads + " threads");
+				}
+				System.out.println(threads
+						+ (threads == 1 ? " thread: " : " threads: ") + nanos
+						/ 1000000 + " ms, " + (single * 100 / Math.max(1, nanos))
+						/ 100.0 + " times one thread");
+			} finally {
+				analytics.shutdown();
+			}
+			if (threads >= most) {
+				break;
+			}
+		}
+		System.out.println("OK");
+	}
+
+	private static void same(CustomerAnalytics.Report expected,
+			CustomerAnalytics.Report actual, String what) {
+		Checks.equal(expected.getCustomers(), actual.getCustomers(), what
+				+ " customers");
+		Checks.equal(expected.getLiability(), actual.getLiability(), what
+				+ " liability");
+		Checks.check(Arrays.equals(expected.getBalanceDistribution(), actual
+				.getBalanceDistribution()), what + " balance distribution");
+		Checks.equal(expected.getTopSpenders().get(TOP - 1).spent, actual
+				.getTopSpenders().get(TOP - 1).spent, what + " top spenders");
+	}
+}
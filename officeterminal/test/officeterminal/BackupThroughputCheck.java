@@ -0,0 +1,82 @@
+package officeterminal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import common.CreditTransaction;
+
+/**
+ * Measures how fast a store is backed up and restored: a full backup, an
+ * incremental one after a share of the customers changed, and a restore of
+ * both. Prints each in MB/s of records and as the size on disk, and checks
+ * that the restored store holds the same customers and balances.
+ *
+ * <pre>
+ * java -Xmx8g -Dcustomers=10000000 officeterminal.BackupThroughputCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class BackupThroughputCheck {
+	public static void main(String[] args) throws Exception {
+		int customers = Checks.size("customers", 500000);
+		int changed = Checks.size("changed", customers / 100);
+		File dir = Checks.directory("backup");
+		String keys = dir.getPath() + File.separator;
+		BackOfficeSimulator office = new BackOfficeSimulator(keys, new File(
+				dir, "backoffice.db").getPath(), new File(dir, "ledger.log")
+				.getPath());
+		for (int loaded = 0; loaded < customers; loaded += 10000) {
+			List<String> names = new ArrayList<String>();
+			for (int i = loaded; i < Math.min(customers, loaded + 10000); i++) {
+				names.add("Customer " + i + " van Dijk");
+			}
+			office.registerCustomers(names);
+		}
+
+		StoreBackup backup = new StoreBackup(office, new File(dir, "backups"));
+		StoreBackup.Report full = backup.backup(true);
+		System.out.println(full);
+		Checks.check(full.kind == StoreBackup.FULL, "first backup not full");
+
+		Random random = new Random(49);
+		List<CreditTransaction> batch = new ArrayList<CreditTransaction>();
+		for (int i = 0; i < changed; i++) {
+			Customer c = office.getCustomerByID(1 + random.nextInt(customers));
+			batch.add(new CreditTransaction(c.getCardID(), (short) 1, 1, i + 1,
+					(short) 0));
+			if (batch.size() == 1000 || i == changed - 1) {
+				office.recordTransactions(batch);
+				batch = new ArrayList<CreditTransaction>();
+			}
+		}
+		StoreBackup.Report incremental = backup.backup(false);
+		System.out.println(incremental);
+		Checks.check(incremental.kind == StoreBackup.INCREMENTAL,
+				"second backup not incremental");
+		Checks.check(incremental.bytes < full.bytes,
+				"incremental backup not smaller than the full one");
+
+		File restored = new File(dir, "restored.db");
+		StoreBackup.Report restore = StoreBackup.restore(new File(dir,
+				"backups"), Long.MAX_VALUE, restored);
+		System.out.println(String.format("restore: %d kB in %d ms (%.1f MB/s)",
+				restore.bytes / 1024, restore.nanos / 1000000, restore
+						.throughput()));
+
+		BackOfficeSimulator copy = new BackOfficeSimulator(keys, restored
+				.getPath(), new File(dir, "restored.log").getPath());
+		Checks.equal(office.getCustomers().size(), copy.getCustomers().size(),
+				"customers restored");
+		for (int i = 0; i < 1000; i++) {
+			int id = 1 + random.nextInt(customers);
+			Checks.equal(office.getCustomerByID(id).getCredits(), copy
+					.getCustomerByID(id).getCredits(), "credits of customer "
+					+ id);
+		}
+		System.out.println("OK");
+	}
+}
@@ -0,0 +1,100 @@
+package officeterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Helpers for the checks in this folder. Each check is a program of its own:
+ * it prints what it measured and ends with an {@link AssertionError} when
+ * something does not hold. Sizes can be set with system properties, so that a
+ * check can run small by default and at full size by hand.
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+final class Checks {
+	private Checks() {
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	static void equal(long expected, long actual, String what) {
+		if (expected != actual) {
+			throw new AssertionError(what + ": expected " + expected
+					+ " but was " + actual);
+		}
+	}
+
+	/**
+	 * @return the integer system property <code>name</code>, or
+	 *         <code>fallback</code>.
+	 */
+	static int size(String name, int fallback) {
+		return Integer.getInteger(name, fallback);
+	}
+
+	/**
+	 * @return a new, empty directory that is removed when the check exits.
+	 */
+	static File directory(String prefix) throws IOException {
+		final File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create " + dir);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				delete(dir);
+			}
+		});
+		return dir;
+	}
+
+	static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+
+	/**
+	 * Print how many operations per second <code>count</code> operations in
+	 * <code>nanos</code> nanoseconds come down to.
+	 */
+	static void rate(String what, long count, long nanos) {
+		System.out.println(what + ": " + count + " in " + nanos / 1000000
+				+ " ms, " + count * 1000000000L / Math.max(1, nanos) + "/s");
+	}
+
+	/**
+	 * Print the median, 99th percentile and worst of latencies measured in
+	 * nanoseconds. Sorts <code>nanos</code>.
+	 */
+	static void latency(String what, long[] nanos) {
+		Arrays.sort(nanos);
+		System.out.println(what + ": median " + nanos[nanos.length / 2] / 1000
+				+ " us, 99% " + nanos[nanos.length * 99 / 100] / 1000
+				+ " us, worst " + nanos[nanos.length - 1] / 1000 + " us");
+	}
+
+	/**
+	 * @return the heap in use after collecting garbage, in bytes.
+	 */
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+}
@@ -0,0 +1,115 @@
+package officeterminal;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures what an {@link IntHashMap} costs against the
+ * <code>ConcurrentHashMap</code> it replaced: the heap taken per entry, and
+ * how fast random ids are looked up, by one thread and by several at once.
+ * Checks that every id put in is found with its value, and that removed ids
+ * are not.
+ *
+ * <pre>
+ * java -Xmx4g -Dentries=10000000 officeterminal.IntHashMapCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class IntHashMapCheck {
+	public static void main(String[] args) throws Exception {
+		final int entries = Checks.size("entries", 1000000);
+		int threads = Checks.size("threads", 4);
+		final int[] keys = new int[1 << 20];
+		Random random = new Random(47);
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = random.nextInt(entries);
+		}
+		// One value for every entry, so only the map itself is measured.
+		final Object value = new Object();
+
+		long before = Checks.usedHeap();
+		final IntHashMap<Object> map = new IntHashMap<Object>();
+		for (int i = 0; i < entries; i++) {
+			map.put(i, value);
+		}
+		long footprint = Checks.usedHeap() - before;
+		System.out.println("IntHashMap: " + footprint / (1 << 20) + " MB, "
+				+ footprint / entries + " bytes per entry");
+		for (int i = 0; i < entries; i++) {
+			Checks.check(map.get(i) == value, "entry " + i + " missing");
+		}
+		for (int i = 0; i < entries; i += 10) {
+			map.remove(i);
+		}
+		for (int i = 0; i < entries; i++) {
+			Checks.check((map.get(i) == null) == (i % 10 == 0), "entry " + i
+					+ " after removing every tenth");
+		}
+		for (int i = 0; i < entries; i += 10) {
+			map.put(i, value);
+		}
+		lookups("IntHashMap", new Lookup() {
+			public boolean find(int key) {
+				return map.get(key) != null;
+			}
+		}, keys, threads);
+
+		before = Checks.usedHeap();
+		final ConcurrentHashMap<Integer, Object> boxed = new ConcurrentHashMap<Integer, Object>();
+		for (int i = 0; i < entries; i++) {
+			boxed.put(i, value);
+		}
+		footprint = Checks.usedHeap() - before;
+		System.out.println("ConcurrentHashMap: " + footprint / (1 << 20)
+				+ " MB, " + footprint / entries + " bytes per entry");
+		lookups("ConcurrentHashMap", new Lookup() {
+			public boolean find(int key) {
+				return boxed.get(key) != null;
+			}
+		}, keys, threads);
+		System.out.println("OK");
+	}
+
+	private interface Lookup {
+		boolean find(int key);
+	}
+
+	/**
+	 * Look up every key a few times, first on one thread and then on
+	 * <code>threads</code> at once, and print the rates of the last round.
+	 */
+	private static void lookups(String name, final Lookup lookup,
+			final int[] keys, int threads) throws Exception {
+		long nanos = 0;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int key : keys) {
+				Checks.check(lookup.find(key), "key " + key + " not found");
+			}
+			nanos = System.nanoTime() - start;
+		}
+		Checks.rate(name + " lookups, 1 thread", keys.length, nanos);
+
+		Thread[] readers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * 7919;
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < keys.length; i++) {
+						lookup.find(keys[(i + offset) & (keys.length - 1)]);
+					}
+				}
+			};
+			readers[t].start();
+		}
+		for (Thread t : readers) {
+			t.join();
+		}
+		Checks.rate(name + " lookups, " + threads + " threads", (long) threads
+				* keys.length, System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,81 @@
+package officeterminal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the heap the names of the customers take before and after they are
+ * moved into a {@link NameArena}: first as a string each, then as an array of
+ * its own per customer, then in the shared chunks of an arena, and once more
+ * after two thirds of the customers are gone and the arena is compacted.
+ * Checks that every name reads back unchanged at every step.
+ *
+ * <pre>
+ * java -Xmx4g -Dcustomers=10000000 officeterminal.NameArenaCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class NameArenaCheck {
+	public static void main(String[] args) throws Exception {
+		int count = Checks.size("customers", 1000000);
+
+		long base = Checks.usedHeap();
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = "Customer " + i + " van Dijk";
+		}
+		long strings = Checks.usedHeap() - base;
+		print("names as strings", strings, count);
+
+		base = Checks.usedHeap();
+		Customer[] customers = new Customer[count];
+		for (int i = 0; i < count; i++) {
+			customers[i] = new Customer(names[i], i);
+		}
+		long before = Checks.usedHeap() - base;
+		print("customers, a name array each", before, count);
+
+		NameArena arena = new NameArena();
+		for (Customer c : customers) {
+			arena.add(c);
+		}
+		long after = Checks.usedHeap() - base;
+		print("customers, names in an arena", after, count);
+		verify(customers, names, 1);
+		System.out.println("the arena saves " + (before - after) / count
+				+ " bytes per customer, " + (before - after) / (1 << 20)
+				+ " MB in all");
+
+		List<Customer> kept = new ArrayList<Customer>();
+		for (int i = 0; i < count; i++) {
+			if (i % 3 == 0) {
+				kept.add(customers[i]);
+			} else {
+				arena.release(customers[i]);
+				customers[i] = null;
+			}
+		}
+		Checks.check(arena.wasteful() || count < 100000,
+				"releasing most names left the arena not wasteful");
+		arena.compact(kept, Collections.<Card> emptyList());
+		long compacted = Checks.usedHeap() - base;
+		print("a third of the customers, compacted", compacted, kept.size());
+		verify(customers, names, 3);
+		System.out.println("OK");
+	}
+
+	private static void print(String what, long bytes, int count) {
+		System.out.println(what + ": " + bytes / (1 << 20) + " MB, " + bytes
+				/ count + " bytes each");
+	}
+
+	private static void verify(Customer[] customers, String[] names, int step) {
+		for (int i = 0; i < customers.length; i += step) {
+			Checks.check(customers[i].getName().equals(names[i]), "customer "
+					+ i + " is named " + customers[i].getName());
+		}
+	}
+}
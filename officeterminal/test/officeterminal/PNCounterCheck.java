@@ -0,0 +1,123 @@
+package officeterminal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that copies of a {@link PNCounter} converge whatever order they are
+ * merged in: every store counts its own transactions, the copies receive old
+ * and new states of the others shuffled and repeated, and from several threads
+ * at once, and in the end every copy must hold the same totals as a counter
+ * that saw all transactions. Prints how many additions and merges per second
+ * a counter manages.
+ *
+ * <pre>
+ * java -Dstores=16 -Dadds=200000 officeterminal.PNCounterCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class PNCounterCheck {
+	public static void main(String[] args) throws Exception {
+		int stores = Checks.size("stores", 8);
+		int adds = Checks.size("adds", 20000);
+		Random random = new Random(41);
+
+		// Every store counts its own transactions; the truth sees them all.
+		PNCounter truth = new PNCounter();
+		PNCounter[] own = new PNCounter[stores];
+		List<PNCounter> states = new ArrayList<PNCounter>();
+		for (int s = 0; s < stores; s++) {
+			own[s] = new PNCounter();
+		}
+		for (int i = 0; i < adds; i++) {
+			int store = random.nextInt(stores);
+			long amount = random.nextInt(201) - 100;
+			own[store].add(store, amount);
+			truth.add(store, amount);
+			if (random.nextInt(100) == 0) {
+				states.add(PNCounter.readFrom(own[store].encode()));
+			}
+		}
+		for (PNCounter counter : own) {
+			states.add(counter);
+		}
+
+		// Each copy merges the states, old and new, in an order of its own.
+		final PNCounter[] copies = new PNCounter[stores];
+		for (int s = 0; s < stores; s++) {
+			List<PNCounter> order = new ArrayList<PNCounter>(states);
+			order.addAll(states.subList(0, states.size() / 2));
+			Collections.shuffle(order, random);
+			copies[s] = new PNCounter();
+			for (PNCounter state : order) {
+				copies[s].merge(state);
+			}
+			same(truth, copies[s], "copy " + s);
+		}
+
+		// Copies merge each other from several threads, then once more.
+		final PNCounter[] gossip = new PNCounter[stores];
+		for (int s = 0; s < stores; s++) {
+			gossip[s] = new PNCounter();
+			gossip[s].merge(own[s]);
+		}
+		Thread[] threads = new Thread[stores];
+		for (int s = 0; s < stores; s++) {
+			final int me = s;
+			threads[s] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(me);
+					for (int i = 0; i < 20000; i++) {
+						PNCounter other = gossip[r.nextInt(gossip.length)];
+						if (r.nextBoolean()) {
+							gossip[me].merge(other);
+						} else {
+							other.merge(gossip[me]);
+						}
+					}
+				}
+			};
+			threads[s].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (PNCounter a : gossip) {
+			for (PNCounter b : gossip) {
+				a.merge(b);
+			}
+		}
+		for (int s = 0; s < stores; s++) {
+			same(truth, gossip[s], "gossip copy " + s);
+			Checks.check(!gossip[s].merge(truth), "merging the truth into "
+					+ "converged copy " + s + " changed it");
+		}
+
+		PNCounter counter = new PNCounter();
+		long start = System.nanoTime();
+		for (int i = 0; i < adds * 50; i++) {
+			counter.add(i & 3, (i & 1) == 0 ? 5 : -3);
+		}
+		Checks.rate("additions", adds * 50L, System.nanoTime() - start);
+		start = System.nanoTime();
+		for (int i = 0; i < adds * 50; i++) {
+			counter.merge(own[i % stores]);
+		}
+		Checks.rate("merges of " + stores + " stores", adds * 50L, System
+				.nanoTime()
+				- start);
+		System.out.println("OK");
+	}
+
+	private static void same(PNCounter expected, PNCounter actual, String what) {
+		Checks.equal(expected.value(), actual.value(), what + " value");
+		Checks.equal(expected.removed(), actual.removed(), what + " removed");
+		Checks.check(expected.encode().equals(actual.encode()), what
+				+ " totals differ");
+	}
+}
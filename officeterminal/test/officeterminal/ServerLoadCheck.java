@@ -0,0 +1,198 @@
+package officeterminal;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Puts a {@link BackOfficeServer} under load: many clients registering
+ * customers and looking them up at once, one client that sends a flood of
+ * requests without reading the responses, and reading every customer when the
+ * table is larger than one frame. Checks that every request is answered
+ * exactly once, that other clients are served while the flood is held back,
+ * and prints how many requests per second the server answers.
+ *
+ * <pre>
+ * java -Dclients=64 -Drequests=200 -Dflood=1000000 officeterminal.ServerLoadCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class ServerLoadCheck {
+	public static void main(String[] args) throws Exception {
+		int clients = Checks.size("clients", 32);
+		int requests = Checks.size("requests", 200);
+		int flood = Checks.size("flood", 300000);
+		File dir = Checks.directory("server");
+		BackOfficeSimulator office = new BackOfficeSimulator(dir.getPath()
+				+ File.separator, new File(dir, "backoffice.db").getPath(),
+				new File(dir, "ledger.log").getPath());
+		final BackOfficeServer server = new BackOfficeServer(office, 0, 8);
+		Thread serving = new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		serving.start();
+		try {
+			load(server.getPort(), clients, requests);
+			flood(server.getPort(), flood);
+			readAll(server.getPort(), office);
+		} finally {
+			server.stop();
+			serving.join();
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Register, issue a card and look up by card from many clients at once.
+	 */
+	private static void load(final int port, int clients, final int requests)
+			throws Exception {
+		final List<Throwable> failures = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			final int client = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						RemoteBackOffice remote = new RemoteBackOffice(
+								"localhost", port);
+						try {
+							for (int j = 0; j < requests; j++) {
+								Customer c = remote.registerCustomer("L"
+										+ client + "-" + j);
+								remote.issueCard(c);
+								Checks.equal(c.getID(), remote
+										.getCustomerByCard(c.getCardID())
+										.getID(), "owner of card "
+										+ c.getCardID());
+							}
+						} finally {
+							remote.close();
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (!failures.isEmpty()) {
+			throw new AssertionError(failures.get(0));
+		}
+		Checks.rate("requests, " + clients + " clients", clients * requests
+				* 3L, System.nanoTime() - start);
+	}
+
+	/**
+	 * Send <code>count</code> requests on one connection before reading any
+	 * response, check that another client is still served meanwhile, then
+	 * read them all.
+	 */
+	private static void flood(int port, int count) throws Exception {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+				"localhost", port));
+		try {
+			ByteBuffer requests = ByteBuffer.allocate(count * 17);
+			for (int id = 0; id < count; id++) {
+				requests.put(new BackOfficeProtocol.Frame(id,
+						BackOfficeProtocol.GET_STATISTICS).finish());
+			}
+			requests.flip();
+			// Write what the server takes; it stops reading when it falls
+			// behind, so the rest waits until the responses are read.
+			channel.configureBlocking(false);
+			long start = System.nanoTime();
+			while (requests.hasRemaining()
+					&& System.nanoTime() - start < 2000000000L) {
+				if (channel.write(requests) == 0) {
+					Thread.sleep(10);
+				}
+			}
+			RemoteBackOffice other = new RemoteBackOffice("localhost", port);
+			long waited = System.nanoTime();
+			other.getStatistics();
+			System.out.println("other client answered in "
+					+ (System.nanoTime() - waited) / 1000000
+					+ " ms during a flood, with " + requests.remaining()
+					/ 1024 + " kB not yet taken by the server");
+			other.close();
+
+			ByteBuffer responses = ByteBuffer.allocate(1 << 16);
+			boolean[] answered = new boolean[count];
+			int received = 0;
+			while (received < count) {
+				if (requests.hasRemaining()) {
+					channel.write(requests);
+				}
+				if (channel.read(responses) < 0) {
+					throw new AssertionError("server closed the connection");
+				}
+				responses.flip();
+				while (responses.remaining() >= 4
+						&& responses.remaining() >= 4 + responses
+								.getInt(responses.position())) {
+					int length = responses.getInt();
+					int next = responses.position() + length;
+					int id = responses.getInt();
+					Checks.equal(BackOfficeProtocol.OK, responses.get(),
+							"status of request " + id);
+					Checks.check(!answered[id], "request " + id
+							+ " answered twice");
+					answered[id] = true;
+					received++;
+					responses.position(next);
+				}
+				responses.compact();
+			}
+			Checks.rate("pipelined requests, 1 connection", count, System
+					.nanoTime()
+					- start);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Read every customer when together they are larger than one frame.
+	 */
+	private static void readAll(int port, BackOfficeSimulator office)
+			throws Exception {
+		char[] padding = new char[1000];
+		Arrays.fill(padding, 'x');
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < BackOfficeProtocol.MAX_FRAME / 1000 + 1000; i++) {
+			names.add("W" + i + new String(padding));
+		}
+		office.registerCustomers(names);
+		int expected = office.getCustomers().size();
+		RemoteBackOffice remote = new RemoteBackOffice("localhost", port);
+		try {
+			long start = System.nanoTime();
+			Checks.equal(expected, remote.getCustomers().size(),
+					"customers read");
+			Checks.rate("customers read", expected, System.nanoTime() - start);
+		} finally {
+			remote.close();
+		}
+	}
+}
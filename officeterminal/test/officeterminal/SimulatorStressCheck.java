@@ -0,0 +1,176 @@
+package officeterminal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import common.CreditTransaction;
+
+/**
+ * Registers customers, replaces cards and records transactions from several
+ * threads at once, then checks that nothing was lost or handed out twice,
+ * both in memory and after opening the store again from its journal and from
+ * its file. Prints how many registrations per second one thread and all
+ * threads manage.
+ *
+ * <pre>
+ * java -Dthreads=8 -Dcustomers=5000 officeterminal.SimulatorStressCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class SimulatorStressCheck {
+	public static void main(String[] args) throws Exception {
+		int threads = Checks.size("threads", 8);
+		int perThread = Checks.size("customers", 5000);
+		File dir = Checks.directory("stress");
+		String keys = dir.getPath() + File.separator;
+		String db = new File(dir, "backoffice.db").getPath();
+		String log = new File(dir, "ledger.log").getPath();
+
+		final BackOfficeSimulator office = new BackOfficeSimulator(keys, db,
+				log);
+		Map<Integer, Short> expected = stress(office, threads, perThread);
+		verify(office, expected, threads * perThread);
+		System.out.println("journal holds "
+				+ new File(db + ".journal").length() + " bytes, file "
+				+ new File(db).length() + " bytes");
+
+		verify(new BackOfficeSimulator(keys, db, log), expected, threads
+				* perThread);
+		office.save();
+		Checks.check(new File(db + ".journal").length() < 64,
+				"journal was not emptied by saving");
+		verify(new BackOfficeSimulator(keys, db, log), expected, threads
+				* perThread);
+
+		BackOfficeSimulator single = new BackOfficeSimulator(keys, new File(
+				dir, "single.db").getPath(), new File(dir, "single.log")
+				.getPath());
+		long start = System.nanoTime();
+		register(single, 0, perThread);
+		Checks.rate("registrations, 1 thread", perThread, System.nanoTime()
+				- start);
+		BackOfficeSimulator many = new BackOfficeSimulator(keys, new File(
+				dir, "many.db").getPath(), new File(dir, "many.log").getPath());
+		start = System.nanoTime();
+		run(many, threads, perThread, false);
+		Checks.rate("registrations, " + threads + " threads", threads
+				* perThread, System.nanoTime() - start);
+		System.out.println("OK");
+	}
+
+	/**
+	 * @return the balance every card should have, by card id.
+	 */
+	private static Map<Integer, Short> stress(BackOfficeSimulator office,
+			int threads, int perThread) throws Exception {
+		long start = System.nanoTime();
+		List<Map<Integer, Short>> balances = run(office, threads, perThread,
+				true);
+		Checks.rate("mixed changes, " + threads + " threads", threads
+				* perThread * 3L, System.nanoTime() - start);
+		Map<Integer, Short> expected = new HashMap<Integer, Short>();
+		for (Map<Integer, Short> b : balances) {
+			expected.putAll(b);
+		}
+		return expected;
+	}
+
+	private static List<Map<Integer, Short>> run(
+			final BackOfficeSimulator office, int threads,
+			final int perThread, final boolean mixed) throws Exception {
+		final List<Map<Integer, Short>> balances = Collections
+				.synchronizedList(new ArrayList<Map<Integer, Short>>());
+		final List<Throwable> failures = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int register = i + 1;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						if (mixed) {
+							balances.add(change(office, register, perThread));
+						} else {
+							register(office, register, perThread);
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread t : workers) {
+			t.join();
+		}
+		if (!failures.isEmpty()) {
+			throw new AssertionError(failures.get(0));
+		}
+		return balances;
+	}
+
+	private static void register(BackOfficeSimulator office, int register,
+			int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			office.registerCustomer("R" + register + "-" + i);
+		}
+	}
+
+	/**
+	 * Register customers, give every fourth a new card, and credit each card
+	 * with a transaction of its own.
+	 */
+	private static Map<Integer, Short> change(BackOfficeSimulator office,
+			int register, int count) throws Exception {
+		Map<Integer, Short> balances = new HashMap<Integer, Short>();
+		long sequence = 0;
+		for (int i = 0; i < count; i++) {
+			Customer c = office.registerCustomer("S" + register + "-" + i);
+			if (i % 4 == 0) {
+				office.deleteCard(c.getCardID());
+				office.issueCard(c);
+			}
+			short amount = (short) (i % 50 + 1);
+			office.recordTransactions(Collections
+					.singletonList(new CreditTransaction(c.getCardID(),
+							amount, register, ++sequence, (short) 0)));
+			balances.put(c.getCardID(), amount);
+		}
+		return balances;
+	}
+
+	private static void verify(BackOfficeSimulator office,
+			Map<Integer, Short> expected, int customers) throws Exception {
+		List<Customer> all = office.getCustomers();
+		Set<Integer> cards = new HashSet<Integer>();
+		int checked = 0;
+		for (Customer c : all) {
+			if (!c.getName().startsWith("S")) {
+				continue;
+			}
+			checked++;
+			Checks.check(c.getCard() != null, c + " has no card");
+			Checks.check(cards.add(c.getCardID()), "card " + c.getCardID()
+					+ " was handed out twice");
+			Checks.equal(c.getID(), office.getCustomerByCard(c.getCardID())
+					.getID(), "owner of card " + c.getCardID());
+			Short balance = expected.get(c.getCardID());
+			Checks.check(balance != null, "card " + c.getCardID()
+					+ " was not issued");
+			Checks.equal(balance, c.getCredits(), "balance of card "
+					+ c.getCardID());
+		}
+		Checks.equal(customers, checked, "customers");
+		Checks.equal(customers, office.getStatistics().getCustomers(),
+				"customers counted");
+	}
+}
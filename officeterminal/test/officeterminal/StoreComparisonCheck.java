@@ -0,0 +1,133 @@
+package officeterminal;
+
+import java.io.File;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import common.CreditTransaction;
+
+/**
+ * Compares the {@link JdbcBackOffice} with the {@link BackOfficeSimulator} on
+ * the same work: loading the customers, looking customers up by id and by
+ * card, registering customers one at a time, and recording transactions in
+ * batches. Prints the lookup latencies and the mutation throughput of both,
+ * and checks that both answer alike.
+ *
+ * The database is named by <code>jdbc.url</code>, by default an H2 database
+ * in a temporary directory; the check leaves the database out if its driver
+ * is not on the class path. Run it at the sizes the stores are meant for:
+ *
+ * <pre>
+ * java -Dcustomers=100000 officeterminal.StoreComparisonCheck
+ * java -Xmx8g -Dcustomers=10000000 officeterminal.StoreComparisonCheck
+ * </pre>
+ *
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+public class StoreComparisonCheck {
+	private static final int LOAD_BATCH = 10000;
+	/** Transactions per upload, as a cash register sends them */
+	private static final int BATCH = 50;
+
+	public static void main(String[] args) throws Exception {
+		int customers = Checks.size("customers", 20000);
+		int lookups = Checks.size("lookups", 20000);
+		int mutations = Checks.size("mutations", 20000);
+		File dir = Checks.directory("stores");
+		String keys = dir.getPath() + File.separator;
+
+		BackOfficeSimulator simulator = new BackOfficeSimulator(keys,
+				new File(dir, "backoffice.db").getPath(), new File(dir,
+						"ledger.log").getPath());
+		run("simulator", simulator, customers, lookups, mutations);
+
+		String url = System.getProperty("jdbc.url", "jdbc:h2:"
+				+ new File(dir, "backoffice").getAbsolutePath());
+		try {
+			DriverManager.getDriver(url);
+		} catch (SQLException e) {
+			System.out.println("no driver for " + url + ", database left out");
+			System.out.println("OK");
+			return;
+		}
+		JdbcBackOffice jdbc = new JdbcBackOffice(keys, url);
+		try {
+			run("jdbc", jdbc, customers, lookups, mutations);
+		} finally {
+			jdbc.close();
+		}
+		System.out.println("OK");
+	}
+
+	private static void run(String name, BackOffice office, int customers,
+			int lookups, int mutations) throws Exception {
+		System.out.println(name + ", " + customers + " customers:");
+		long start = System.nanoTime();
+		int[] ids = new int[customers];
+		int[] cards = new int[customers];
+		for (int loaded = 0; loaded < customers; loaded += LOAD_BATCH) {
+			List<String> names = new ArrayList<String>();
+			for (int i = loaded; i < Math.min(customers, loaded + LOAD_BATCH); i++) {
+				names.add("Customer " + i);
+			}
+			for (Customer c : office.registerCustomers(names)) {
+				int i = Integer.parseInt(c.getName().substring(9));
+				ids[i] = c.getID();
+				cards[i] = c.getCardID();
+			}
+		}
+		Checks.rate("  loaded", customers, System.nanoTime() - start);
+
+		Random random = new Random(31);
+		long[] byId = new long[lookups];
+		long[] byCard = new long[lookups];
+		for (int n = 0; n < lookups; n++) {
+			int i = random.nextInt(customers);
+			long t = System.nanoTime();
+			Customer c = office.getCustomerByID(ids[i]);
+			byId[n] = System.nanoTime() - t;
+			Checks.check(c.getName().equals("Customer " + i), "customer "
+					+ ids[i] + " is " + c.getName());
+			t = System.nanoTime();
+			c = office.getCustomerByCard(cards[i]);
+			byCard[n] = System.nanoTime() - t;
+			Checks.equal(ids[i], c.getID(), "owner of card " + cards[i]);
+		}
+		Checks.latency("  lookup by id", byId);
+		Checks.latency("  lookup by card", byCard);
+
+		start = System.nanoTime();
+		for (int n = 0; n < mutations / 10; n++) {
+			office.registerCustomer("Single " + n);
+		}
+		Checks.rate("  single registrations", mutations / 10, System
+				.nanoTime() - start);
+
+		List<CreditTransaction> batch = new ArrayList<CreditTransaction>();
+		short[] balances = new short[customers];
+		int recorded = 0;
+		start = System.nanoTime();
+		for (int n = 0; n < mutations; n++) {
+			int i = random.nextInt(customers);
+			batch.add(new CreditTransaction(cards[i], (short) 1, 1, n + 1,
+					(short) 0));
+			balances[i]++;
+			if (batch.size() == BATCH || n == mutations - 1) {
+				recorded += office.recordTransactions(batch);
+				batch = new ArrayList<CreditTransaction>();
+			}
+		}
+		Checks.rate("  transactions in batches of " + BATCH, mutations,
+				System.nanoTime() - start);
+		Checks.equal(mutations, recorded, "transactions recorded");
+		for (int n = 0; n < Math.min(customers, 100); n++) {
+			int i = random.nextInt(customers);
+			Checks.equal(balances[i], office.getCustomerByID(ids[i])
+					.getCredits(), "credits of customer " + ids[i]);
+		}
+	}
+}
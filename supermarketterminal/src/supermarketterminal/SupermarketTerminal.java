@@ -1,5 +1,6 @@
 package supermarketterminal;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
@@ -14,6 +15,8 @@ import common.AppletCommunication;
 import common.AppletSession;
 import common.Formatter;
 import common.Response;
+import common.RevocationList;
+import common.SpoolTransactionSink;
 import common.TerminalCrypto;
 
 
@@ -48,6 +51,12 @@ public class SupermarketTerminal {
 	
 	/** Current cash register id */
 	int cashRegisterId;
+
+	/** Completed transactions waiting to be sent to the back office */
+	TransactionOutbox transactions;
+
+	/** Cards revoked by the back office */
+	RevocationList revocations = new RevocationList();
 	
 	public SupermarketTerminal (int cashRegisterId) {
 		this.cashRegisterId = cashRegisterId;
@@ -57,15 +66,51 @@ public class SupermarketTerminal {
 		session = new AppletSession(supermarketPrivKey);
 		com = new AppletCommunication(session);
 		crypto = new TerminalCrypto();
+		openOutbox();
 		
 		while (true) {
 			main();
+			if (transactions != null) {
+				int depth = transactions.getDepth();
+				double rate = transactions.getDrainRate();
+				if (depth > 0) {
+					System.out.println(depth
+							+ " transactions waiting for the back office, "
+							+ transactions.getDelivered() + " sent, "
+							+ String.format("%.1f", rate) + " per second");
+				}
+			}
 			System.out.print("\nPress return when card has been inserted.");
 			waitForInput();
 			waitToTryAgain();
 		}
 	}
 	
+	private void openOutbox() {
+		try {
+			transactions = new TransactionOutbox(cashRegisterId, new File(
+					"./outbox-" + cashRegisterId + ".dat"),
+					new SpoolTransactionSink());
+		} catch (IOException e) {
+			System.err.println("Cannot open the transaction outbox, "
+					+ "transactions will not reach the back office.");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Pick up the revocations the back office has published since the last
+	 * card session.
+	 */
+	private void refreshRevocations() {
+		try {
+			revocations.refresh(RevocationList.DEFAULT_DIRECTORY);
+		} catch (IOException e) {
+			System.err.println("Cannot read the revocation list, using version "
+					+ revocations.getVersion() + ": " + e.getMessage());
+		}
+	}
+	
 	private void loadKeyFiles() {
 		try {
 			supermarketPrivKey = (RSAPrivateKey) KeyManager.loadKeyPair("supermarket")
@@ -89,6 +134,7 @@ public class SupermarketTerminal {
 	 * (a customer showing its ID card) happens correctly.
 	 */
 	private void main() {
+		refreshRevocations();
 		// wait until a card is inserted
 		com.waitForCard();
 		// authenticate the card and the terminal
@@ -98,6 +144,10 @@ public class SupermarketTerminal {
 			return;
 		}
 		cardId = session.getCardIdAsInt();
+		if (revocations.isRevoked(cardId)) {
+			System.err.println("Card " + cardId + " has been revoked.");
+			return;
+		}
 		
 		System.out.println("Succesfully authenticated card " + cardId);
 		
@@ -221,6 +271,8 @@ public class SupermarketTerminal {
 			throw new SecurityException("Error removing credits.");
 		}
 		System.out.println("Credits removed from balance: " + credits);
+		recordTransaction((short) -credits,
+				(short) Formatter.byteArrayToShort(resp.getData()));
 	}
 
 	/**
@@ -243,6 +295,17 @@ public class SupermarketTerminal {
 			throw new SecurityException("Error adding credits.");
 		}
 		System.out.println("Credits added to balance: " + credits);
+		recordTransaction(credits,
+				(short) Formatter.byteArrayToShort(resp.getData()));
+	}
+
+	/**
+	 * Queue a completed operation for the back office
+	 */
+	private void recordTransaction(short amount, short newBalance) {
+		if (transactions != null) {
+			transactions.record(cardId, amount, newBalance);
+		}
 	}
 
 	/**
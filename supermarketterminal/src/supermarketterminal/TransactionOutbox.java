@@ -0,0 +1,274 @@
+package supermarketterminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.CreditTransaction;
+import common.TransactionSink;
+
+/**
+ * A durable outbox for the completed balance operations of one cash register.
+ * Transactions are appended to a memory-mapped file, so recording one never
+ * waits on the disk or on the back office. A background sender drains the
+ * outbox in batches and only removes a batch once it has been uploaded; when
+ * an upload fails it retries with an exponential backoff. Whatever is still in
+ * the outbox when the register stops is sent after the next start.
+ * 
+ * The file starts with the positions of the first unsent and the first free
+ * record and the last sequence number handed out, followed by the records
+ * themselves.
+ * 
+ * Records and header are written to the mapping only; the file is forced when
+ * it grows and when the outbox is closed. A recorded transaction therefore
+ * survives the register process crashing, since the operating system still
+ * writes the mapped pages out, but not the machine losing power before it
+ * does.
+ * 
+ * @author Geert Smelt
+ * @author Robin Oostrum
+ */
+class TransactionOutbox {
+	static final int BATCH_SIZE = 50;
+	static final long INITIAL_BACKOFF = 500;
+	static final long MAX_BACKOFF = 30000;
+	private static final int HEADER = 16;
+	private static final int INITIAL_CAPACITY = 4096 * CreditTransaction.SIZE;
+
+	private int registerId;
+	private long sequence;
+	private TransactionSink sink;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	/** Offsets of the first unsent and the first free record */
+	private int head, tail;
+
+	private Thread sender;
+	private volatile boolean running = true;
+	private long delivered;
+	private long sampledDelivered;
+	private long sampledAt = System.currentTimeMillis();
+
+	/**
+	 * Open the outbox in <code>path</code>, creating it if needed, and start
+	 * sending its contents to <code>sink</code>.
+	 */
+	TransactionOutbox(int registerId, File path, TransactionSink sink)
+			throws IOException {
+		this.registerId = registerId;
+		this.sink = sink;
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		boolean fresh = file.length() < HEADER;
+		map(Math.max(file.length() - HEADER, INITIAL_CAPACITY));
+		if (fresh) {
+			writeHeader();
+		} else {
+			head = buffer.getInt(0);
+			tail = buffer.getInt(4);
+			sequence = buffer.getLong(8);
+		}
+
+		/*
+		 * Sequence numbers carry on from the last one handed out, so they keep
+		 * increasing across restarts whatever the clock does. A new outbox, or
+		 * one written before the header held the sequence, starts from the
+		 * current time in microseconds, but never below what is still waiting
+		 * in it.
+		 */
+		if (sequence == 0) {
+			sequence = System.currentTimeMillis() * 1000;
+			if (tail > head) {
+				sequence = Math.max(sequence, read(tail
+						- CreditTransaction.SIZE).getSequence());
+			}
+			writeHeader();
+		}
+
+		sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		}, "outbox-sender-" + registerId);
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	private void map(long capacity) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER
+				+ capacity);
+	}
+
+	private int capacity() {
+		return buffer.capacity() - HEADER;
+	}
+
+	/**
+	 * Write the positions and sequence number to the mapping. Not forced, see
+	 * the class comment.
+	 */
+	private void writeHeader() {
+		buffer.putInt(0, head);
+		buffer.putInt(4, tail);
+		buffer.putLong(8, sequence);
+	}
+
+	private CreditTransaction read(int offset) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(HEADER + offset);
+		return CreditTransaction.readFrom(view);
+	}
+
+	/**
+	 * Record a completed operation. This only copies the transaction into the
+	 * outbox and returns immediately.
+	 */
+	synchronized void record(int cardId, short amount, short newBalance) {
+		CreditTransaction t = new CreditTransaction(cardId, amount, registerId,
+				++sequence, newBalance);
+		try {
+			if (tail + CreditTransaction.SIZE > capacity()) {
+				makeRoom();
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot grow the outbox, transaction lost: " + t);
+			return;
+		}
+		ByteBuffer view = buffer.duplicate();
+		view.position(HEADER + tail);
+		t.writeTo(view);
+		tail += CreditTransaction.SIZE;
+		writeHeader();
+		notifyAll();
+	}
+
+	/**
+	 * Move the unsent records to the front of the outbox, and grow the file if
+	 * that does not free enough room.
+	 */
+	private void makeRoom() throws IOException {
+		if (head > 0) {
+			ByteBuffer pending = buffer.duplicate();
+			pending.position(HEADER + head);
+			pending.limit(HEADER + tail);
+			ByteBuffer front = buffer.duplicate();
+			front.position(HEADER);
+			front.put(pending);
+			tail -= head;
+			head = 0;
+			writeHeader();
+		}
+		if (tail + CreditTransaction.SIZE > capacity()) {
+			buffer.force();
+			map(2L * capacity());
+		}
+	}
+
+	/**
+	 * @return up to {@link #BATCH_SIZE} unsent transactions, waiting until
+	 *         there is at least one.
+	 */
+	private synchronized List<CreditTransaction> nextBatch()
+			throws InterruptedException {
+		while (running && head == tail) {
+			wait();
+		}
+		List<CreditTransaction> batch = new ArrayList<CreditTransaction>();
+		for (int offset = head; offset < tail && batch.size() < BATCH_SIZE; offset += CreditTransaction.SIZE) {
+			batch.add(read(offset));
+		}
+		return batch;
+	}
+
+	/**
+	 * Remove the first <code>count</code> transactions, which have been sent.
+	 */
+	private synchronized void acknowledge(int count) {
+		head += count * CreditTransaction.SIZE;
+		if (head == tail) {
+			head = tail = 0;
+		}
+		writeHeader();
+		delivered += count;
+	}
+
+	private void send() {
+		long backoff = INITIAL_BACKOFF;
+		while (running) {
+			try {
+				List<CreditTransaction> batch = nextBatch();
+				if (batch.isEmpty()) {
+					continue;
+				}
+				try {
+					sink.upload(batch);
+					acknowledge(batch.size());
+					backoff = INITIAL_BACKOFF;
+				} catch (IOException e) {
+					System.err.println("Could not upload " + batch.size()
+							+ " transactions, retrying in " + backoff
+							+ " ms: " + e.getMessage());
+					Thread.sleep(backoff);
+					backoff = Math.min(2 * backoff, MAX_BACKOFF);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of transactions waiting to be sent.
+	 */
+	synchronized int getDepth() {
+		return (tail - head) / CreditTransaction.SIZE;
+	}
+
+	/**
+	 * @return the number of transactions sent since the outbox was opened.
+	 */
+	synchronized long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return the number of transactions sent per second since the previous
+	 *         call.
+	 */
+	synchronized double getDrainRate() {
+		long now = System.currentTimeMillis();
+		double rate = (delivered - sampledDelivered) * 1000.0
+				/ Math.max(1, now - sampledAt);
+		sampledDelivered = delivered;
+		sampledAt = now;
+		return rate;
+	}
+
+	/**
+	 * Stop the sender and write the outbox to disk. Unsent transactions stay
+	 * in the file.
+	 */
+	void close() throws IOException {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		sender.interrupt();
+		try {
+			sender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			buffer.force();
+			file.close();
+		}
+	}
+}